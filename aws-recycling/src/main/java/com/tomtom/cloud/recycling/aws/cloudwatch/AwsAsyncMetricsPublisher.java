@@ -0,0 +1,490 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling.aws.cloudwatch;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsync;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataResult;
+import com.tomtom.cloud.recycling.CircuitBreaker;
+import com.tomtom.cloud.recycling.DeadbandFilter;
+import com.tomtom.cloud.recycling.DimensionSet;
+import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricCollector;
+import com.tomtom.cloud.recycling.MetricSpool;
+import com.tomtom.cloud.recycling.MetricsPublisher;
+import com.tomtom.cloud.recycling.OneTagMetricMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Class used for publishing metric data to AWS CloudWatch without blocking the publishing thread.
+ * <p>
+ * Requests are handed over to the asynchronous CloudWatch client and their completion is reported back through
+ * callbacks. At most {@code maxInFlightRequests} requests are pending at any time: a batch for which no slot is
+ * available is dropped and accounted as failed rather than queued, so a slow CloudWatch never makes the publishing
+ * thread wait or overrun its schedule. Each request is cancelled if it does not complete within
+ * {@link #getTimeoutSeconds()}.
+ * <p>
+ * With a {@link #setSpool(MetricSpool) spool}, the datums of failed, dropped and expired requests are kept and
+ * replayed on the next publishing, as long as the most recent request succeeded and slots are available.
+ * <p>
+ * A {@link CircuitBreaker} stops sending requests while CloudWatch keeps failing. Requests are not retried here:
+ * retrying would hold a slot, and the asynchronous client already applies the retry policy of its configuration.
+ */
+@ManagedResource("Healer:component=worker,sub=cloudWatchAsyncMetricsPublisher")
+public class AwsAsyncMetricsPublisher implements MetricsPublisher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AwsAsyncMetricsPublisher.class);
+
+    private final List<Metric> metrics;
+
+    private final String namespace;
+
+    private final int timeoutSeconds;
+
+    private final AmazonCloudWatchAsync client;
+
+    private final int batchSize;
+
+    private final int maxInFlightRequests;
+
+    /**
+     * One permit per request that may be in flight.
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * Cancels requests that are still pending when their deadline expires.
+     */
+    private final ScheduledExecutorService deadlines;
+
+    private final AtomicLong completedRequests = new AtomicLong();
+
+    private final AtomicLong timedOutRequests = new AtomicLong();
+
+    /**
+     * Whether the most recently settled request succeeded, which makes replaying spooled datums worthwhile.
+     */
+    private final AtomicBoolean lastRequestSucceeded = new AtomicBoolean();
+
+    /**
+     * Optional spool keeping the datums of failed pushes until they can be replayed.
+     */
+    private volatile MetricSpool spool;
+
+    /**
+     * Stops sending requests while CloudWatch keeps failing.
+     */
+    private volatile CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    /**
+     * Optional change detection suppressing the values of metrics that did not change enough.
+     */
+    private volatile DeadbandFilter deadbandFilter;
+
+    /**
+     * Optional collector reading the values of plain metrics in parallel.
+     */
+    private volatile MetricCollector metricCollector;
+
+    /**
+     * Dimensions of every datum, next to the dimensions of its metric.
+     */
+    private volatile DimensionSet dimensions = DimensionSet.EMPTY;
+
+    /**
+     * Counts sent with their tags as dimensions, by metric name.
+     */
+    private final Map<String, Supplier<? extends Map<Map<String, String>, ? extends Number>>> counts =
+            Collections.synchronizedMap(new LinkedHashMap<>());
+
+    /**
+     * Book-keeping for the failed pushes.
+     */
+    private final OneTagMetricMap<String> failedPublishingRequests = new OneTagMetricMap<>("metricName");
+
+    /**
+     * Constructor that should be used during system initialization, preferably in a configuration bean.
+     *
+     * @param metrics             list of metrics
+     * @param namespace           the namespace where the metrics are published
+     * @param timeoutSeconds      deadline of every request in seconds
+     * @param client              asynchronous aws client
+     * @param batchSize           number of datums per request, between 1 and
+     *                            {@link AwsMetricsPublisher#MAX_BATCH_SIZE}
+     * @param maxInFlightRequests maximum number of requests pending at the same time
+     */
+    public AwsAsyncMetricsPublisher(final List<Metric> metrics,
+                                    final String namespace,
+                                    final int timeoutSeconds,
+                                    final AmazonCloudWatchAsync client,
+                                    final int batchSize,
+                                    final int maxInFlightRequests) {
+        if (maxInFlightRequests < 1) {
+            throw new IllegalArgumentException("maxInFlightRequests must be positive: " + maxInFlightRequests);
+        }
+        this.metrics = metrics;
+        this.namespace = namespace;
+        this.timeoutSeconds = timeoutSeconds;
+        this.client = client;
+        this.batchSize = MetricDataRequests.checkBatchSize(batchSize);
+        this.maxInFlightRequests = maxInFlightRequests;
+        this.inFlight = new Semaphore(maxInFlightRequests);
+        this.deadlines = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "CloudWatch request deadline thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sends metric data to AWS CloudWatch and returns without waiting for the responses.
+     */
+    @Override
+    public void publish() {
+        publish(metrics, true);
+    }
+
+    /**
+     * Sends the given metrics to AWS CloudWatch, and the counts if requested, and returns without waiting for the
+     * responses.
+     */
+    @Override
+    public void publish(final List<Metric> metricsToPublish, final boolean withCounts) {
+        final List<PutMetricDataRequest> requests;
+        synchronized (counts) {
+            requests = MetricDataRequests.toRequests(namespace, collect(metricsToPublish),
+                    withCounts ? counts : Collections.emptyMap(), dimensions, batchSize, deadbandFilter);
+        }
+        for (final PutMetricDataRequest request : requests) {
+            final List<String> batch = MetricDataRequests.metricNames(request);
+            // the slot comes first: a trial call let through by a half-open breaker must be sent to be settled
+            if (!inFlight.tryAcquire()) {
+                markFailed(batch, request, true);
+                LOG.warn("Dropped MetricData for {} metric(s) starting with {}: {} requests already in flight",
+                        batch.size(), batch.get(0), maxInFlightRequests);
+                continue;
+            }
+            if (!circuitBreaker.allowRequest()) {
+                inFlight.release();
+                markFailed(batch, request, true);
+                LOG.debug("Circuit breaker is open, skipped sending MetricData to Amazon CloudWatch");
+                continue;
+            }
+            send(batch, request);
+        }
+        final MetricSpool currentSpool = spool;
+        if (currentSpool != null && lastRequestSucceeded.get()) {
+            replaySpool(currentSpool);
+        }
+    }
+
+    /**
+     * Keeps the datums of failed pushes in a spool, and replays them in batches of {@link #getBatchSize()} once
+     * a push succeeds again. Without a spool, the datums of a failed push are lost.
+     *
+     * @param spool the spool, or null to disable spooling
+     */
+    public void setSpool(final MetricSpool spool) {
+        this.spool = spool;
+    }
+
+    /**
+     * Publishes counts, with their tags as dimensions.
+     *
+     * @param name   metric name
+     * @param counts supplies the counts by tags, e.g. {@code OneTagMetricMap::getCounts}
+     */
+    public void addCounts(final String name,
+                          final Supplier<? extends Map<Map<String, String>, ? extends Number>> counts) {
+        this.counts.put(name, counts);
+    }
+
+    /**
+     * Stops watching the deadlines of pending requests.
+     */
+    @PreDestroy
+    public void shutdown() {
+        deadlines.shutdownNow();
+    }
+
+    @ManagedMetric
+    @Override
+    public Map<Map<String, String>, ? extends Number> getFailedPublishingRequests() {
+        return failedPublishingRequests.getCounts();
+    }
+
+    @ManagedAttribute
+    @Override
+    public String getNamespace() {
+        return namespace;
+    }
+
+    @ManagedAttribute
+    @Override
+    public int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    @ManagedAttribute
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @ManagedAttribute
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    @ManagedAttribute
+    public int getInFlightRequests() {
+        return maxInFlightRequests - inFlight.availablePermits();
+    }
+
+    @ManagedAttribute
+    public long getCompletedRequests() {
+        return completedRequests.get();
+    }
+
+    @ManagedAttribute
+    public long getTimedOutRequests() {
+        return timedOutRequests.get();
+    }
+
+    /**
+     * Sets the dimensions of every datum, e.g. the instance id or the auto scaling group.
+     *
+     * @param dimensions dimension values by name
+     */
+    public void setDimensions(final Map<String, String> dimensions) {
+        this.dimensions = DimensionSet.of(dimensions);
+    }
+
+    /**
+     * Replaces the default circuit breaker, which opens after {@link CircuitBreaker#DEFAULT_FAILURE_THRESHOLD}
+     * consecutive failed requests.
+     *
+     * @param circuitBreaker the circuit breaker
+     */
+    public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Sends the value of a plain metric only when the filter says it changed enough, or as a heartbeat.
+     * Aggregating and histogram metrics are always sent, since every interval carries new samples.
+     *
+     * @param deadbandFilter the filter, or null to send every value
+     */
+    public void setDeadbandFilter(final DeadbandFilter deadbandFilter) {
+        this.deadbandFilter = deadbandFilter;
+    }
+
+    /**
+     * Reads the values of plain metrics in parallel, each within a deadline, rather than one after another on the
+     * publishing thread.
+     *
+     * @param metricCollector the collector, or null to read values on the publishing thread
+     */
+    public void setMetricCollector(final MetricCollector metricCollector) {
+        this.metricCollector = metricCollector;
+    }
+
+    @ManagedAttribute
+    public long getSuppressedDatums() {
+        final DeadbandFilter filter = deadbandFilter;
+        return filter == null ? 0 : filter.getSuppressedValues();
+    }
+
+    @ManagedAttribute
+    public String getCircuitBreakerState() {
+        return circuitBreaker.getState().name();
+    }
+
+    @ManagedAttribute
+    public long getRejectedRequests() {
+        return circuitBreaker.getRejectedCalls();
+    }
+
+    @ManagedAttribute
+    public int getSpooledDatums() {
+        final MetricSpool currentSpool = spool;
+        return currentSpool == null ? 0 : currentSpool.size();
+    }
+
+    /**
+     * Replays spooled datums, oldest first, using only the slots left free. Datums of a replay that fails are
+     * spooled again, unless CloudWatch rejected them. Datums older than CloudWatch accepts are dropped.
+     */
+    private void replaySpool(final MetricSpool currentSpool) {
+        for (int i = 0; i < AwsMetricsPublisher.MAX_REPLAYED_REQUESTS && !currentSpool.isEmpty(); i++) {
+            if (!inFlight.tryAcquire()) {
+                return;
+            }
+            if (!circuitBreaker.allowRequest()) {
+                inFlight.release();
+                return;
+            }
+            final List<MetricDatum> data = MetricDataRequests.pollReplayData(currentSpool, batchSize);
+            if (data.isEmpty()) {
+                inFlight.release();
+                return;
+            }
+            final PutMetricDataRequest request = new PutMetricDataRequest().withNamespace(namespace)
+                    .withMetricData(data);
+            send(MetricDataRequests.metricNames(request), request);
+        }
+    }
+
+    private void send(final List<String> batch, final PutMetricDataRequest request) {
+        final Completion completion = new Completion(batch, request);
+        try {
+            final Future<PutMetricDataResult> future = client.putMetricDataAsync(request, completion);
+            completion.watch(deadlines.schedule(() -> completion.expire(future), timeoutSeconds, TimeUnit.SECONDS));
+        } catch (Exception e) {
+            completion.onError(e);
+        }
+    }
+
+    /**
+     * Accounts every metric of a failed request and spools its datums when they may be accepted later.
+     */
+    private void markFailed(final List<String> batch, final PutMetricDataRequest request, final boolean spoolable) {
+        lastRequestSucceeded.set(false);
+        for (final String name : batch) {
+            failedPublishingRequests.increment(name);
+        }
+        final MetricSpool currentSpool = spool;
+        if (spoolable && currentSpool != null && MetricDataRequests.spool(currentSpool, request) > 0) {
+            LOG.warn("Metric spool is full, dropped datums of {} metric(s) starting with {}",
+                    batch.size(), batch.get(0));
+        }
+    }
+
+    /**
+     * Settles a single request exactly once, whichever comes first: the response or the deadline.
+     */
+    private final class Completion implements AsyncHandler<PutMetricDataRequest, PutMetricDataResult> {
+
+        /**
+         * Names of the metrics carried by the request.
+         */
+        private final List<String> batch;
+
+        private final PutMetricDataRequest request;
+
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        /**
+         * Task expiring the request, cancelled once the request settles.
+         */
+        private volatile Future<?> deadline;
+
+        Completion(final List<String> batch, final PutMetricDataRequest request) {
+            this.batch = batch;
+            this.request = request;
+        }
+
+        @Override
+        public void onSuccess(final PutMetricDataRequest request, final PutMetricDataResult result) {
+            if (settle()) {
+                circuitBreaker.recordSuccess();
+                lastRequestSucceeded.set(true);
+                completedRequests.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onError(final Exception e) {
+            if (settle()) {
+                final boolean opened = circuitBreaker.recordFailure();
+                // a rejected request would be rejected again, so its datums are not spooled
+                markFailed(batch, request, !MetricDataRequests.isRejected(e));
+                if (circuitBreaker.getConsecutiveFailures() <= circuitBreaker.getFailureThreshold()) {
+                    LOG.error("Could not push MetricData for {} metric(s) starting with {} to Amazon CloudWatch "
+                            + "because of: {}", batch.size(), batch.get(0), e.getMessage(), e);
+                } else {
+                    LOG.warn("Could not push MetricData to Amazon CloudWatch because of: {}", e.getMessage());
+                }
+                logOpened(opened);
+            }
+        }
+
+        void expire(final Future<?> future) {
+            if (settle()) {
+                timedOutRequests.incrementAndGet();
+                final boolean opened = circuitBreaker.recordFailure();
+                markFailed(batch, request, true);
+                future.cancel(true);
+                LOG.error("Could not push MetricData for {} metric(s) starting with {} to Amazon CloudWatch "
+                        + "within {} seconds", batch.size(), batch.get(0), timeoutSeconds);
+                logOpened(opened);
+            }
+        }
+
+        private void logOpened(final boolean opened) {
+            if (opened) {
+                LOG.warn("Stopped sending MetricData to Amazon CloudWatch after {} consecutive failures",
+                        circuitBreaker.getConsecutiveFailures());
+            }
+        }
+
+        void watch(final Future<?> deadlineTask) {
+            deadline = deadlineTask;
+            // the response may have come before the deadline was scheduled
+            if (settled.get()) {
+                deadlineTask.cancel(false);
+            }
+        }
+
+        private boolean settle() {
+            if (settled.compareAndSet(false, true)) {
+                inFlight.release();
+                final Future<?> deadlineTask = deadline;
+                if (deadlineTask != null) {
+                    deadlineTask.cancel(false);
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private List<Metric> collect(final List<Metric> metricsToPublish) {
+        final MetricCollector collector = metricCollector;
+        return collector == null ? metricsToPublish : collector.collect(metricsToPublish);
+    }
+}
@@ -15,27 +15,55 @@
  */
 package com.tomtom.cloud.recycling.aws.cloudwatch;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
 import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.tomtom.cloud.recycling.CircuitBreaker;
+import com.tomtom.cloud.recycling.DeadbandFilter;
+import com.tomtom.cloud.recycling.DimensionSet;
+import com.tomtom.cloud.recycling.MetricSpool;
 import com.tomtom.cloud.recycling.OneTagMetricMap;
+import com.tomtom.cloud.recycling.PublishingStatistics;
+import com.tomtom.cloud.recycling.RetryPolicy;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedMetric;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricCollector;
 import com.tomtom.cloud.recycling.MetricsPublisher;
 
 /**
  * Class used for publishing metric data to AWS CloudWatch.
  * <p>
+ * The requests and their datums are kept and refilled on every publishing, so that publishing thousands of metrics
+ * at short intervals does not produce steady garbage.
+ * <p>
+ * Datums carry the dimensions of their metrics, next to the dimensions set for every datum, e.g. the instance id or
+ * the auto scaling group. Counts added through {@link #addCounts(String, Supplier)} are sent with their tags as
+ * dimensions, e.g. one datum per feed of a {@link OneTagMetricMap}. CloudWatch accepts at most 10 dimensions per
+ * datum.
+ * <p>
  * This class strictly belongs to 'tomtom' Spring profile and should be instantiated only if such profile was activated.
  */
 @ManagedResource("Healer:component=worker,sub=cloudWatchMetricsPublisher")
 public class AwsMetricsPublisher implements MetricsPublisher {
 
+    /**
+     * The maximum number of datums CloudWatch accepts in a single PutMetricData request.
+     */
+    public static final int MAX_BATCH_SIZE = MetricDataRequests.MAX_BATCH_SIZE;
+
+    /**
+     * The maximum number of requests replaying spooled datums after a successful publishing.
+     */
+    static final int MAX_REPLAYED_REQUESTS = 10;
+
     /**
      * The metrics we want to have exposed to CloudWatch.
      */
@@ -56,11 +84,57 @@ public class AwsMetricsPublisher implements MetricsPublisher {
      */
     private final AmazonCloudWatchClient client;
 
+    /**
+     * The number of datums packed into a single PutMetricData request.
+     */
+    private final int batchSize;
+
+    /**
+     * The requests refilled on every publishing.
+     */
+    private final MetricDataBuffer buffer;
+
+    /**
+     * Counts sent with their tags as dimensions, by metric name, guarded by the buffer.
+     */
+    private final Map<String, Supplier<? extends Map<Map<String, String>, ? extends Number>>> counts =
+            new LinkedHashMap<>();
+
     /**
      * Book-keeping for the failed pushes.
      */
     private final OneTagMetricMap<String> failedPublishingRequests = new OneTagMetricMap<>("metricName");
 
+    /**
+     * Measures the cost of publishing.
+     */
+    private final PublishingStatistics publishingStatistics = new PublishingStatistics("CloudWatchPublisher");
+
+    /**
+     * Optional spool keeping the datums of failed pushes until they can be replayed.
+     */
+    private MetricSpool spool;
+
+    /**
+     * Retries of a failing push, none by default.
+     */
+    private RetryPolicy retryPolicy = RetryPolicy.NONE;
+
+    /**
+     * Stops pushing while CloudWatch keeps failing.
+     */
+    private CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    /**
+     * Optional change detection suppressing the values of metrics that did not change enough.
+     */
+    private DeadbandFilter deadbandFilter;
+
+    /**
+     * Optional collector reading the values of plain metrics in parallel.
+     */
+    private MetricCollector metricCollector;
+
     private static final org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(AwsMetricsPublisher.class);
 
     /**
@@ -76,10 +150,30 @@ public class AwsMetricsPublisher implements MetricsPublisher {
                                final String namespace,
                                final int timeoutSeconds,
                                final AmazonCloudWatchClient client) {
+        this(metrics, namespace, timeoutSeconds, client, 1);
+    }
+
+    /**
+     * Constructor that packs up to {@code batchSize} datums into every PutMetricData request,
+     * which reduces the number of calls to CloudWatch from N to ceil(N / batchSize).
+     *
+     * @param metrics        list of metrics
+     * @param namespace      the namespace where the metrics are published
+     * @param timeoutSeconds timeout in seconds
+     * @param client         aws client
+     * @param batchSize      number of datums per request, between 1 and {@link #MAX_BATCH_SIZE}
+     */
+    public AwsMetricsPublisher(final List<Metric> metrics,
+                               final String namespace,
+                               final int timeoutSeconds,
+                               final AmazonCloudWatchClient client,
+                               final int batchSize) {
         this.metrics = metrics;
         this.timeoutSeconds = timeoutSeconds;
         this.namespace = namespace;
         this.client = client;
+        this.batchSize = MetricDataRequests.checkBatchSize(batchSize);
+        this.buffer = new MetricDataBuffer(namespace, batchSize);
     }
 
     /**
@@ -87,7 +181,39 @@ public class AwsMetricsPublisher implements MetricsPublisher {
      */
     @Override
     public void publish() {
-        putMetricData();
+        putMetricData(metrics, true);
+    }
+
+    /**
+     * Publishes the given metrics to AWS CloudWatch, and the counts if requested.
+     */
+    @Override
+    public void publish(final List<Metric> metricsToPublish, final boolean withCounts) {
+        putMetricData(metricsToPublish, withCounts);
+    }
+
+    /**
+     * Sets the dimensions of every datum, e.g. the instance id or the auto scaling group.
+     *
+     * @param dimensions dimension values by name
+     */
+    public void setDimensions(final Map<String, String> dimensions) {
+        synchronized (buffer) {
+            buffer.setDimensions(DimensionSet.of(dimensions));
+        }
+    }
+
+    /**
+     * Publishes counts, with their tags as dimensions.
+     *
+     * @param name   metric name
+     * @param counts supplies the counts by tags, e.g. {@code OneTagMetricMap::getCounts}
+     */
+    public void addCounts(final String name,
+                          final Supplier<? extends Map<Map<String, String>, ? extends Number>> counts) {
+        synchronized (buffer) {
+            this.counts.put(name, counts);
+        }
     }
 
     @ManagedMetric
@@ -108,22 +234,213 @@ public class AwsMetricsPublisher implements MetricsPublisher {
         return timeoutSeconds;
     }
 
-    private void putMetricData() {
-        for (final Metric metric : metrics) {
-            final MetricDatum dataPoint = new MetricDatum()
-                    .withMetricName(metric.getName()).withValue(metric.getValue());
+    @ManagedAttribute
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Keeps the datums of failed pushes in a spool, and replays them in batches of {@link #getBatchSize()} after
+     * a publishing in which every push succeeded. Without a spool, the datums of a failed push are lost.
+     *
+     * @param spool the spool, or null to disable spooling
+     */
+    public void setSpool(final MetricSpool spool) {
+        this.spool = spool;
+    }
 
-            final PutMetricDataRequest request = new PutMetricDataRequest()
-                    .withNamespace(namespace).withMetricData(dataPoint);
+    @ManagedAttribute
+    public int getSpooledDatums() {
+        return spool == null ? 0 : spool.size();
+    }
 
-            try {
+    /**
+     * Sets the retries of a failing push. Only requests that CloudWatch throttled or failed with a server error, and
+     * requests that failed with an I/O error, are retried. The retries of a request happen before the circuit breaker
+     * is told about its failure.
+     *
+     * @param retryPolicy the retry policy
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Replaces the default circuit breaker, which opens after {@link CircuitBreaker#DEFAULT_FAILURE_THRESHOLD}
+     * consecutive failed requests.
+     *
+     * @param circuitBreaker the circuit breaker
+     */
+    public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Sends the value of a plain metric only when the filter says it changed enough, or as a heartbeat.
+     * Aggregating and histogram metrics are always sent, since every interval carries new samples.
+     *
+     * @param deadbandFilter the filter, or null to send every value
+     */
+    public void setDeadbandFilter(final DeadbandFilter deadbandFilter) {
+        this.deadbandFilter = deadbandFilter;
+    }
+
+    /**
+     * Reads the values of plain metrics in parallel, each within a deadline, rather than one after another on the
+     * publishing thread.
+     *
+     * @param metricCollector the collector, or null to read values on the publishing thread
+     */
+    public void setMetricCollector(final MetricCollector metricCollector) {
+        this.metricCollector = metricCollector;
+    }
+
+    @ManagedAttribute
+    public long getSuppressedDatums() {
+        final DeadbandFilter filter = deadbandFilter;
+        return filter == null ? 0 : filter.getSuppressedValues();
+    }
+
+    /**
+     * Returns the latency, batch size and outcome of the publishing, whose metrics can be published in a namespace
+     * of their own.
+     *
+     * @return the statistics
+     */
+    public PublishingStatistics getStatistics() {
+        return publishingStatistics;
+    }
+
+    @ManagedAttribute
+    public long getSucceededRequests() {
+        return publishingStatistics.getSucceededRequests();
+    }
+
+    @ManagedAttribute
+    public long getFailedRequests() {
+        return publishingStatistics.getFailedRequests();
+    }
+
+    @ManagedAttribute
+    public long getPublishedDatums() {
+        return publishingStatistics.getPublishedDatums();
+    }
+
+    @ManagedAttribute
+    public long getLastPublishDurationMillis() {
+        return publishingStatistics.getLastCycleMillis();
+    }
+
+    /**
+     * Returns the total time spent reading metric values on the publishing thread.
+     *
+     * @return time in milliseconds
+     */
+    @ManagedAttribute
+    public long getValueReadMillis() {
+        return publishingStatistics.getValueReadMillis();
+    }
+
+    @ManagedAttribute
+    public String getCircuitBreakerState() {
+        return circuitBreaker.getState().name();
+    }
+
+    @ManagedAttribute
+    public long getRejectedRequests() {
+        return circuitBreaker.getRejectedCalls();
+    }
+
+    /**
+     * Sends the current data of the metrics. The requests are reused from one publishing to the next, so concurrent
+     * publishings are serialized.
+     */
+    private void putMetricData(final List<Metric> metricsToPublish, final boolean withCounts) {
+        final long start = System.nanoTime();
+        boolean failed = false;
+        synchronized (buffer) {
+            final int requests = buffer.fill(collect(metricsToPublish),
+                    withCounts ? counts : Collections.emptyMap(), deadbandFilter, publishingStatistics);
+            for (int i = 0; i < requests; i++) {
+                failed |= !send(buffer.getRequest(i));
+            }
+        }
+        if (!failed && spool != null) {
+            replaySpool();
+        }
+        publishingStatistics.recordCycle(System.nanoTime() - start);
+    }
+
+    /**
+     * Replays spooled datums, oldest first, until the spool is empty or a push fails again. Datums older than
+     * CloudWatch accepts are dropped.
+     */
+    private void replaySpool() {
+        for (int i = 0; i < MAX_REPLAYED_REQUESTS && !spool.isEmpty(); i++) {
+            final List<MetricDatum> data = MetricDataRequests.pollReplayData(spool, batchSize);
+            if (data.isEmpty()) {
+                return;
+            }
+            if (!send(new PutMetricDataRequest().withNamespace(namespace).withMetricData(data))) {
+                return;
+            }
+            LOG.info("Replayed {} spooled datum(s) to Amazon CloudWatch", data.size());
+        }
+    }
+
+    private boolean send(final PutMetricDataRequest request) {
+        if (!circuitBreaker.allowRequest()) {
+            markFailed(request, MetricDataRequests.metricNames(request), true);
+            LOG.debug("Circuit breaker is open, skipped pushing MetricData to Amazon CloudWatch");
+            return false;
+        }
+        final long start = System.nanoTime();
+        try {
+            // without retries, the call is made directly rather than through a capturing lambda
+            if (retryPolicy.getMaxAttempts() == 1) {
                 client.putMetricData(request);
-            } catch (Exception e) {
-                failedPublishingRequests.increment(metric.getName());
-                LOG.error("Could not push MetricData for {} to Amazon CloudWatch because of: {}", metric.getName(),
-                        e.getMessage(), e);
+            } else {
+                retryPolicy.execute(() -> client.putMetricData(request), MetricDataRequests::isRetryable);
             }
+            publishingStatistics.recordRequest(System.nanoTime() - start, request.getMetricData().size(), true);
+            circuitBreaker.recordSuccess();
+            return true;
+        } catch (Exception e) {
+            publishingStatistics.recordRequest(System.nanoTime() - start, request.getMetricData().size(), false);
+            final boolean opened = circuitBreaker.recordFailure();
+            final List<String> names = MetricDataRequests.metricNames(request);
+            // a rejected request would be rejected again, so its datums are not spooled
+            markFailed(request, names, !MetricDataRequests.isRejected(e));
+            if (circuitBreaker.getConsecutiveFailures() <= circuitBreaker.getFailureThreshold()) {
+                LOG.error("Could not push MetricData for {} metric(s) starting with {} to Amazon CloudWatch "
+                        + "because of: {}", names.size(), names.get(0), e.getMessage(), e);
+            } else {
+                LOG.warn("Could not push MetricData to Amazon CloudWatch because of: {}", e.getMessage());
+            }
+            if (opened) {
+                LOG.warn("Stopped pushing MetricData to Amazon CloudWatch after {} consecutive failures",
+                        circuitBreaker.getConsecutiveFailures());
+            }
+            return false;
         }
     }
 
+    /**
+     * Accounts every metric of a failed request, as the whole batch is rejected together, and spools its datums
+     * when they may be accepted later.
+     */
+    private void markFailed(final PutMetricDataRequest request, final List<String> names, final boolean spoolable) {
+        for (final String name : names) {
+            failedPublishingRequests.increment(name);
+        }
+        if (spoolable && spool != null && MetricDataRequests.spool(spool, request) > 0) {
+            LOG.warn("Metric spool is full, dropped datums of {} metric(s) starting with {}",
+                    names.size(), names.get(0));
+        }
+    }
+
+    private List<Metric> collect(final List<Metric> metricsToPublish) {
+        final MetricCollector collector = metricCollector;
+        return collector == null ? metricsToPublish : collector.collect(metricsToPublish);
+    }
 }
@@ -0,0 +1,504 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling.aws.cloudwatch;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import com.tomtom.cloud.recycling.DimensionSet;
+import com.tomtom.cloud.recycling.DistributionMetric;
+import com.tomtom.cloud.recycling.HistogramSnapshot;
+import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricStatistics;
+import com.tomtom.cloud.recycling.MetricUnit;
+import com.tomtom.cloud.recycling.MetricsPublisher;
+import com.tomtom.cloud.recycling.OneTagMetricMap;
+import com.tomtom.cloud.recycling.StatisticsMetric;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Class used for publishing metric data to AWS CloudWatch through the CloudWatch Embedded Metric Format.
+ * <p>
+ * Instead of calling the CloudWatch API, the metrics are written as EMF JSON lines to a local file, which the
+ * CloudWatch agent running on the host ships as logs. CloudWatch extracts the metrics from these logs, so publishing
+ * costs no API call and no network round trip on the publishing thread.
+ * <p>
+ * Metrics are written in lines of at most 100 metrics, carrying the common dimensions. A metric with dimensions of
+ * its own is written in a line of its own, with its dimensions next to the common ones. Aggregating and
+ * histogram metrics are written as 'name.count', 'name.sum', 'name.min' and 'name.max', plus one metric per
+ * percentile of a histogram. The metrics are declared with their units, and high-resolution metrics with a storage
+ * resolution of one second. Every entry of counts, e.g. of a {@link OneTagMetricMap}, is written in a line of its
+ * own, with its tags as dimensions next to the common ones.
+ * <p>
+ * The lines go through a buffer to a file channel. The file is rotated when it grows beyond its maximum size: it is
+ * renamed with the suffix '.1', shifting the older files, of which at most the configured number is kept.
+ */
+@ManagedResource("Healer:component=worker,sub=emfMetricsPublisher")
+public class EmfMetricsPublisher implements MetricsPublisher {
+
+    /**
+     * The maximum number of metrics CloudWatch extracts from a single line.
+     */
+    static final int MAX_METRICS_PER_LINE = 100;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String COUNT_UNIT = MetricUnit.COUNT.toString();
+
+    private static final Logger LOG = LoggerFactory.getLogger(EmfMetricsPublisher.class);
+
+    /**
+     * The metrics we want to have exposed to CloudWatch.
+     */
+    private final List<Metric> metrics;
+
+    /**
+     * The name space where metrics will be pushed.
+     */
+    private final String namespace;
+
+    private final Path file;
+
+    /**
+     * Dimensions of every metric, e.g. the instance id.
+     */
+    private final DimensionSet dimensions;
+
+    private final long maxFileBytes;
+
+    private final int maxFiles;
+
+    private final LongSupplier clock;
+
+    private final Map<String, Supplier<? extends Map<Map<String, String>, ? extends Number>>> counts =
+            new LinkedHashMap<>();
+
+    /**
+     * Book-keeping for the metrics that could not be read.
+     */
+    private final OneTagMetricMap<String> failedPublishingRequests = new OneTagMetricMap<>("metricName");
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * The line being built, reused for every line.
+     */
+    private final StringBuilder line = new StringBuilder(BUFFER_SIZE);
+
+    /**
+     * The values of the line being built, appended to the line once its metric declarations are complete.
+     */
+    private final StringBuilder values = new StringBuilder(BUFFER_SIZE);
+
+    private final AtomicLong writtenLines = new AtomicLong();
+
+    private final AtomicLong writtenBytes = new AtomicLong();
+
+    private final AtomicLong failedWrites = new AtomicLong();
+
+    private final AtomicLong rotations = new AtomicLong();
+
+    private FileChannel channel;
+
+    private long timestamp;
+
+    private int metricsInLine;
+
+    private DimensionSet lineDimensions;
+
+    /**
+     * Constructor with a single file of at most 100 MB and no common dimension.
+     *
+     * @param metrics   list of metrics
+     * @param namespace the namespace where the metrics are published
+     * @param file      the file the CloudWatch agent ships
+     */
+    public EmfMetricsPublisher(final List<Metric> metrics, final String namespace, final Path file) {
+        this(metrics, namespace, file, Collections.<String, String>emptyMap(), 100L * 1024 * 1024, 1);
+    }
+
+    /**
+     * Constructor that should be used during system initialization,
+     * preferable in a configuration bean.
+     *
+     * @param metrics      list of metrics
+     * @param namespace    the namespace where the metrics are published
+     * @param file         the file the CloudWatch agent ships
+     * @param dimensions   dimensions of every metric, e.g. the instance id
+     * @param maxFileBytes size beyond which the file is rotated
+     * @param maxFiles     number of rotated files kept
+     */
+    public EmfMetricsPublisher(final List<Metric> metrics, final String namespace, final Path file,
+                               final Map<String, String> dimensions, final long maxFileBytes, final int maxFiles) {
+        this(metrics, namespace, file, dimensions, maxFileBytes, maxFiles, System::currentTimeMillis);
+    }
+
+    EmfMetricsPublisher(final List<Metric> metrics, final String namespace, final Path file,
+                        final Map<String, String> dimensions, final long maxFileBytes, final int maxFiles,
+                        final LongSupplier clock) {
+        if (maxFileBytes < 1) {
+            throw new IllegalArgumentException("maxFileBytes must be positive: " + maxFileBytes);
+        }
+        if (maxFiles < 0) {
+            throw new IllegalArgumentException("maxFiles must not be negative: " + maxFiles);
+        }
+        this.metrics = metrics;
+        this.namespace = namespace;
+        this.file = file;
+        this.dimensions = DimensionSet.of(dimensions);
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.clock = clock;
+    }
+
+    /**
+     * Publishes counts, with their keys as dimensions.
+     *
+     * @param name   metric name
+     * @param counts supplies the counts by tags, e.g. {@code OneTagMetricMap::getCounts}
+     */
+    public synchronized void addCounts(final String name,
+                                       final Supplier<? extends Map<Map<String, String>, ? extends Number>> counts) {
+        this.counts.put(name, counts);
+    }
+
+    @Override
+    public void publish() {
+        publish(metrics, true);
+    }
+
+    @Override
+    public synchronized void publish(final List<Metric> metricsToPublish, final boolean withCounts) {
+        timestamp = clock.getAsLong();
+        try {
+            open();
+            startLine(dimensions);
+            for (final Metric metric : metricsToPublish) {
+                if (DimensionSet.of(metric).isEmpty()) {
+                    append(metric);
+                }
+            }
+            endLine();
+            for (final Metric metric : metricsToPublish) {
+                final DimensionSet metricDimensions = DimensionSet.of(metric);
+                if (!metricDimensions.isEmpty()) {
+                    startLine(dimensions.with(metricDimensions));
+                    append(metric);
+                    endLine();
+                }
+            }
+            if (withCounts) {
+                for (final Map.Entry<String, Supplier<? extends Map<Map<String, String>, ? extends Number>>> counter
+                        : counts.entrySet()) {
+                    for (final Map.Entry<Map<String, String>, ? extends Number> count
+                            : counter.getValue().get().entrySet()) {
+                        startLine(dimensions.with(DimensionSet.of(count.getKey())));
+                        appendValue(counter.getKey(), count.getValue().doubleValue(), COUNT_UNIT, false);
+                        endLine();
+                    }
+                }
+            }
+            flush();
+            if (channel.size() >= maxFileBytes) {
+                rotate();
+            }
+        } catch (IOException e) {
+            failedWrites.incrementAndGet();
+            LOG.error("Could not write metrics to {} because of: {}", file, e.getMessage(), e);
+            buffer.clear();
+            close();
+        }
+    }
+
+    /**
+     * Closes the file when the shutdown hook is invoked.
+     */
+    @PreDestroy
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.debug("Could not close {}", file, e);
+            }
+            channel = null;
+        }
+    }
+
+    @ManagedMetric
+    @Override
+    public Map<Map<String, String>, ? extends Number> getFailedPublishingRequests() {
+        return failedPublishingRequests.getCounts();
+    }
+
+    @ManagedAttribute
+    @Override
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * Returns zero, as no request is sent.
+     *
+     * @return timeout
+     */
+    @ManagedAttribute
+    @Override
+    public int getTimeoutSeconds() {
+        return 0;
+    }
+
+    @ManagedAttribute
+    public String getFile() {
+        return file.toString();
+    }
+
+    @ManagedAttribute
+    public long getWrittenLines() {
+        return writtenLines.get();
+    }
+
+    @ManagedAttribute
+    public long getWrittenBytes() {
+        return writtenBytes.get();
+    }
+
+    /**
+     * Returns the number of publishings lost because the file could not be written.
+     *
+     * @return failed writes
+     */
+    @ManagedAttribute
+    public long getFailedWrites() {
+        return failedWrites.get();
+    }
+
+    @ManagedAttribute
+    public long getRotations() {
+        return rotations.get();
+    }
+
+    /**
+     * Appends the data of a metric to the line being built, accounting a metric whose value cannot be read.
+     */
+    private void append(final Metric metric) throws IOException {
+        try {
+            appendData(metric);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            failedPublishingRequests.increment(metric.getName());
+            LOG.error("Could not read MetricData for {} because of: {}", metric.getName(), e.getMessage(), e);
+        }
+    }
+
+    private void appendData(final Metric metric) throws IOException {
+        final String name = metric.getName();
+        final String unit = MetricDataRequests.unit(metric);
+        final boolean highResolution = metric.isHighResolution();
+        if (metric instanceof StatisticsMetric) {
+            appendStatistics(metric, ((StatisticsMetric) metric).drain());
+        } else if (metric instanceof DistributionMetric) {
+            final DistributionMetric histogram = (DistributionMetric) metric;
+            final HistogramSnapshot snapshot = histogram.snapshotAndReset();
+            if (!snapshot.isEmpty()) {
+                appendStatistics(metric, snapshot.toStatistics());
+                for (int i = 0; i < histogram.getPercentileCount(); i++) {
+                    appendValue(histogram.getPercentileName(i),
+                            snapshot.getValueAtPercentile(histogram.getPercentile(i)), unit, highResolution);
+                }
+            }
+        } else {
+            appendValue(name, metric.getValue(), unit, highResolution);
+        }
+    }
+
+    private void appendStatistics(final Metric metric, final MetricStatistics statistics) throws IOException {
+        if (statistics.isEmpty()) {
+            return;
+        }
+        final String name = metric.getName();
+        final String unit = MetricDataRequests.unit(metric);
+        final boolean highResolution = metric.isHighResolution();
+        appendValue(name + ".count", statistics.getSampleCount(), COUNT_UNIT, highResolution);
+        appendValue(name + ".sum", statistics.getSum(), unit, highResolution);
+        appendValue(name + ".min", statistics.getMinimum(), unit, highResolution);
+        appendValue(name + ".max", statistics.getMaximum(), unit, highResolution);
+    }
+
+    private void startLine(final DimensionSet dimensionsOfLine) {
+        lineDimensions = dimensionsOfLine;
+        line.setLength(0);
+        values.setLength(0);
+        metricsInLine = 0;
+        line.append("{\"_aws\":{\"Timestamp\":").append(timestamp).append(",\"CloudWatchMetrics\":[{\"Namespace\":");
+        appendString(line, namespace);
+        line.append(",\"Metrics\":[");
+    }
+
+    /**
+     * Declares a metric in the line being built and adds its value, completing the line when it is full.
+     */
+    private void appendValue(final String name, final double value, final String unit,
+                             final boolean highResolution) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+        if (metricsInLine == MAX_METRICS_PER_LINE) {
+            endLine();
+            startLine(lineDimensions);
+        }
+        if (metricsInLine > 0) {
+            line.append(',');
+        }
+        line.append("{\"Name\":");
+        appendString(line, name);
+        if (unit != null) {
+            line.append(",\"Unit\":");
+            appendString(line, unit);
+        }
+        if (highResolution) {
+            line.append(",\"StorageResolution\":1");
+        }
+        line.append('}');
+        values.append(',');
+        appendString(values, name);
+        values.append(':');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            values.append((long) value);
+        } else {
+            values.append(BigDecimal.valueOf(value).toPlainString());
+        }
+        metricsInLine++;
+    }
+
+    /**
+     * Completes the line being built with its dimensions and values, and writes it, unless it declares no metric.
+     */
+    private void endLine() throws IOException {
+        if (metricsInLine == 0) {
+            return;
+        }
+        line.append("],\"Dimensions\":[[");
+        boolean first = true;
+        for (final String dimension : lineDimensions.asMap().keySet()) {
+            if (!first) {
+                line.append(',');
+            }
+            appendString(line, dimension);
+            first = false;
+        }
+        line.append("]]}]}");
+        for (final Map.Entry<String, String> dimension : lineDimensions.asMap().entrySet()) {
+            line.append(',');
+            appendString(line, dimension.getKey());
+            line.append(':');
+            appendString(line, dimension.getValue());
+        }
+        line.append(values).append("}\n");
+        write(line.toString().getBytes(StandardCharsets.UTF_8));
+        writtenLines.incrementAndGet();
+        metricsInLine = 0;
+    }
+
+    private void write(final byte[] bytes) throws IOException {
+        if (bytes.length > buffer.remaining()) {
+            flush();
+        }
+        if (bytes.length > buffer.capacity()) {
+            writeFully(ByteBuffer.wrap(bytes));
+        } else {
+            buffer.put(bytes);
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(final ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            writtenBytes.addAndGet(channel.write(bytes));
+        }
+    }
+
+    private void open() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+    }
+
+    /**
+     * Renames the file with the suffix '.1', shifting the older files and deleting the oldest one.
+     */
+    private void rotate() throws IOException {
+        close();
+        if (maxFiles == 0) {
+            Files.delete(file);
+        } else {
+            Files.deleteIfExists(rotated(maxFiles));
+            for (int i = maxFiles - 1; i > 0; i--) {
+                if (Files.exists(rotated(i))) {
+                    Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        rotations.incrementAndGet();
+    }
+
+    private Path rotated(final int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private static void appendString(final StringBuilder builder, final String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+}
@@ -0,0 +1,297 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling.aws.cloudwatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import com.tomtom.cloud.recycling.DeadbandFilter;
+import com.tomtom.cloud.recycling.DimensionSet;
+import com.tomtom.cloud.recycling.DistributionMetric;
+import com.tomtom.cloud.recycling.HistogramSnapshot;
+import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricStatistics;
+import com.tomtom.cloud.recycling.MetricUnit;
+import com.tomtom.cloud.recycling.PublishingStatistics;
+import com.tomtom.cloud.recycling.StatisticsMetric;
+
+/**
+ * Reusable PutMetricData requests, refilled with the current data of the metrics on every publishing.
+ * <p>
+ * The same datum instance is kept for every metric name and dimension set, and the requests and their datum lists are
+ * kept across publishings, so that a steady-state publishing only allocates the boxes of the values that changed.
+ * The dimensions of a datum are set once, when it is created. When several metrics or counts of a publishing share
+ * a name and dimensions, the first one uses the kept datum and the others get datums of their own, so that every
+ * value is sent. The requests are only valid until the next
+ * {@link #fill(List, Map, DeadbandFilter, PublishingStatistics)}, which makes a buffer suitable for a publisher
+ * sending its requests synchronously, one publishing at a time. The data is read the same way as
+ * {@link MetricDataRequests#toData(List, DimensionSet, DeadbandFilter)}, including units and timestamps, whose dates
+ * are kept and reset as well.
+ */
+final class MetricDataBuffer {
+
+    private final String namespace;
+
+    private final int batchSize;
+
+    private static final String COUNT_UNIT = MetricUnit.COUNT.toString();
+
+    /**
+     * The datums, by dimension set and metric name.
+     */
+    private final Map<DimensionSet, Map<String, Slot>> dataPoints = new HashMap<>();
+
+    private final List<PutMetricDataRequest> requests = new ArrayList<>();
+
+    private int requestCount;
+
+    /**
+     * Number of fills so far, which tells the datums already used by the current fill.
+     */
+    private int fillCount;
+
+    /**
+     * The time of the current fill, stamped on the datums of metrics that do not read their values ahead.
+     */
+    private long now;
+
+    /**
+     * Dimensions of every datum, next to the dimensions of its metric.
+     */
+    private DimensionSet dimensions = DimensionSet.EMPTY;
+
+    /**
+     * Creates an empty buffer.
+     *
+     * @param namespace the namespace where the metrics are published
+     * @param batchSize maximum number of datums per request
+     */
+    MetricDataBuffer(final String namespace, final int batchSize) {
+        this.namespace = namespace;
+        this.batchSize = MetricDataRequests.checkBatchSize(batchSize);
+    }
+
+    /**
+     * Sets the dimensions of every datum, dropping the datums created with the previous ones.
+     *
+     * @param dimensions the dimensions
+     */
+    void setDimensions(final DimensionSet dimensions) {
+        this.dimensions = dimensions;
+        dataPoints.clear();
+    }
+
+    /**
+     * Replaces the content of the requests with the current data of the metrics.
+     *
+     * @param metrics              metrics to read the values from
+     * @param filter               suppresses the values of metrics that did not change enough, null to send every
+     *                             value
+     * @param publishingStatistics records the time spent reading values, null to not measure it
+     * @return the number of requests filled, none when there is no datum to send
+     */
+    int fill(final List<Metric> metrics, final DeadbandFilter filter, final PublishingStatistics publishingStatistics) {
+        return fill(metrics, Collections.emptyMap(), filter, publishingStatistics);
+    }
+
+    /**
+     * Replaces the content of the requests with the current data of the metrics and counts. Every count is sent as
+     * a datum of its own, with its tags as dimensions.
+     *
+     * @param metrics              metrics to read the values from
+     * @param counts               suppliers of counts by tags, by metric name
+     * @param filter               suppresses the values of metrics that did not change enough, null to send every
+     *                             value
+     * @param publishingStatistics records the time spent reading values, null to not measure it
+     * @return the number of requests filled, none when there is no datum to send
+     */
+    int fill(final List<Metric> metrics,
+             final Map<String, ? extends Supplier<? extends Map<Map<String, String>, ? extends Number>>> counts,
+             final DeadbandFilter filter, final PublishingStatistics publishingStatistics) {
+        requestCount = 0;
+        fillCount++;
+        now = System.currentTimeMillis();
+        // indexed, as the lists of metrics are array-backed and an iterator would be allocated on every publishing
+        for (int i = 0; i < metrics.size(); i++) {
+            final Metric metric = metrics.get(i);
+            final DimensionSet metricDimensions = DimensionSet.of(metric);
+            final String unit = MetricDataRequests.unit(metric);
+            final long timestamp = MetricDataRequests.timestamp(metric, now);
+            if (metric instanceof StatisticsMetric) {
+                final MetricStatistics statistics = ((StatisticsMetric) metric).drain();
+                if (!statistics.isEmpty() && MetricDataRequests.isValid(statistics)) {
+                    add(statisticsDatum(metric.getName(), metricDimensions, statistics), unit, timestamp);
+                }
+            } else if (metric instanceof DistributionMetric) {
+                addHistogramData((DistributionMetric) metric, metricDimensions, unit, timestamp);
+            } else {
+                final double value;
+                if (publishingStatistics == null) {
+                    value = metric.getValue();
+                } else {
+                    final long start = System.nanoTime();
+                    value = metric.getValue();
+                    publishingStatistics.recordValueRead(System.nanoTime() - start);
+                }
+                if (MetricDataRequests.isValid(value)
+                        && (filter == null || filter.shouldPublish(metric.getName(), metricDimensions, value))) {
+                    add(valueDatum(metric.getName(), metricDimensions, value), unit, timestamp);
+                }
+            }
+        }
+        for (final Map.Entry<String, ? extends Supplier<? extends Map<Map<String, String>, ? extends Number>>> counter
+                : counts.entrySet()) {
+            for (final Map.Entry<Map<String, String>, ? extends Number> count : counter.getValue().get().entrySet()) {
+                add(valueDatum(counter.getKey(), DimensionSet.of(count.getKey()), count.getValue().doubleValue()),
+                        COUNT_UNIT, now);
+            }
+        }
+        return requestCount;
+    }
+
+    /**
+     * Returns a request filled by the last {@link #fill(List, DeadbandFilter, PublishingStatistics)}.
+     *
+     * @param index index of the request, lower than the number of requests filled
+     * @return the request
+     */
+    PutMetricDataRequest getRequest(final int index) {
+        if (index >= requestCount) {
+            throw new IndexOutOfBoundsException("Request " + index + " of " + requestCount);
+        }
+        return requests.get(index);
+    }
+
+    /**
+     * Returns the number of distinct datums kept for reuse.
+     *
+     * @return number of datums
+     */
+    int getDatumCount() {
+        int count = 0;
+        for (final Map<String, Slot> byName : dataPoints.values()) {
+            count += byName.size();
+        }
+        return count;
+    }
+
+    private void addHistogramData(final DistributionMetric metric, final DimensionSet metricDimensions,
+                                  final String unit, final long timestamp) {
+        final HistogramSnapshot snapshot = metric.snapshotAndReset();
+        if (snapshot.isEmpty()) {
+            return;
+        }
+        add(statisticsDatum(metric.getName(), metricDimensions, snapshot.toStatistics()), unit, timestamp);
+        for (int i = 0; i < metric.getPercentileCount(); i++) {
+            add(valueDatum(metric.getPercentileName(i), metricDimensions,
+                    snapshot.getValueAtPercentile(metric.getPercentile(i))), unit, timestamp);
+        }
+    }
+
+    private void add(final MetricDatum dataPoint, final String unit, final long timestamp) {
+        List<MetricDatum> batch = requestCount == 0 ? null : requests.get(requestCount - 1).getMetricData();
+        if (batch == null || batch.size() == batchSize) {
+            if (requestCount == requests.size()) {
+                requests.add(new PutMetricDataRequest().withNamespace(namespace));
+            }
+            batch = requests.get(requestCount++).getMetricData();
+            batch.clear();
+        }
+        dataPoint.setUnit(unit);
+        if (dataPoint.getTimestamp() == null) {
+            dataPoint.setTimestamp(new Date(timestamp));
+        } else {
+            dataPoint.getTimestamp().setTime(timestamp);
+        }
+        batch.add(dataPoint);
+    }
+
+    private MetricDatum valueDatum(final String name, final DimensionSet metricDimensions, final double value) {
+        final MetricDatum dataPoint = datum(name, metricDimensions);
+        dataPoint.setStatisticValues(null);
+        dataPoint.setValue(box(dataPoint.getValue(), value));
+        return dataPoint;
+    }
+
+    private MetricDatum statisticsDatum(final String name, final DimensionSet metricDimensions,
+                                        final MetricStatistics statistics) {
+        final MetricDatum dataPoint = datum(name, metricDimensions);
+        StatisticSet statisticSet = dataPoint.getStatisticValues();
+        if (statisticSet == null) {
+            statisticSet = new StatisticSet();
+            dataPoint.setStatisticValues(statisticSet);
+        }
+        dataPoint.setValue(null);
+        statisticSet.setSampleCount(box(statisticSet.getSampleCount(), statistics.getSampleCount()));
+        statisticSet.setSum(box(statisticSet.getSum(), statistics.getSum()));
+        statisticSet.setMinimum(box(statisticSet.getMinimum(), statistics.getMinimum()));
+        statisticSet.setMaximum(box(statisticSet.getMaximum(), statistics.getMaximum()));
+        return dataPoint;
+    }
+
+    /**
+     * Boxes a value, reusing the previous box of an unchanged value.
+     */
+    private static Double box(final Double previous, final double value) {
+        return previous != null && Double.doubleToLongBits(previous) == Double.doubleToLongBits(value)
+                ? previous : Double.valueOf(value);
+    }
+
+    private MetricDatum datum(final String name, final DimensionSet metricDimensions) {
+        Map<String, Slot> byName = dataPoints.get(metricDimensions);
+        if (byName == null) {
+            byName = new HashMap<>();
+            dataPoints.put(metricDimensions, byName);
+        }
+        Slot slot = byName.get(name);
+        if (slot == null) {
+            slot = new Slot(new MetricDatum().withMetricName(name)
+                    .withDimensions(MetricDataRequests.toDimensions(dimensions.with(metricDimensions))));
+            byName.put(name, slot);
+        }
+        if (slot.lastFill == fillCount) {
+            // the kept datum already carries a value of this fill, which must not be overwritten
+            return new MetricDatum().withMetricName(name).withDimensions(slot.dataPoint.getDimensions());
+        }
+        slot.lastFill = fillCount;
+        return slot.dataPoint;
+    }
+
+    /**
+     * The datum kept for a metric name and dimension set.
+     */
+    private static final class Slot {
+
+        private final MetricDatum dataPoint;
+
+        /**
+         * The last fill that used the datum.
+         */
+        private int lastFill;
+
+        Slot(final MetricDatum dataPoint) {
+            this.dataPoint = dataPoint;
+        }
+    }
+}
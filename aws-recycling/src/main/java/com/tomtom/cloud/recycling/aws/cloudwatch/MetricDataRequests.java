@@ -0,0 +1,411 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling.aws.cloudwatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import com.tomtom.cloud.recycling.DeadbandFilter;
+import com.tomtom.cloud.recycling.DimensionSet;
+import com.tomtom.cloud.recycling.DistributionMetric;
+import com.tomtom.cloud.recycling.HistogramSnapshot;
+import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricSpool;
+import com.tomtom.cloud.recycling.MetricStatistics;
+import com.tomtom.cloud.recycling.MetricUnit;
+import com.tomtom.cloud.recycling.RetryPolicy;
+import com.tomtom.cloud.recycling.SpooledDatum;
+import com.tomtom.cloud.recycling.StatisticsMetric;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds PutMetricData requests out of metrics, shared by the CloudWatch publishers.
+ */
+final class MetricDataRequests {
+
+    /**
+     * The maximum number of datums CloudWatch accepts in a single PutMetricData request.
+     */
+    static final int MAX_BATCH_SIZE = 20;
+
+    /**
+     * The maximum age of a datum CloudWatch accepts, older spooled datums are dropped rather than replayed.
+     */
+    static final long MAX_DATUM_AGE_MILLIS = TimeUnit.DAYS.toMillis(14);
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricDataRequests.class);
+
+    private MetricDataRequests() {
+    }
+
+    /**
+     * Validates the number of datums to pack into a single request.
+     *
+     * @param batchSize requested batch size
+     * @return the batch size
+     */
+    static int checkBatchSize(final int batchSize) {
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("batchSize must be between 1 and " + MAX_BATCH_SIZE + ": " + batchSize);
+        }
+        return batchSize;
+    }
+
+    /**
+     * Creates the requests carrying the current data of the metrics, at most {@code batchSize} datums each.
+     *
+     * @param namespace  the namespace where the metrics are published
+     * @param metrics    metrics to read the values from
+     * @param dimensions dimensions of every datum, next to the dimensions of its metric
+     * @param batchSize  maximum number of datums per request
+     * @param filter     suppresses the values of metrics that did not change enough, null to send every value
+     * @return the requests, none when there is no datum to send
+     */
+    static List<PutMetricDataRequest> toRequests(final String namespace, final List<Metric> metrics,
+                                                 final DimensionSet dimensions, final int batchSize,
+                                                 final DeadbandFilter filter) {
+        return toRequests(namespace, metrics, Collections.emptyMap(), dimensions, batchSize, filter);
+    }
+
+    /**
+     * Creates the requests carrying the current data of the metrics and counts, at most {@code batchSize} datums
+     * each. Every count is sent as a datum of its own, with its tags as dimensions.
+     *
+     * @param namespace  the namespace where the metrics are published
+     * @param metrics    metrics to read the values from
+     * @param counts     suppliers of counts by tags, by metric name
+     * @param dimensions dimensions of every datum, next to the dimensions of its metric or the tags of its count
+     * @param batchSize  maximum number of datums per request
+     * @param filter     suppresses the values of metrics that did not change enough, null to send every value
+     * @return the requests, none when there is no datum to send
+     */
+    static List<PutMetricDataRequest> toRequests(
+            final String namespace, final List<Metric> metrics,
+            final Map<String, ? extends Supplier<? extends Map<Map<String, String>, ? extends Number>>> counts,
+            final DimensionSet dimensions, final int batchSize, final DeadbandFilter filter) {
+        final List<MetricDatum> dataPoints = toData(metrics, dimensions, filter);
+        final Date now = new Date();
+        for (final Map.Entry<String, ? extends Supplier<? extends Map<Map<String, String>, ? extends Number>>> counter
+                : counts.entrySet()) {
+            for (final Map.Entry<Map<String, String>, ? extends Number> count : counter.getValue().get().entrySet()) {
+                final DimensionSet countDimensions = dimensions.with(DimensionSet.of(count.getKey()));
+                dataPoints.add(new MetricDatum().withMetricName(counter.getKey())
+                        .withValue(count.getValue().doubleValue()).withUnit(MetricUnit.COUNT.toString())
+                        .withTimestamp(now).withDimensions(toDimensions(countDimensions)));
+            }
+        }
+        return partition(namespace, dataPoints, batchSize);
+    }
+
+    /**
+     * Packs datums into requests, at most {@code batchSize} datums each.
+     *
+     * @param namespace  the namespace where the metrics are published
+     * @param dataPoints datums to send
+     * @param batchSize  maximum number of datums per request
+     * @return the requests, none when there is no datum to send
+     */
+    static List<PutMetricDataRequest> partition(final String namespace, final List<MetricDatum> dataPoints,
+                                                final int batchSize) {
+        final List<PutMetricDataRequest> requests = new ArrayList<>((dataPoints.size() + batchSize - 1) / batchSize);
+        for (int from = 0; from < dataPoints.size(); from += batchSize) {
+            requests.add(new PutMetricDataRequest().withNamespace(namespace)
+                    .withMetricData(dataPoints.subList(from, Math.min(from + batchSize, dataPoints.size()))));
+        }
+        return requests;
+    }
+
+    /**
+     * Reads the current data of the metrics.
+     * <p>
+     * {@link StatisticsMetric}s are drained and sent as a statistic set. {@link DistributionMetric}s are sent as a
+     * statistic set plus one datum per percentile. Both are left out when no value was recorded since the
+     * previous publishing. Any other metric results in a single datum holding its value, unless the filter
+     * suppresses it.
+     * <p>
+     * Every datum carries the dimensions and the unit of its metric, and the time its value was read, which is the
+     * time of this call unless the metric read it ahead.
+     *
+     * @param metrics    metrics to read the values from
+     * @param dimensions dimensions of every datum, next to the dimensions of its metric
+     * @param filter     suppresses the values of metrics that did not change enough, null to send every value
+     * @return the datums
+     */
+    static List<MetricDatum> toData(final List<Metric> metrics, final DimensionSet dimensions,
+                                    final DeadbandFilter filter) {
+        final List<MetricDatum> dataPoints = new ArrayList<>(metrics.size());
+        final long now = System.currentTimeMillis();
+        for (final Metric metric : metrics) {
+            final int from = dataPoints.size();
+            if (metric instanceof StatisticsMetric) {
+                final MetricStatistics statistics = ((StatisticsMetric) metric).drain();
+                if (!statistics.isEmpty() && isValid(statistics)) {
+                    dataPoints.add(new MetricDatum()
+                            .withMetricName(metric.getName()).withStatisticValues(toStatisticSet(statistics)));
+                }
+            } else if (metric instanceof DistributionMetric) {
+                addHistogramData(dataPoints, (DistributionMetric) metric);
+            } else {
+                final double value = metric.getValue();
+                if (isValid(value)
+                        && (filter == null || filter.shouldPublish(metric.getName(), DimensionSet.of(metric), value))) {
+                    dataPoints.add(new MetricDatum().withMetricName(metric.getName()).withValue(value));
+                }
+            }
+            final List<Dimension> metricDimensions = toDimensions(dimensions.with(DimensionSet.of(metric)));
+            for (int i = from; i < dataPoints.size(); i++) {
+                dataPoints.get(i).withUnit(unit(metric)).withTimestamp(new Date(timestamp(metric, now)))
+                        .withDimensions(metricDimensions);
+            }
+        }
+        return dataPoints;
+    }
+
+    /**
+     * Tells whether CloudWatch accepts a value: a NaN or infinite value fails the whole request it is part of.
+     *
+     * @param value the value
+     * @return true when the value is neither NaN nor infinite
+     */
+    static boolean isValid(final double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    /**
+     * Tells whether CloudWatch accepts a statistic set.
+     *
+     * @param statistics the statistics
+     * @return true when the sum, minimum and maximum are neither NaN nor infinite
+     */
+    static boolean isValid(final MetricStatistics statistics) {
+        return isValid(statistics.getSum()) && isValid(statistics.getMinimum()) && isValid(statistics.getMaximum());
+    }
+
+    /**
+     * Creates the CloudWatch dimensions of a set.
+     *
+     * @param dimensions the dimensions
+     * @return the dimensions, sorted by name
+     */
+    static List<Dimension> toDimensions(final DimensionSet dimensions) {
+        final List<Dimension> result = new ArrayList<>(dimensions.size());
+        for (final Map.Entry<String, String> dimension : dimensions.asMap().entrySet()) {
+            result.add(new Dimension().withName(dimension.getKey()).withValue(dimension.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the CloudWatch unit of a metric.
+     *
+     * @param metric the metric
+     * @return the unit, null when the metric has none
+     */
+    static String unit(final Metric metric) {
+        final MetricUnit unit = metric.getUnit();
+        return unit == null || unit == MetricUnit.NONE ? null : unit.toString();
+    }
+
+    /**
+     * Returns the time the value of a metric was read.
+     *
+     * @param metric the metric
+     * @param now    the time of reading metrics that do not read their values ahead
+     * @return milliseconds since the epoch
+     */
+    static long timestamp(final Metric metric, final long now) {
+        final long timestamp = metric.getTimestamp();
+        return timestamp == 0 ? now : timestamp;
+    }
+
+    /**
+     * Tells whether a failed request may succeed when sent again: CloudWatch throttled it or failed with a server
+     * error, or it did not get through because of an I/O error. Requests CloudWatch rejected, e.g. with
+     * InvalidParameterValue, fail again.
+     *
+     * @param e the failure
+     * @return true when the request is worth sending again
+     */
+    static boolean isRetryable(final Exception e) {
+        if (e instanceof AmazonServiceException) {
+            final AmazonServiceException serviceException = (AmazonServiceException) e;
+            return RetryUtils.isThrottlingException(serviceException) || serviceException.getStatusCode() >= 500;
+        }
+        return RetryPolicy.isTransient(e);
+    }
+
+    /**
+     * Tells whether CloudWatch rejected a request because of its content, e.g. with InvalidParameterValue, in which
+     * case sending its datums again fails again. Throttled and unauthorized requests are not rejected.
+     *
+     * @param e the failure
+     * @return true when the datums of the request are not worth keeping
+     */
+    static boolean isRejected(final Exception e) {
+        if (!(e instanceof AmazonServiceException)) {
+            return false;
+        }
+        final AmazonServiceException serviceException = (AmazonServiceException) e;
+        final int status = serviceException.getStatusCode();
+        return status >= 400 && status < 500 && status != 401 && status != 403
+                && !RetryUtils.isThrottlingException(serviceException);
+    }
+
+    /**
+     * Returns the names of the metrics carried by a request.
+     *
+     * @param request the request
+     * @return metric names
+     */
+    static List<String> metricNames(final PutMetricDataRequest request) {
+        final List<String> names = new ArrayList<>(request.getMetricData().size());
+        for (final MetricDatum dataPoint : request.getMetricData()) {
+            names.add(dataPoint.getMetricName());
+        }
+        return names;
+    }
+
+    /**
+     * Keeps the datums of a failed request in a spool. Datums without a timestamp are stamped with the time of
+     * the failure, so that they are attributed to the right period when replayed.
+     *
+     * @param spool   the spool
+     * @param request the failed request
+     * @return number of datums dropped because the spool is full
+     */
+    static int spool(final MetricSpool spool, final PutMetricDataRequest request) {
+        final long now = System.currentTimeMillis();
+        int dropped = 0;
+        for (final MetricDatum dataPoint : request.getMetricData()) {
+            if (!spool.append(toSpooledDatum(dataPoint, now))) {
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Takes the datums of the next replay out of a spool, skipping the data points CloudWatch no longer accepts.
+     *
+     * @param spool     the spool
+     * @param batchSize maximum number of datums
+     * @return the datums, empty once the spool is empty
+     */
+    static List<MetricDatum> pollReplayData(final MetricSpool spool, final int batchSize) {
+        final long now = System.currentTimeMillis();
+        List<MetricDatum> dataPoints = Collections.emptyList();
+        int expired = 0;
+        while (dataPoints.isEmpty() && !spool.isEmpty()) {
+            final List<SpooledDatum> datums = spool.poll(batchSize);
+            dataPoints = toReplayData(datums, now);
+            expired += datums.size() - dataPoints.size();
+        }
+        if (expired > 0) {
+            LOG.warn("Dropped {} spooled datum(s) older than Amazon CloudWatch accepts", expired);
+        }
+        return dataPoints;
+    }
+
+    /**
+     * Creates the datums replaying spooled data points, with their original timestamps. Data points older than
+     * {@link #MAX_DATUM_AGE_MILLIS} are left out, as CloudWatch would reject the whole request.
+     *
+     * @param datums spooled data points
+     * @param now    current time in milliseconds
+     * @return the datums
+     */
+    static List<MetricDatum> toReplayData(final List<SpooledDatum> datums, final long now) {
+        final List<MetricDatum> dataPoints = new ArrayList<>(datums.size());
+        for (final SpooledDatum datum : datums) {
+            if (now - datum.getTimestamp() > MAX_DATUM_AGE_MILLIS) {
+                continue;
+            }
+            final MetricDatum dataPoint = new MetricDatum()
+                    .withMetricName(datum.getName()).withTimestamp(new Date(datum.getTimestamp()))
+                    .withDimensions(toDimensions(datum.getDimensions()))
+                    .withUnit(datum.getUnit() == MetricUnit.NONE ? null : datum.getUnit().toString());
+            if (datum.isSingleValue()) {
+                dataPoint.setValue(datum.getStatistics().getSum());
+            } else {
+                dataPoint.setStatisticValues(toStatisticSet(datum.getStatistics()));
+            }
+            dataPoints.add(dataPoint);
+        }
+        return dataPoints;
+    }
+
+    private static SpooledDatum toSpooledDatum(final MetricDatum dataPoint, final long now) {
+        final long timestamp = dataPoint.getTimestamp() == null ? now : dataPoint.getTimestamp().getTime();
+        final DimensionSet dimensions = toDimensionSet(dataPoint.getDimensions());
+        final MetricUnit unit = MetricUnit.fromString(dataPoint.getUnit());
+        final StatisticSet statistics = dataPoint.getStatisticValues();
+        if (statistics == null) {
+            final double value = dataPoint.getValue();
+            return new SpooledDatum(dataPoint.getMetricName(), dimensions, unit, timestamp,
+                    new MetricStatistics(1, value, value, value));
+        }
+        return new SpooledDatum(dataPoint.getMetricName(), dimensions, unit, timestamp, new MetricStatistics(
+                statistics.getSampleCount().longValue(), statistics.getSum(),
+                statistics.getMinimum(), statistics.getMaximum()));
+    }
+
+    private static DimensionSet toDimensionSet(final List<Dimension> dimensions) {
+        if (dimensions == null || dimensions.isEmpty()) {
+            return DimensionSet.EMPTY;
+        }
+        final Map<String, String> values = new HashMap<>(dimensions.size() * 2);
+        for (final Dimension dimension : dimensions) {
+            values.put(dimension.getName(), dimension.getValue());
+        }
+        return DimensionSet.of(values);
+    }
+
+    private static void addHistogramData(final List<MetricDatum> dataPoints, final DistributionMetric metric) {
+        final HistogramSnapshot snapshot = metric.snapshotAndReset();
+        if (snapshot.isEmpty()) {
+            return;
+        }
+        dataPoints.add(new MetricDatum()
+                .withMetricName(metric.getName()).withStatisticValues(toStatisticSet(snapshot.toStatistics())));
+        final double[] percentiles = metric.getPercentiles();
+        for (int i = 0; i < percentiles.length; i++) {
+            dataPoints.add(new MetricDatum()
+                    .withMetricName(metric.getPercentileName(i))
+                    .withValue(snapshot.getValueAtPercentile(percentiles[i])));
+        }
+    }
+
+    private static StatisticSet toStatisticSet(final MetricStatistics statistics) {
+        return new StatisticSet()
+                .withSampleCount((double) statistics.getSampleCount())
+                .withSum(statistics.getSum())
+                .withMinimum(statistics.getMinimum())
+                .withMaximum(statistics.getMaximum());
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling.aws.cloudwatch;
+
+import static com.tomtom.cloud.recycling.aws.cloudwatch.TestMetrics.metrics;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsync;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataResult;
+import com.tomtom.cloud.recycling.CircuitBreaker;
+import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricSpool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AwsAsyncMetricsPublisherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private AmazonCloudWatchAsync acwClient;
+
+    @Mock
+    private Future<PutMetricDataResult> future;
+
+    private final List<AsyncHandler<PutMetricDataRequest, PutMetricDataResult>> handlers = new ArrayList<>();
+
+    private AwsAsyncMetricsPublisher metricsPublisher;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        doAnswer(invocation -> {
+            handlers.add((AsyncHandler<PutMetricDataRequest, PutMetricDataResult>) invocation.getArguments()[1]);
+            return future;
+        }).when(acwClient).putMetricDataAsync(any(PutMetricDataRequest.class), any(AsyncHandler.class));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        metricsPublisher.shutdown();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldReportCompletionThroughCallback() throws Exception {
+        metricsPublisher = new AwsAsyncMetricsPublisher(metrics(40), "cloud", 10, acwClient, 20, 2);
+        metricsPublisher.publish();
+        verify(acwClient, times(2)).putMetricDataAsync(any(PutMetricDataRequest.class), any(AsyncHandler.class));
+        assertEquals(2, metricsPublisher.getInFlightRequests());
+
+        for (AsyncHandler<PutMetricDataRequest, PutMetricDataResult> handler : handlers) {
+            handler.onSuccess(null, new PutMetricDataResult());
+        }
+        assertEquals(0, metricsPublisher.getInFlightRequests());
+        assertEquals(2, metricsPublisher.getCompletedRequests());
+        assertEquals(0, metricsPublisher.getFailedPublishingRequests().size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldDropBatchesBeyondInFlightLimit() throws Exception {
+        metricsPublisher = new AwsAsyncMetricsPublisher(metrics(3), "cloud", 10, acwClient, 1, 1);
+        metricsPublisher.publish();
+        verify(acwClient, times(1)).putMetricDataAsync(any(PutMetricDataRequest.class), any(AsyncHandler.class));
+        assertEquals(2, metricsPublisher.getFailedPublishingRequests().size());
+    }
+
+    @Test
+    public void shouldAccountFailedRequest() throws Exception {
+        metricsPublisher = new AwsAsyncMetricsPublisher(metrics(2), "cloud", 10, acwClient, 20, 1);
+        metricsPublisher.publish();
+        handlers.get(0).onError(new Exception("test"));
+        assertEquals(0, metricsPublisher.getInFlightRequests());
+        assertEquals(2, metricsPublisher.getFailedPublishingRequests().size());
+    }
+
+    @Test
+    public void shouldCancelRequestAfterDeadline() throws Exception {
+        metricsPublisher = new AwsAsyncMetricsPublisher(metrics(1), "cloud", 1, acwClient, 20, 1);
+        metricsPublisher.publish();
+        verify(future, timeout(3000)).cancel(true);
+        assertEquals(1, metricsPublisher.getTimedOutRequests());
+        assertEquals(0, metricsPublisher.getInFlightRequests());
+
+        // a late response must not release the slot a second time
+        handlers.get(0).onSuccess(null, new PutMetricDataResult());
+        assertEquals(0, metricsPublisher.getCompletedRequests());
+        assertEquals(1, metricsPublisher.getMaxInFlightRequests() - metricsPublisher.getInFlightRequests());
+    }
+
+    @Test
+    public void shouldNotTakeTrialCallWithoutFreeSlot() throws Exception {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(1, 0);
+        metricsPublisher = new AwsAsyncMetricsPublisher(metrics(1), "cloud", 10, acwClient, 20, 1);
+        metricsPublisher.setCircuitBreaker(circuitBreaker);
+        metricsPublisher.publish();
+        circuitBreaker.recordFailure();
+
+        // the only slot is taken, so the half-open breaker must keep its trial call for a later publishing
+        metricsPublisher.publish();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertEquals(0, circuitBreaker.getRejectedCalls());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldReplaySpooledDatumsAfterSuccessfulRequest() throws Exception {
+        try (MetricSpool spool = new MetricSpool(folder.newFile().toPath(), 4096)) {
+            metricsPublisher = new AwsAsyncMetricsPublisher(metrics(2), "cloud", 10, acwClient, 20, 2);
+            metricsPublisher.setSpool(spool);
+            metricsPublisher.publish();
+            handlers.get(0).onError(new Exception("test"));
+            assertEquals(2, metricsPublisher.getSpooledDatums());
+
+            // nothing is replayed until a request succeeds
+            metricsPublisher.publish();
+            verify(acwClient, times(2)).putMetricDataAsync(any(PutMetricDataRequest.class), any(AsyncHandler.class));
+            handlers.get(1).onSuccess(null, new PutMetricDataResult());
+
+            metricsPublisher.publish();
+            verify(acwClient, times(4)).putMetricDataAsync(any(PutMetricDataRequest.class), any(AsyncHandler.class));
+            assertEquals(0, metricsPublisher.getSpooledDatums());
+            assertEquals(2, metricsPublisher.getInFlightRequests());
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldSendCountsWithTheirTagsAsDimensions() throws Exception {
+        metricsPublisher = new AwsAsyncMetricsPublisher(new ArrayList<>(), "cloud", 10, acwClient, 20, 1);
+        metricsPublisher.addCounts("Failures",
+                () -> Collections.singletonMap(Collections.singletonMap("feed", "traffic"), 3L));
+        metricsPublisher.publish();
+
+        final ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+        verify(acwClient).putMetricDataAsync(request.capture(), any(AsyncHandler.class));
+        final MetricDatum dataPoint = request.getValue().getMetricData().get(0);
+        assertEquals("Failures", dataPoint.getMetricName());
+        assertEquals(3, dataPoint.getValue(), 0);
+        assertEquals("Count", dataPoint.getUnit());
+        assertEquals(Collections.singletonList(new Dimension().withName("feed").withValue("traffic")),
+                dataPoint.getDimensions());
+    }
+}
@@ -15,24 +15,51 @@
  */
 package com.tomtom.cloud.recycling.aws.cloudwatch;
 
+import static com.tomtom.cloud.recycling.aws.cloudwatch.TestMetrics.metrics;
 import static org.mockito.Mockito.*;
 import static org.junit.Assert.*;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataResult;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import com.tomtom.cloud.recycling.AggregatingMetric;
+import com.tomtom.cloud.recycling.CircuitBreaker;
+import com.tomtom.cloud.recycling.DeadbandFilter;
+import com.tomtom.cloud.recycling.DimensionSet;
+import com.tomtom.cloud.recycling.HistogramMetric;
+import com.tomtom.cloud.recycling.MetricUnit;
+import com.tomtom.cloud.recycling.OneTagMetricMap;
 import com.tomtom.cloud.recycling.MetricsPublisher;
 import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricCollector;
+import com.tomtom.cloud.recycling.MetricSpool;
+import com.tomtom.cloud.recycling.RetryPolicy;
+import com.tomtom.cloud.recycling.SpooledDatum;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 
 @RunWith(MockitoJUnitRunner.class)
 public class AwsMetricsPublisherTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Mock
     private AmazonCloudWatchClient acwClient;
 
@@ -57,6 +84,28 @@ public class AwsMetricsPublisherTest {
         verify(acwClient, times(1)).putMetricData(any(PutMetricDataRequest.class));
     }
 
+    @Test
+    public void shouldInstrumentPublishing() throws Exception {
+        final AwsMetricsPublisher publisher = new AwsMetricsPublisher(metrics(3), "cloud", 10, acwClient, 2);
+        doThrow(Exception.class).doReturn(null).when(acwClient).putMetricData(any(PutMetricDataRequest.class));
+        publisher.publish();
+        assertEquals(1, publisher.getSucceededRequests());
+        assertEquals(1, publisher.getFailedRequests());
+        assertEquals(3, publisher.getPublishedDatums());
+        assertEquals(1, publisher.getStatistics().getCycles());
+        final HistogramMetric datumsPerRequest = (HistogramMetric) publisher.getStatistics().getMetrics().get(2);
+        assertEquals("CloudWatchPublisher.DatumsPerRequest", datumsPerRequest.getName());
+        assertEquals(1.5, datumsPerRequest.getValue(), 0.1);
+    }
+
+    @Test
+    public void shouldPublishGivenMetricsOnly() throws Exception {
+        final List<Metric> due = metrics(3);
+        metricsPublisher.publish(due);
+        verify(acwClient, times(3)).putMetricData(any(PutMetricDataRequest.class));
+        verify(metric, never()).getValue();
+    }
+
     @Test
     public void shouldHaveOneFailedPublishingRequests() throws Exception {
         doThrow(Exception.class).when(acwClient).putMetricData(any(PutMetricDataRequest.class));
@@ -64,4 +113,391 @@ public class AwsMetricsPublisherTest {
         assertEquals(1, metricsPublisher.getFailedPublishingRequests().size());
     }
 
+    @Test
+    public void shouldSendOneRequestPerBatch() throws Exception {
+        final List<Metric> metrics = metrics(45);
+
+        new AwsMetricsPublisher(metrics, "cloud", 10, acwClient).publish();
+        verify(acwClient, times(45)).putMetricData(any(PutMetricDataRequest.class));
+
+        reset(acwClient);
+        new AwsMetricsPublisher(metrics, "cloud", 10, acwClient, 20).publish();
+        verify(acwClient, times(3)).putMetricData(any(PutMetricDataRequest.class));
+    }
+
+    @Test
+    public void shouldAccountEveryMetricOfFailedBatch() throws Exception {
+        doThrow(Exception.class).when(acwClient).putMetricData(any(PutMetricDataRequest.class));
+        final MetricsPublisher publisher = new AwsMetricsPublisher(metrics(5), "cloud", 10, acwClient, 20);
+        publisher.publish();
+        verify(acwClient, times(1)).putMetricData(any(PutMetricDataRequest.class));
+        assertEquals(5, publisher.getFailedPublishingRequests().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectBatchSizeAboveCloudWatchLimit() throws Exception {
+        new AwsMetricsPublisher(metrics(1), "cloud", 10, acwClient, AwsMetricsPublisher.MAX_BATCH_SIZE + 1);
+    }
+
+    @Test
+    public void shouldPublishAggregatingMetricAsStatisticSet() throws Exception {
+        final AggregatingMetric aggregatingMetric = new AggregatingMetric("Latency");
+        aggregatingMetric.record(2);
+        aggregatingMetric.record(6);
+        final MetricsPublisher publisher = new AwsMetricsPublisher(Arrays.<Metric>asList(aggregatingMetric, metric),
+                "cloud", 10, acwClient, 20);
+        publisher.publish();
+
+        final ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+        verify(acwClient).putMetricData(request.capture());
+        final MetricDatum datum = request.getValue().getMetricData().get(0);
+        assertEquals("Latency", datum.getMetricName());
+        assertNull(datum.getValue());
+        assertEquals(new StatisticSet().withSampleCount(2d).withSum(8d).withMinimum(2d).withMaximum(6d),
+                datum.getStatisticValues());
+        assertEquals(10d, request.getValue().getMetricData().get(1).getValue(), 0);
+    }
+
+    @Test
+    public void shouldSendUnitsAndTimestamps() throws Exception {
+        final AggregatingMetric latency = new AggregatingMetric("Latency", MetricUnit.MILLISECONDS, true);
+        latency.record(2);
+        final long before = System.currentTimeMillis();
+        final MetricsPublisher publisher = new AwsMetricsPublisher(Arrays.<Metric>asList(latency, metric),
+                "cloud", 10, acwClient, 20);
+        publisher.publish();
+
+        final ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+        verify(acwClient).putMetricData(request.capture());
+        final MetricDatum datum = request.getValue().getMetricData().get(0);
+        assertEquals("Milliseconds", datum.getUnit());
+        assertTrue(datum.getTimestamp().getTime() >= before);
+        assertNull(request.getValue().getMetricData().get(1).getUnit());
+        assertEquals(datum.getTimestamp(), request.getValue().getMetricData().get(1).getTimestamp());
+    }
+
+    @Test
+    public void shouldSendDimensionsAndCountTags() throws Exception {
+        final AggregatingMetric latency = new AggregatingMetric("Latency", MetricUnit.MILLISECONDS, false,
+                DimensionSet.of(Collections.singletonMap("feed", "flow")));
+        latency.record(2);
+        final OneTagMetricMap<String> failures = new OneTagMetricMap<>("feed");
+        failures.add("traffic", 3);
+        final AwsMetricsPublisher publisher = new AwsMetricsPublisher(Arrays.<Metric>asList(latency, metric),
+                "cloud", 10, acwClient, 20);
+        publisher.setDimensions(Collections.singletonMap("AutoScalingGroupName", "healer"));
+        publisher.addCounts("Failures", failures::getCounts);
+        publisher.publish();
+        latency.record(4);
+        publisher.publish();
+
+        final ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+        verify(acwClient, times(2)).putMetricData(request.capture());
+        final List<MetricDatum> data = request.getValue().getMetricData();
+        assertEquals(Arrays.asList(new Dimension().withName("AutoScalingGroupName").withValue("healer"),
+                new Dimension().withName("feed").withValue("flow")), data.get(0).getDimensions());
+        assertEquals(Collections.singletonList(new Dimension().withName("AutoScalingGroupName").withValue("healer")),
+                data.get(1).getDimensions());
+        assertEquals("Failures", data.get(2).getMetricName());
+        assertEquals("Count", data.get(2).getUnit());
+        assertEquals(3d, data.get(2).getValue(), 0);
+        assertEquals(Arrays.asList(new Dimension().withName("AutoScalingGroupName").withValue("healer"),
+                new Dimension().withName("feed").withValue("traffic")), data.get(2).getDimensions());
+    }
+
+    @Test
+    public void shouldSendCountsWhenRequestedOnly() throws Exception {
+        final OneTagMetricMap<String> failures = new OneTagMetricMap<>("feed");
+        failures.add("traffic", 3);
+        final AwsMetricsPublisher publisher = new AwsMetricsPublisher(Collections.<Metric>emptyList(), "cloud", 10,
+                acwClient, 20);
+        publisher.addCounts("Failures", failures::getCounts);
+        final ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+        publisher.publish(Collections.singletonList(metric));
+        verify(acwClient).putMetricData(request.capture());
+        assertEquals(1, request.getValue().getMetricData().size());
+
+        // the request is refilled, so it is checked after every publishing
+        publisher.publish(Collections.singletonList(metric), true);
+        verify(acwClient, times(2)).putMetricData(request.capture());
+        assertEquals(2, request.getValue().getMetricData().size());
+        assertEquals("Failures", request.getValue().getMetricData().get(1).getMetricName());
+    }
+
+    @Test
+    public void shouldSkipRequestWithoutRecordedValues() throws Exception {
+        final MetricsPublisher publisher = new AwsMetricsPublisher(
+                Arrays.<Metric>asList(new AggregatingMetric("Latency")), "cloud", 10, acwClient);
+        publisher.publish();
+        verify(acwClient, never()).putMetricData(any(PutMetricDataRequest.class));
+    }
+
+    @Test
+    public void shouldExpandHistogramIntoPercentileSeries() throws Exception {
+        final HistogramMetric histogram = new HistogramMetric("Latency");
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        new AwsMetricsPublisher(Arrays.<Metric>asList(histogram), "cloud", 10, acwClient, 20).publish();
+
+        final ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+        verify(acwClient).putMetricData(request.capture());
+        final List<MetricDatum> data = request.getValue().getMetricData();
+        assertEquals(4, data.size());
+        assertEquals(100d, data.get(0).getStatisticValues().getSampleCount(), 0);
+        assertEquals("Latency.p50", data.get(1).getMetricName());
+        assertEquals(50d, data.get(1).getValue(), 2);
+        assertEquals("Latency.p99", data.get(2).getMetricName());
+        assertEquals("Latency.p999", data.get(3).getMetricName());
+        assertEquals(100d, data.get(3).getValue(), 0);
+    }
+
+    @Test
+    public void shouldBatchByDatumsRatherThanMetrics() throws Exception {
+        final List<Metric> histograms = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            final HistogramMetric histogram = new HistogramMetric("Latency" + i);
+            histogram.record(i);
+            histograms.add(histogram);
+        }
+        // 6 histograms expand into 24 datums
+        new AwsMetricsPublisher(histograms, "cloud", 10, acwClient, 20).publish();
+        verify(acwClient, times(2)).putMetricData(any(PutMetricDataRequest.class));
+    }
+
+    @Test
+    public void shouldReplaySpooledDatumsOnceCloudWatchRecovers() throws Exception {
+        try (MetricSpool spool = new MetricSpool(folder.newFile().toPath(), 4096)) {
+            final AwsMetricsPublisher publisher = new AwsMetricsPublisher(metrics(3), "cloud", 10, acwClient, 20);
+            publisher.setSpool(spool);
+            doThrow(Exception.class).when(acwClient).putMetricData(any(PutMetricDataRequest.class));
+            publisher.publish();
+            assertEquals(3, publisher.getSpooledDatums());
+
+            reset(acwClient);
+            publisher.publish();
+            final ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+            verify(acwClient, times(2)).putMetricData(request.capture());
+            final List<MetricDatum> replayed = request.getAllValues().get(1).getMetricData();
+            assertEquals(3, replayed.size());
+            assertEquals("TestMetric2", replayed.get(2).getMetricName());
+            assertEquals(2d, replayed.get(2).getValue(), 0);
+            assertNotNull(replayed.get(2).getTimestamp());
+            assertEquals(0, publisher.getSpooledDatums());
+        }
+    }
+
+    @Test
+    public void shouldSendEveryValueOfMetricsSharingAName() throws Exception {
+        final List<Metric> metrics = metrics(2);
+        doReturn("TestMetric0").when(metrics.get(1)).getName();
+        final AwsMetricsPublisher publisher = new AwsMetricsPublisher(metrics, "cloud", 10, acwClient, 20);
+        publisher.publish();
+        publisher.publish();
+        final ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+        verify(acwClient, times(2)).putMetricData(request.capture());
+        final List<MetricDatum> data = request.getValue().getMetricData();
+        assertEquals(2, data.size());
+        assertNotSame(data.get(0), data.get(1));
+        assertEquals(0d, data.get(0).getValue(), 0);
+        assertEquals(1d, data.get(1).getValue(), 0);
+    }
+
+    @Test
+    public void shouldSkipValuesCloudWatchRejects() throws Exception {
+        final List<Metric> metrics = metrics(3);
+        doReturn(Double.NaN).when(metrics.get(0)).getValue();
+        doReturn(Double.POSITIVE_INFINITY).when(metrics.get(1)).getValue();
+        new AwsMetricsPublisher(metrics, "cloud", 10, acwClient, 20).publish();
+        final ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+        verify(acwClient).putMetricData(request.capture());
+        assertEquals(1, request.getValue().getMetricData().size());
+        assertEquals("TestMetric2", request.getValue().getMetricData().get(0).getMetricName());
+
+        final List<MetricDatum> data = MetricDataRequests.toData(metrics, DimensionSet.EMPTY, null);
+        assertEquals(1, data.size());
+        assertEquals("TestMetric2", data.get(0).getMetricName());
+    }
+
+    @Test
+    public void shouldDropSpooledDatumsOlderThanCloudWatchAccepts() throws Exception {
+        try (MetricSpool spool = new MetricSpool(folder.newFile().toPath(), 4096)) {
+            final long now = System.currentTimeMillis();
+            spool.append(new SpooledDatum("Expired", now - TimeUnit.DAYS.toMillis(15), 1));
+            spool.append(new SpooledDatum("Recent", now - TimeUnit.HOURS.toMillis(1), 2));
+            final AwsMetricsPublisher publisher = new AwsMetricsPublisher(metrics(1), "cloud", 10, acwClient, 20);
+            publisher.setSpool(spool);
+            publisher.publish();
+            final ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+            verify(acwClient, times(2)).putMetricData(request.capture());
+            final List<MetricDatum> replayed = request.getAllValues().get(1).getMetricData();
+            assertEquals(1, replayed.size());
+            assertEquals("Recent", replayed.get(0).getMetricName());
+            assertEquals(0, publisher.getSpooledDatums());
+        }
+    }
+
+    @Test
+    public void shouldReplaySpooledDatumsWithTheirUnit() throws Exception {
+        try (MetricSpool spool = new MetricSpool(folder.newFile().toPath(), 4096)) {
+            final List<Metric> metrics = metrics(1);
+            doReturn(MetricUnit.MILLISECONDS).when(metrics.get(0)).getUnit();
+            final AwsMetricsPublisher publisher = new AwsMetricsPublisher(metrics, "cloud", 10, acwClient, 20);
+            publisher.setSpool(spool);
+            doThrow(Exception.class).when(acwClient).putMetricData(any(PutMetricDataRequest.class));
+            publisher.publish();
+
+            reset(acwClient);
+            publisher.publish();
+            final ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+            verify(acwClient, times(2)).putMetricData(request.capture());
+            assertEquals("Milliseconds", request.getAllValues().get(1).getMetricData().get(0).getUnit());
+        }
+    }
+
+    @Test
+    public void shouldNotSpoolRejectedDatums() throws Exception {
+        try (MetricSpool spool = new MetricSpool(folder.newFile().toPath(), 4096)) {
+            final AmazonServiceException rejected = new AmazonServiceException("test");
+            rejected.setErrorCode("InvalidParameterValue");
+            rejected.setStatusCode(400);
+            doThrow(rejected).when(acwClient).putMetricData(any(PutMetricDataRequest.class));
+            final AwsMetricsPublisher publisher = new AwsMetricsPublisher(metrics(2), "cloud", 10, acwClient, 20);
+            publisher.setSpool(spool);
+            publisher.publish();
+            assertEquals(2, publisher.getFailedPublishingRequests().size());
+            assertEquals(0, publisher.getSpooledDatums());
+        }
+    }
+
+    @Test
+    public void shouldKeepSpooledDatumsWhileCloudWatchIsDown() throws Exception {
+        try (MetricSpool spool = new MetricSpool(folder.newFile().toPath(), 4096)) {
+            final AwsMetricsPublisher publisher = new AwsMetricsPublisher(metrics(2), "cloud", 10, acwClient, 20);
+            publisher.setSpool(spool);
+            doThrow(Exception.class).when(acwClient).putMetricData(any(PutMetricDataRequest.class));
+            publisher.publish();
+            publisher.publish();
+            verify(acwClient, times(2)).putMetricData(any(PutMetricDataRequest.class));
+            assertEquals(4, publisher.getSpooledDatums());
+        }
+    }
+
+    @Test
+    public void shouldRetryFailedRequest() throws Exception {
+        final AmazonServiceException throttled = new AmazonServiceException("test");
+        throttled.setErrorCode("Throttling");
+        throttled.setStatusCode(400);
+        final AmazonServiceException unavailable = new AmazonServiceException("test");
+        unavailable.setStatusCode(503);
+        when(acwClient.putMetricData(any(PutMetricDataRequest.class)))
+                .thenThrow(throttled)
+                .thenThrow(unavailable)
+                .thenReturn(new PutMetricDataResult());
+        final AwsMetricsPublisher publisher = new AwsMetricsPublisher(metrics(1), "cloud", 10, acwClient);
+        publisher.setRetryPolicy(new RetryPolicy(3, 0, 0));
+        publisher.publish();
+        verify(acwClient, times(3)).putMetricData(any(PutMetricDataRequest.class));
+        assertEquals(0, publisher.getFailedPublishingRequests().size());
+    }
+
+    @Test
+    public void shouldNotRetryRejectedRequest() throws Exception {
+        final AmazonServiceException rejected = new AmazonServiceException("test");
+        rejected.setErrorCode("InvalidParameterValue");
+        rejected.setStatusCode(400);
+        when(acwClient.putMetricData(any(PutMetricDataRequest.class))).thenThrow(rejected);
+        final AwsMetricsPublisher publisher = new AwsMetricsPublisher(metrics(1), "cloud", 10, acwClient);
+        publisher.setRetryPolicy(new RetryPolicy(3, 0, 0));
+        publisher.publish();
+        verify(acwClient, times(1)).putMetricData(any(PutMetricDataRequest.class));
+        assertEquals(1, publisher.getFailedPublishingRequests().size());
+    }
+
+    @Test
+    public void shouldStopPushingWhileCircuitBreakerIsOpen() throws Exception {
+        doThrow(Exception.class).when(acwClient).putMetricData(any(PutMetricDataRequest.class));
+        final AwsMetricsPublisher publisher = new AwsMetricsPublisher(metrics(3), "cloud", 10, acwClient);
+        publisher.setCircuitBreaker(new CircuitBreaker(2, 60_000));
+        publisher.publish();
+        publisher.publish();
+
+        verify(acwClient, times(2)).putMetricData(any(PutMetricDataRequest.class));
+        assertEquals("OPEN", publisher.getCircuitBreakerState());
+        assertEquals(4, publisher.getRejectedRequests());
+        assertEquals(2L, publisher.getFailedPublishingRequests().values().iterator().next().longValue());
+    }
+
+    @Test
+    public void shouldSuppressUnchangedGauges() throws Exception {
+        final AggregatingMetric latency = new AggregatingMetric("Latency");
+        final AwsMetricsPublisher publisher = new AwsMetricsPublisher(Arrays.<Metric>asList(metric, latency),
+                "cloud", 10, acwClient, 20);
+        publisher.setDeadbandFilter(new DeadbandFilter(0, 0, 10));
+        publisher.publish();
+        // the request is refilled by the next publishing
+        final ArgumentCaptor<PutMetricDataRequest> first = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+        verify(acwClient).putMetricData(first.capture());
+        assertEquals("TestMetric", first.getValue().getMetricData().get(0).getMetricName());
+        latency.record(1);
+        publisher.publish();
+
+        final ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+        verify(acwClient, times(2)).putMetricData(request.capture());
+        final List<MetricDatum> second = request.getAllValues().get(1).getMetricData();
+        assertEquals(1, second.size());
+        assertEquals("Latency", second.get(0).getMetricName());
+        assertEquals(1, publisher.getSuppressedDatums());
+    }
+
+    @Test
+    public void shouldPublishMetricsReadInTime() throws Exception {
+        final Metric slowMetric = new Metric() {
+            @Override
+            public String getName() {
+                return "SlowMetric";
+            }
+
+            @Override
+            public double getValue() {
+                try {
+                    Thread.sleep(10_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 0;
+            }
+        };
+        final MetricCollector collector = new MetricCollector(2, 10, 100);
+        try {
+            final AwsMetricsPublisher publisher = new AwsMetricsPublisher(Arrays.asList(slowMetric, metric),
+                    "cloud", 10, acwClient, 20);
+            publisher.setMetricCollector(collector);
+            publisher.publish();
+
+            final ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+            verify(acwClient).putMetricData(request.capture());
+            assertEquals(1, request.getValue().getMetricData().size());
+            assertEquals("TestMetric", request.getValue().getMetricData().get(0).getMetricName());
+            assertEquals(1, collector.getMissedValues().size());
+        } finally {
+            collector.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldRefillSameRequestsOnEveryPublishing() throws Exception {
+        final AwsMetricsPublisher publisher = new AwsMetricsPublisher(metrics(3), "cloud", 10, acwClient, 2);
+        publisher.publish();
+        publisher.publish();
+
+        final ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+        verify(acwClient, times(4)).putMetricData(request.capture());
+        final List<PutMetricDataRequest> requests = request.getAllValues();
+        assertSame(requests.get(0), requests.get(2));
+        assertSame(requests.get(1), requests.get(3));
+        assertSame(requests.get(0).getMetricData().get(0), requests.get(2).getMetricData().get(0));
+        assertEquals(1, requests.get(1).getMetricData().size());
+        assertEquals(2d, requests.get(1).getMetricData().get(0).getValue(), 0);
+    }
 }
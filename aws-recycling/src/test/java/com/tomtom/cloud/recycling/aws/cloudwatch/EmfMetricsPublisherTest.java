@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling.aws.cloudwatch;
+
+import static com.tomtom.cloud.recycling.aws.cloudwatch.TestMetrics.metric;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tomtom.cloud.recycling.AggregatingMetric;
+import com.tomtom.cloud.recycling.DimensionSet;
+import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricUnit;
+import com.tomtom.cloud.recycling.OneTagMetricMap;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EmfMetricsPublisherTest {
+
+    private static final long NOW = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private EmfMetricsPublisher publisher;
+
+    @After
+    public void tearDown() {
+        if (publisher != null) {
+            publisher.close();
+        }
+    }
+
+    @Test
+    public void shouldWriteMetricsAsEmbeddedMetricFormat() throws Exception {
+        final AggregatingMetric latency = new AggregatingMetric("latency");
+        latency.record(2);
+        latency.record(5.5);
+        final Path file = folder.getRoot().toPath().resolve("metrics.log");
+        publisher = new EmfMetricsPublisher(Arrays.asList(metric("queue \"size\"", 12), latency), "Healer", file,
+                Collections.singletonMap("InstanceId", "i-1"), 1024 * 1024, 1, () -> NOW);
+        publisher.publish();
+
+        final List<JsonNode> lines = read(file);
+        assertEquals(1, lines.size());
+        final JsonNode line = lines.get(0);
+        final JsonNode directive = line.get("_aws").get("CloudWatchMetrics").get(0);
+        assertEquals(NOW, line.get("_aws").get("Timestamp").asLong());
+        assertEquals("Healer", directive.get("Namespace").asText());
+        assertEquals("[[\"InstanceId\"]]", directive.get("Dimensions").toString());
+        assertEquals(5, directive.get("Metrics").size());
+        assertEquals("queue \"size\"", directive.get("Metrics").get(0).get("Name").asText());
+        assertEquals("i-1", line.get("InstanceId").asText());
+        assertEquals(12, line.get("queue \"size\"").asDouble(), 0);
+        assertEquals(2, line.get("latency.count").asDouble(), 0);
+        assertEquals(7.5, line.get("latency.sum").asDouble(), 0);
+        assertEquals(2, line.get("latency.min").asDouble(), 0);
+        assertEquals(5.5, line.get("latency.max").asDouble(), 0);
+        assertEquals(1, publisher.getWrittenLines());
+        assertEquals(Files.size(file), publisher.getWrittenBytes());
+    }
+
+    @Test
+    public void shouldDeclareUnitsAndHighResolution() throws Exception {
+        final AggregatingMetric latency = new AggregatingMetric("latency", MetricUnit.MILLISECONDS, true);
+        latency.record(3);
+        final Path file = folder.getRoot().toPath().resolve("metrics.log");
+        publisher = new EmfMetricsPublisher(Arrays.asList(latency, metric("ok", 1)), "Healer", file);
+        publisher.publish();
+
+        final JsonNode declarations = read(file).get(0).get("_aws").get("CloudWatchMetrics").get(0).get("Metrics");
+        assertEquals("{\"Name\":\"latency.count\",\"Unit\":\"Count\",\"StorageResolution\":1}",
+                declarations.get(0).toString());
+        assertEquals("{\"Name\":\"latency.sum\",\"Unit\":\"Milliseconds\",\"StorageResolution\":1}",
+                declarations.get(1).toString());
+        assertEquals("{\"Name\":\"ok\"}", declarations.get(4).toString());
+    }
+
+    @Test
+    public void shouldWriteCountTagsAsDimensions() throws Exception {
+        final OneTagMetricMap<String> failures = new OneTagMetricMap<>("feed");
+        failures.add("flow", 3);
+        final Path file = folder.getRoot().toPath().resolve("metrics.log");
+        publisher = new EmfMetricsPublisher(Collections.<Metric>emptyList(), "Healer", file,
+                Collections.singletonMap("InstanceId", "i-1"), 1024 * 1024, 1, () -> NOW);
+        publisher.addCounts("failures", failures::getCounts);
+        publisher.publish();
+
+        final List<JsonNode> lines = read(file);
+        assertEquals(1, lines.size());
+        final JsonNode line = lines.get(0);
+        assertEquals("[[\"InstanceId\",\"feed\"]]",
+                line.get("_aws").get("CloudWatchMetrics").get(0).get("Dimensions").toString());
+        assertEquals("flow", line.get("feed").asText());
+        assertEquals(3, line.get("failures").asLong());
+    }
+
+    @Test
+    public void shouldWriteMetricWithDimensionsInLineOfItsOwn() throws Exception {
+        final AggregatingMetric latency = new AggregatingMetric("latency", MetricUnit.NONE, false,
+                DimensionSet.of(Collections.singletonMap("feed", "flow")));
+        latency.record(1);
+        final Path file = folder.getRoot().toPath().resolve("metrics.log");
+        publisher = new EmfMetricsPublisher(Arrays.asList(latency, metric("ok", 1)), "Healer", file,
+                Collections.singletonMap("InstanceId", "i-1"), 1024 * 1024, 1, () -> NOW);
+        publisher.publish();
+
+        final List<JsonNode> lines = read(file);
+        assertEquals(2, lines.size());
+        assertEquals(1, lines.get(0).get("ok").asInt());
+        assertEquals("[[\"InstanceId\",\"feed\"]]",
+                lines.get(1).get("_aws").get("CloudWatchMetrics").get(0).get("Dimensions").toString());
+        assertEquals("flow", lines.get(1).get("feed").asText());
+        assertEquals(1, lines.get(1).get("latency.count").asInt());
+    }
+
+    @Test
+    public void shouldSplitLinesAtMaximumMetricCount() throws Exception {
+        final List<Metric> metrics = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            metrics.add(metric("metric" + i, i));
+        }
+        final Path file = folder.getRoot().toPath().resolve("metrics.log");
+        publisher = new EmfMetricsPublisher(metrics, "Healer", file);
+        publisher.publish();
+
+        final List<JsonNode> lines = read(file);
+        assertEquals(3, lines.size());
+        assertEquals(100, lines.get(0).get("_aws").get("CloudWatchMetrics").get(0).get("Metrics").size());
+        assertEquals(50, lines.get(2).get("_aws").get("CloudWatchMetrics").get(0).get("Metrics").size());
+        assertEquals(249, lines.get(2).get("metric249").asInt());
+    }
+
+    @Test
+    public void shouldRotateFile() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("metrics.log");
+        publisher = new EmfMetricsPublisher(Collections.singletonList(metric("ok", 1)), "Healer", file,
+                Collections.<String, String>emptyMap(), 1, 2, () -> NOW);
+        publisher.publish();
+        publisher.publish();
+        publisher.publish();
+
+        assertFalse(Files.exists(file));
+        assertTrue(Files.exists(file.resolveSibling("metrics.log.1")));
+        assertTrue(Files.exists(file.resolveSibling("metrics.log.2")));
+        assertFalse(Files.exists(file.resolveSibling("metrics.log.3")));
+        assertEquals(3, publisher.getRotations());
+
+        publisher.publish();
+        assertEquals(1, read(file.resolveSibling("metrics.log.1")).size());
+    }
+
+    @Test
+    public void shouldCountUnreadableMetric() throws Exception {
+        final Metric failing = mock(Metric.class);
+        doReturn("failing").when(failing).getName();
+        doThrow(new IllegalStateException("test")).when(failing).getValue();
+        final Path file = folder.getRoot().toPath().resolve("metrics.log");
+        publisher = new EmfMetricsPublisher(Arrays.asList(failing, metric("ok", 1)), "Healer", file);
+        publisher.publish();
+
+        assertEquals(1, read(file).get(0).get("ok").asInt());
+        assertEquals(1, publisher.getFailedPublishingRequests().size());
+    }
+
+    @Test
+    public void shouldCountFailedWrite() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("missing").resolve("metrics.log");
+        publisher = new EmfMetricsPublisher(Collections.singletonList(metric("ok", 1)), "Healer", file);
+        publisher.publish();
+
+        assertEquals(1, publisher.getFailedWrites());
+        assertEquals(0, publisher.getWrittenBytes());
+    }
+
+    private List<JsonNode> read(final Path file) throws Exception {
+        final List<JsonNode> lines = new ArrayList<>();
+        for (final String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lines.add(mapper.readTree(line));
+        }
+        return lines;
+    }
+}
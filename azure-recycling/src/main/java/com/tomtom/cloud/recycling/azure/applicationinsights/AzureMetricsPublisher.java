@@ -15,39 +15,119 @@
  */
 package com.tomtom.cloud.recycling.azure.applicationinsights;
 
+import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import com.microsoft.applicationinsights.TelemetryClient;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import com.tomtom.cloud.recycling.CircuitBreaker;
+import com.tomtom.cloud.recycling.DeadbandFilter;
+import com.tomtom.cloud.recycling.DimensionSet;
+import com.tomtom.cloud.recycling.DistributionMetric;
+import com.tomtom.cloud.recycling.HistogramSnapshot;
+import com.tomtom.cloud.recycling.MetricSpool;
+import com.tomtom.cloud.recycling.MetricStatistics;
 import com.tomtom.cloud.recycling.OneTagMetricMap;
+import com.tomtom.cloud.recycling.PublishingStatistics;
+import com.tomtom.cloud.recycling.RetryPolicy;
+import com.tomtom.cloud.recycling.SpooledDatum;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedMetric;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricCollector;
 import com.tomtom.cloud.recycling.MetricsPublisher;
+import com.tomtom.cloud.recycling.StatisticsMetric;
 
 /**
  * Class used for publishing metric data to Azure Application Insights.
  * <p>
+ * Data points carry the dimensions of their metrics as custom properties, next to the namespace and the dimensions
+ * set for every data point, e.g. the instance. Counts added through {@link #addCounts(String, Supplier)} are sent
+ * with their tags as properties, e.g. one data point per feed of a {@link OneTagMetricMap}. The properties of every
+ * dimension set are built once and shared by its data points.
+ * <p>
  * This class strictly belongs to 'azure' Spring profile and should be
  * instantiated only if such profile was activated.
  */
 @ManagedResource("Healer:component=worker,sub=applicationInsightsMetricsPublisher")
 public class AzureMetricsPublisher implements MetricsPublisher {
 
+    /**
+     * The maximum number of spooled data points replayed after a successful publishing.
+     */
+    static final int MAX_REPLAYED_DATUMS = 200;
+
+    /**
+     * The maximum age of a data point Application Insights accepts, older spooled data points are dropped rather than
+     * replayed.
+     */
+    static final long MAX_DATUM_AGE_MILLIS = TimeUnit.HOURS.toMillis(48);
+
     private static final Logger LOG = LoggerFactory.getLogger(AzureMetricsPublisher.class);
     private final String suffix;
     private final String namespace;
     private final TelemetryClient client;
     private final List<Metric> metrics;
-    private final Map<String, String> properties;
+    /**
+     * Properties of the data points, by the dimensions of their metrics.
+     */
+    private final ConcurrentMap<DimensionSet, Map<String, String>> properties = new ConcurrentHashMap<>();
+    /**
+     * Counts sent with their tags as properties, by metric name.
+     */
+    private final Map<String, Supplier<? extends Map<Map<String, String>, ? extends Number>>> counts =
+            Collections.synchronizedMap(new LinkedHashMap<>());
+    /**
+     * Dimensions of every data point, next to the dimensions of its metric.
+     */
+    private volatile DimensionSet dimensions = DimensionSet.EMPTY;
+    /**
+     * Metric names followed by the suffix, computed once per name rather than on every publishing.
+     */
+    private final ConcurrentMap<String, String> suffixedNames = new ConcurrentHashMap<>();
     /**
      * Book-keeping for the failed pushes.
      */
     private final OneTagMetricMap<String> failedPublishingRequests = new OneTagMetricMap<>("metricName");
+    /**
+     * Measures the cost of publishing.
+     */
+    private final PublishingStatistics publishingStatistics = new PublishingStatistics("ApplicationInsightsPublisher");
+    /**
+     * Optional spool keeping the data points of failed pushes until they can be replayed.
+     */
+    private MetricSpool spool;
+    /**
+     * Retries of a failing push, none by default.
+     */
+    private RetryPolicy retryPolicy = RetryPolicy.NONE;
+    /**
+     * Stops pushing while Application Insights keeps failing.
+     */
+    private CircuitBreaker circuitBreaker = new CircuitBreaker();
+    /**
+     * Optional change detection suppressing the values of metrics that did not change enough.
+     */
+    private DeadbandFilter deadbandFilter;
+    /**
+     * Optional collector reading the values of plain metrics in parallel.
+     */
+    private MetricCollector metricCollector;
+    /**
+     * Whether a push failed during the current publishing.
+     */
+    private boolean failed;
 
     /**
      * Constructor that should be used during system initialization, preferably in a configuration bean.
@@ -63,24 +143,392 @@ public class AzureMetricsPublisher implements MetricsPublisher {
         this.namespace = namespace;
         this.client = client;
         this.metrics = metrics;
-        properties = new HashMap<>();
-        properties.put("namespace", this.namespace);
+        for (final Metric metric : metrics) {
+            suffixed(metric.getName());
+            if (metric instanceof DistributionMetric) {
+                final DistributionMetric histogram = (DistributionMetric) metric;
+                for (int i = 0; i < histogram.getPercentileCount(); i++) {
+                    suffixed(histogram.getPercentileName(i));
+                }
+            }
+        }
     }
 
     @Override
     public void publish() {
-        for (Metric metric : metrics) {
-            final String name = metric.getName() + suffix;
+        publish(metrics, true);
+    }
+
+    @Override
+    public void publish(final List<Metric> metricsToPublish, final boolean withCounts) {
+        final long start = System.nanoTime();
+        failed = false;
+        for (Metric metric : collect(metricsToPublish)) {
+            final String name = suffixed(metric.getName());
             try {
-                client.trackMetric(name, metric.getValue(),
-                        1, metric.getValue(), metric.getValue(),
-                        properties);
+                final DimensionSet metricDimensions = DimensionSet.of(metric);
+                if (metric instanceof StatisticsMetric) {
+                    trackStatistics(name, metricDimensions, ((StatisticsMetric) metric).drain());
+                } else if (metric instanceof DistributionMetric) {
+                    trackHistogram(name, metricDimensions, (DistributionMetric) metric);
+                } else {
+                    final long readStart = System.nanoTime();
+                    final double value = metric.getValue();
+                    publishingStatistics.recordValueRead(System.nanoTime() - readStart);
+                    if (deadbandFilter == null || deadbandFilter.shouldPublish(name, metricDimensions, value)) {
+                        track(name, metricDimensions, value);
+                    }
+                }
             } catch (Exception e) {
                 failedPublishingRequests.increment(name);
-                LOG.error("Could not push MetricData for {} to Azure Application Insights because of: {}",
-                        name, e.getMessage(), e);
+                LOG.error("Could not read MetricData for {} because of: {}", name, e.getMessage(), e);
+            }
+        }
+        if (withCounts) {
+            synchronized (counts) {
+                for (final Map.Entry<String, Supplier<? extends Map<Map<String, String>, ? extends Number>>> counter
+                        : counts.entrySet()) {
+                    final String name = suffixed(counter.getKey());
+                    for (final Map.Entry<Map<String, String>, ? extends Number> count
+                            : counter.getValue().get().entrySet()) {
+                        track(name, DimensionSet.of(count.getKey()), count.getValue().doubleValue());
+                    }
+                }
             }
         }
+        if (!failed && spool != null && !spool.isEmpty()) {
+            replaySpool();
+        }
+        publishingStatistics.recordCycle(System.nanoTime() - start);
+    }
+
+    /**
+     * Sets the dimensions of every data point, e.g. the instance or the scale set.
+     *
+     * @param dimensions dimension values by name
+     */
+    public void setDimensions(final Map<String, String> dimensions) {
+        this.dimensions = DimensionSet.of(dimensions);
+        properties.clear();
+    }
+
+    /**
+     * Publishes counts, with their tags as properties.
+     *
+     * @param name   metric name, followed by the suffix when published
+     * @param counts supplies the counts by tags, e.g. {@code OneTagMetricMap::getCounts}
+     */
+    public void addCounts(final String name,
+                          final Supplier<? extends Map<Map<String, String>, ? extends Number>> counts) {
+        this.counts.put(name, counts);
+    }
+
+    /**
+     * Keeps the data points of failed pushes in a spool, and replays them after a publishing in which every
+     * push succeeded.
+     * Without a spool, the data points of a failed push are lost.
+     *
+     * @param spool the spool, or null to disable spooling
+     */
+    public void setSpool(final MetricSpool spool) {
+        this.spool = spool;
+    }
+
+    @ManagedAttribute
+    public int getSpooledDatums() {
+        return spool == null ? 0 : spool.size();
+    }
+
+    /**
+     * Sets the retries of a failing push. Only pushes that failed with an I/O error are retried. The retries of a data
+     * point happen before the circuit breaker is told about its failure.
+     *
+     * @param retryPolicy the retry policy
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Replaces the default circuit breaker, which opens after {@link CircuitBreaker#DEFAULT_FAILURE_THRESHOLD}
+     * consecutive failed pushes.
+     *
+     * @param circuitBreaker the circuit breaker
+     */
+    public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Sends the value of a plain metric only when the filter says it changed enough, or as a heartbeat.
+     * Aggregating and histogram metrics are always sent, since every interval carries new samples.
+     *
+     * @param deadbandFilter the filter, or null to send every value
+     */
+    public void setDeadbandFilter(final DeadbandFilter deadbandFilter) {
+        this.deadbandFilter = deadbandFilter;
+    }
+
+    /**
+     * Reads the values of plain metrics in parallel, each within a deadline, rather than one after another on the
+     * publishing thread.
+     *
+     * @param metricCollector the collector, or null to read values on the publishing thread
+     */
+    public void setMetricCollector(final MetricCollector metricCollector) {
+        this.metricCollector = metricCollector;
+    }
+
+    @ManagedAttribute
+    public long getSuppressedDatums() {
+        return deadbandFilter == null ? 0 : deadbandFilter.getSuppressedValues();
+    }
+
+    /**
+     * Returns the latency and outcome of the publishing, whose metrics can be published in a namespace of their own.
+     * Every data point is pushed in a request of its own.
+     *
+     * @return the statistics
+     */
+    public PublishingStatistics getStatistics() {
+        return publishingStatistics;
+    }
+
+    @ManagedAttribute
+    public long getSucceededRequests() {
+        return publishingStatistics.getSucceededRequests();
+    }
+
+    @ManagedAttribute
+    public long getFailedRequests() {
+        return publishingStatistics.getFailedRequests();
+    }
+
+    @ManagedAttribute
+    public long getLastPublishDurationMillis() {
+        return publishingStatistics.getLastCycleMillis();
+    }
+
+    /**
+     * Returns the total time spent reading metric values on the publishing thread.
+     *
+     * @return time in milliseconds
+     */
+    @ManagedAttribute
+    public long getValueReadMillis() {
+        return publishingStatistics.getValueReadMillis();
+    }
+
+    @ManagedAttribute
+    public String getCircuitBreakerState() {
+        return circuitBreaker.getState().name();
+    }
+
+    @ManagedAttribute
+    public long getRejectedRequests() {
+        return circuitBreaker.getRejectedCalls();
+    }
+
+    /**
+     * Sends the statistics of a {@link StatisticsMetric}, where the value of an aggregated metric is the sum
+     * of its samples. Nothing is sent for an interval without samples, or with NaN or infinite statistics.
+     */
+    private void trackStatistics(final String name, final DimensionSet metricDimensions,
+                                 final MetricStatistics statistics) {
+        if (!statistics.isEmpty() && isValid(statistics.getSum()) && isValid(statistics.getMinimum())
+                && isValid(statistics.getMaximum())) {
+            track(name, metricDimensions, statistics.getSampleCount(), statistics.getSum(), statistics.getMinimum(),
+                    statistics.getMaximum());
+        }
+    }
+
+    /**
+     * Sends the statistics of a {@link DistributionMetric} and one series per percentile, e.g. 'latency.p99' followed
+     * by the suffix. Nothing is sent for an interval without samples.
+     */
+    private void trackHistogram(final String name, final DimensionSet metricDimensions,
+                                final DistributionMetric metric) {
+        final HistogramSnapshot snapshot = metric.snapshotAndReset();
+        if (snapshot.isEmpty()) {
+            return;
+        }
+        trackStatistics(name, metricDimensions, snapshot.toStatistics());
+        for (int i = 0; i < metric.getPercentileCount(); i++) {
+            track(suffixed(metric.getPercentileName(i)), metricDimensions,
+                    snapshot.getValueAtPercentile(metric.getPercentile(i)));
+        }
+    }
+
+    private String suffixed(final String name) {
+        String suffixedName = suffixedNames.get(name);
+        if (suffixedName == null) {
+            suffixedName = name + suffix;
+            suffixedNames.put(name, suffixedName);
+        }
+        return suffixedName;
+    }
+
+    /**
+     * Sends a single value, unless it is NaN or infinite, which Application Insights does not accept.
+     */
+    private void track(final String name, final DimensionSet metricDimensions, final double value) {
+        if (isValid(value)) {
+            track(name, metricDimensions, 1, value, value, value);
+        }
+    }
+
+    private static boolean isValid(final double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    /**
+     * Returns the properties of the data points of metrics with the given dimensions, built once per dimension set.
+     */
+    private Map<String, String> properties(final DimensionSet metricDimensions) {
+        Map<String, String> result = properties.get(metricDimensions);
+        if (result == null) {
+            result = new HashMap<>(dimensions.with(metricDimensions).asMap());
+            result.put("namespace", namespace);
+            result = Collections.unmodifiableMap(result);
+            properties.putIfAbsent(metricDimensions, result);
+        }
+        return result;
+    }
+
+    /**
+     * Sends a data point of this publishing straight to the client. The data point is only turned into a spooled
+     * one when the push fails.
+     */
+    private void track(final String name, final DimensionSet metricDimensions, final long sampleCount,
+                       final double sum, final double minimum, final double maximum) {
+        if (!circuitBreaker.allowRequest()) {
+            markFailed(new SpooledDatum(name, metricDimensions, System.currentTimeMillis(),
+                    new MetricStatistics(sampleCount, sum, minimum, maximum)), true);
+            LOG.debug("Circuit breaker is open, skipped pushing MetricData to Azure Application Insights");
+            return;
+        }
+        final int count = (int) Math.min(sampleCount, Integer.MAX_VALUE);
+        final Map<String, String> dataPointProperties = properties(metricDimensions);
+        final long start = System.nanoTime();
+        try {
+            // without retries, the call is made directly rather than through a capturing lambda
+            if (retryPolicy.getMaxAttempts() == 1) {
+                client.trackMetric(name, sum, count, minimum, maximum, dataPointProperties);
+            } else {
+                retryPolicy.execute(() -> {
+                    client.trackMetric(name, sum, count, minimum, maximum, dataPointProperties);
+                    return null;
+                }, RetryPolicy::isTransient);
+            }
+            recordSuccess(start);
+        } catch (Exception e) {
+            markFailed(new SpooledDatum(name, metricDimensions, System.currentTimeMillis(),
+                    new MetricStatistics(sampleCount, sum, minimum, maximum)), true);
+            recordFailure(start, name, e);
+        }
+    }
+
+    /**
+     * Sends a spooled data point, with its original timestamp. The data point stays spooled if the push fails with
+     * an I/O error, as it would be refused again otherwise.
+     *
+     * @return the outcome of the push
+     */
+    private Replay replay(final SpooledDatum datum) {
+        if (!circuitBreaker.allowRequest()) {
+            markFailed(datum, false);
+            LOG.debug("Circuit breaker is open, skipped pushing MetricData to Azure Application Insights");
+            return Replay.FAILED;
+        }
+        final MetricTelemetry telemetry = toTelemetry(datum);
+        final long start = System.nanoTime();
+        try {
+            retryPolicy.execute(() -> {
+                client.trackMetric(telemetry);
+                return null;
+            }, RetryPolicy::isTransient);
+            recordSuccess(start);
+            return Replay.SENT;
+        } catch (Exception e) {
+            markFailed(datum, false);
+            recordFailure(start, datum.getName(), e);
+            return RetryPolicy.isTransient(e) ? Replay.FAILED : Replay.REFUSED;
+        }
+    }
+
+    private void recordSuccess(final long start) {
+        publishingStatistics.recordRequest(System.nanoTime() - start, 1, true);
+        circuitBreaker.recordSuccess();
+    }
+
+    private void recordFailure(final long start, final String name, final Exception e) {
+        publishingStatistics.recordRequest(System.nanoTime() - start, 1, false);
+        final boolean opened = circuitBreaker.recordFailure();
+        if (circuitBreaker.getConsecutiveFailures() <= circuitBreaker.getFailureThreshold()) {
+            LOG.error("Could not push MetricData for {} to Azure Application Insights because of: {}",
+                    name, e.getMessage(), e);
+        } else {
+            LOG.warn("Could not push MetricData to Azure Application Insights because of: {}", e.getMessage());
+        }
+        if (opened) {
+            LOG.warn("Stopped pushing MetricData to Azure Application Insights after {} consecutive failures",
+                    circuitBreaker.getConsecutiveFailures());
+        }
+    }
+
+    private void markFailed(final SpooledDatum datum, final boolean spoolable) {
+        failed = true;
+        failedPublishingRequests.increment(datum.getName());
+        if (spoolable && spool != null && !spool.append(datum)) {
+            LOG.warn("Metric spool is full, dropped data point of {}", datum.getName());
+        }
+    }
+
+    /**
+     * Replays spooled data points, oldest first, until the spool is empty or a push fails again.
+     * Data points are only removed from the spool once they were sent, refused, or found older than Application
+     * Insights accepts, so the data point that failed and the rest of its batch keep their place in the spool.
+     */
+    private void replaySpool() {
+        final List<SpooledDatum> batch = spool.peek(MAX_REPLAYED_DATUMS);
+        final long oldest = System.currentTimeMillis() - MAX_DATUM_AGE_MILLIS;
+        int expired = 0;
+        int replayed = 0;
+        int done = 0;
+        for (; done < batch.size(); done++) {
+            final SpooledDatum datum = batch.get(done);
+            if (datum.getTimestamp() < oldest) {
+                expired++;
+                continue;
+            }
+            final Replay outcome = replay(datum);
+            if (outcome == Replay.FAILED) {
+                break;
+            }
+            if (outcome == Replay.SENT) {
+                replayed++;
+            }
+        }
+        spool.remove(done);
+        if (expired > 0) {
+            LOG.warn("Dropped {} spooled data point(s) older than Azure Application Insights accepts", expired);
+        }
+        if (replayed > 0) {
+            LOG.info("Replayed {} spooled data point(s) to Azure Application Insights", replayed);
+        }
+    }
+
+    private MetricTelemetry toTelemetry(final SpooledDatum datum) {
+        final MetricStatistics statistics = datum.getStatistics();
+        final MetricTelemetry telemetry = new MetricTelemetry();
+        telemetry.setName(datum.getName());
+        telemetry.setValue(statistics.getSum());
+        telemetry.setCount((int) Math.min(statistics.getSampleCount(), Integer.MAX_VALUE));
+        telemetry.setMin(statistics.getMinimum());
+        telemetry.setMax(statistics.getMaximum());
+        telemetry.setTimestamp(new Date(datum.getTimestamp()));
+        telemetry.getProperties().putAll(properties(datum.getDimensions()));
+        return telemetry;
     }
 
     @ManagedMetric
@@ -100,4 +548,21 @@ public class AzureMetricsPublisher implements MetricsPublisher {
     public int getTimeoutSeconds() {
         return 0;
     }
+
+    private List<Metric> collect(final List<Metric> metricsToPublish) {
+        final MetricCollector collector = metricCollector;
+        return collector == null ? metricsToPublish : collector.collect(metricsToPublish);
+    }
+
+    /**
+     * Outcome of replaying a spooled data point.
+     */
+    private enum Replay {
+        /** The data point was sent. */
+        SENT,
+        /** The data point was refused and would be refused again. */
+        REFUSED,
+        /** The push failed, the data point can be replayed later. */
+        FAILED
+    }
 }
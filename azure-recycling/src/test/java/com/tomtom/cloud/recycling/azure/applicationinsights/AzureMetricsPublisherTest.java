@@ -12,21 +12,50 @@ package com.tomtom.cloud.recycling.azure.applicationinsights;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import com.microsoft.applicationinsights.TelemetryClient;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import com.tomtom.cloud.recycling.AggregatingMetric;
+import com.tomtom.cloud.recycling.CircuitBreaker;
+import com.tomtom.cloud.recycling.DimensionSet;
+import com.tomtom.cloud.recycling.HistogramMetric;
 import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricSpool;
+import com.tomtom.cloud.recycling.MetricUnit;
 import com.tomtom.cloud.recycling.MetricsPublisher;
+import com.tomtom.cloud.recycling.OneTagMetricMap;
+import com.tomtom.cloud.recycling.SpooledDatum;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 
 public class AzureMetricsPublisherTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private MetricsPublisher metricsPublisher;
 
     private TelemetryClient telemetryClient;
@@ -58,6 +87,10 @@ public class AzureMetricsPublisherTest {
     public void shouldPublishSuccessfully() throws Exception {
         metricsPublisher.publish();
         assertEquals(0, metricsPublisher.getFailedPublishingRequests().size());
+        final AzureMetricsPublisher publisher = (AzureMetricsPublisher) metricsPublisher;
+        assertEquals(2, publisher.getSucceededRequests());
+        assertEquals(0, publisher.getFailedRequests());
+        assertEquals(1, publisher.getStatistics().getCycles());
     }
 
     @Test
@@ -67,6 +100,143 @@ public class AzureMetricsPublisherTest {
         assertEquals(1, metricsPublisher.getFailedPublishingRequests().size());
     }
 
+    @Test
+    public void shouldSkipValuesApplicationInsightsRejects() throws Exception {
+        doReturn(Double.NaN).when(metricFlow).getValue();
+        metricsPublisher.publish();
+        verify(telemetryClient, never()).trackMetric(eq("flowcloud"), anyDouble(), anyInt(), anyDouble(),
+                anyDouble(), anyMapOf(String.class, String.class));
+        assertEquals(1, ((AzureMetricsPublisher) metricsPublisher).getSucceededRequests());
+        assertEquals(0, metricsPublisher.getFailedPublishingRequests().size());
+    }
+
+    @Test
+    public void shouldPublishAggregatedStatistics() throws Exception {
+        final AggregatingMetric latency = new AggregatingMetric("latency");
+        latency.record(2);
+        latency.record(7);
+        new AzureMetricsPublisher(Arrays.<Metric>asList(latency), "cloud", "cloud", telemetryClient).publish();
+        verify(telemetryClient).trackMetric("latencycloud", 9, 2, 2, 7,
+                Collections.singletonMap("namespace", "cloud"));
+    }
+
+    @Test
+    public void shouldSendDimensionsAsProperties() throws Exception {
+        final AggregatingMetric latency = new AggregatingMetric("latency", MetricUnit.MILLISECONDS, false,
+                DimensionSet.of(Collections.singletonMap("feed", "flow")));
+        latency.record(2);
+        final OneTagMetricMap<String> failures = new OneTagMetricMap<>("feed");
+        failures.add("traffic", 3);
+        final AzureMetricsPublisher publisher =
+                new AzureMetricsPublisher(Arrays.<Metric>asList(latency), "cloud", "cloud", telemetryClient);
+        publisher.setDimensions(Collections.singletonMap("instance", "vm-1"));
+        publisher.addCounts("failures", failures::getCounts);
+        publisher.publish();
+
+        final Map<String, String> latencyProperties = new HashMap<>();
+        latencyProperties.put("namespace", "cloud");
+        latencyProperties.put("instance", "vm-1");
+        latencyProperties.put("feed", "flow");
+        verify(telemetryClient).trackMetric("latencycloud", 2, 1, 2, 2, latencyProperties);
+        latencyProperties.put("feed", "traffic");
+        verify(telemetryClient).trackMetric("failurescloud", 3, 1, 3, 3, latencyProperties);
+    }
+
+    @Test
+    public void shouldPublishHistogramPercentiles() throws Exception {
+        final HistogramMetric latency = new HistogramMetric("latency", 100);
+        latency.record(4);
+        latency.record(8);
+        new AzureMetricsPublisher(Arrays.<Metric>asList(latency), "cloud", "cloud", telemetryClient).publish();
+        verify(telemetryClient).trackMetric("latencycloud", 12, 2, 4, 8,
+                Collections.singletonMap("namespace", "cloud"));
+        verify(telemetryClient).trackMetric("latency.p100cloud", 8, 1, 8, 8,
+                Collections.singletonMap("namespace", "cloud"));
+    }
+
+    @Test
+    public void shouldDropSpooledDataPointsOlderThanApplicationInsightsAccepts() throws Exception {
+        try (MetricSpool spool = new MetricSpool(folder.newFile().toPath(), 4096)) {
+            spool.append(new SpooledDatum("expired", System.currentTimeMillis() - TimeUnit.DAYS.toMillis(3), 1));
+            final AzureMetricsPublisher publisher = new AzureMetricsPublisher(metrics, "cloud", "cloud",
+                    telemetryClient);
+            publisher.setSpool(spool);
+            publisher.publish();
+            verify(telemetryClient, never()).trackMetric(any(MetricTelemetry.class));
+            assertEquals(0, publisher.getSpooledDatums());
+        }
+    }
+
+    @Test
+    public void shouldNotSpoolReplayedDataPointsRefusedAgain() throws Exception {
+        try (MetricSpool spool = new MetricSpool(folder.newFile().toPath(), 4096)) {
+            spool.append(new SpooledDatum("refused", System.currentTimeMillis(), 1));
+            doThrow(IllegalArgumentException.class).when(telemetryClient).trackMetric(any(MetricTelemetry.class));
+            final AzureMetricsPublisher publisher = new AzureMetricsPublisher(metrics, "cloud", "cloud",
+                    telemetryClient);
+            publisher.setSpool(spool);
+            publisher.publish();
+            verify(telemetryClient).trackMetric(any(MetricTelemetry.class));
+            assertEquals(0, publisher.getSpooledDatums());
+        }
+    }
+
+    @Test
+    public void shouldKeepSpooledDataPointsInOrderWhenReplayFails() throws Exception {
+        try (MetricSpool spool = new MetricSpool(folder.newFile().toPath(), 4096)) {
+            spool.append(new SpooledDatum("first", System.currentTimeMillis(), 1));
+            spool.append(new SpooledDatum("second", System.currentTimeMillis(), 2));
+            doThrow(new RuntimeException(new IOException("unreachable"))).when(telemetryClient)
+                    .trackMetric(any(MetricTelemetry.class));
+            final AzureMetricsPublisher publisher = new AzureMetricsPublisher(metrics, "cloud", "cloud",
+                    telemetryClient);
+            publisher.setSpool(spool);
+            publisher.publish();
+            verify(telemetryClient).trackMetric(any(MetricTelemetry.class));
+            final List<SpooledDatum> spooled = spool.peek(2);
+            assertEquals(2, spooled.size());
+            assertEquals("first", spooled.get(0).getName());
+            assertEquals("second", spooled.get(1).getName());
+        }
+    }
+
+    @Test
+    public void shouldReplaySpooledDataPointsOncePushSucceeds() throws Exception {
+        try (MetricSpool spool = new MetricSpool(folder.newFile().toPath(), 4096)) {
+            final AzureMetricsPublisher publisher = new AzureMetricsPublisher(metrics, "cloud", "cloud",
+                    telemetryClient);
+            publisher.setSpool(spool);
+            doThrow(RuntimeException.class).when(telemetryClient).trackMetric(eq("flowcloud"), anyDouble(),
+                    anyInt(), anyDouble(), anyDouble(), anyMapOf(String.class, String.class));
+            publisher.publish();
+            assertEquals(1, publisher.getSpooledDatums());
+            assertEquals(1, publisher.getFailedPublishingRequests().size());
+            // the data point pushed right after the failure must not trigger a replay
+            verify(telemetryClient, never()).trackMetric(any(MetricTelemetry.class));
+
+            reset(telemetryClient);
+            publisher.publish();
+            verify(telemetryClient).trackMetric(any(MetricTelemetry.class));
+            assertEquals(0, publisher.getSpooledDatums());
+        }
+    }
+
+    @Test
+    public void shouldStopPushingWhileCircuitBreakerIsOpen() throws Exception {
+        final AzureMetricsPublisher publisher = new AzureMetricsPublisher(metrics, "cloud", "cloud",
+                telemetryClient);
+        publisher.setCircuitBreaker(new CircuitBreaker(1, 60_000));
+        doThrow(RuntimeException.class).when(telemetryClient).trackMetric(anyString(), anyDouble(),
+                anyInt(), anyDouble(), anyDouble(), anyMapOf(String.class, String.class));
+        publisher.publish();
+
+        verify(telemetryClient, times(1)).trackMetric(anyString(), anyDouble(),
+                anyInt(), anyDouble(), anyDouble(), anyMapOf(String.class, String.class));
+        assertEquals("OPEN", publisher.getCircuitBreakerState());
+        assertEquals(1, publisher.getRejectedRequests());
+        assertEquals(2, publisher.getFailedPublishingRequests().size());
+    }
+
     @Test
     public void shouldHaveMetricNamespace() {
         assertNotNull(metricsPublisher.getNamespace());
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling.azure.applicationinsights;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.applicationinsights.TelemetryClient;
+import com.tomtom.cloud.recycling.Metric;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the allocations of a publishing through {@link AzureMetricsPublisher#publish()}, with a client that
+ * discards the data points, leaving out the telemetry channel of the SDK.
+ * <p>
+ * Run from the module directory, reading "gc.alloc.rate.norm" as bytes allocated per publishing:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/test.classpath
+ * java -cp target/test-classes:target/classes:$(cat target/test.classpath) \
+ *     com.tomtom.cloud.recycling.azure.applicationinsights.PublishAllocationBenchmark
+ * </pre>
+ * The data points are handed to the client as they are read, so a publishing of gauges allocates nothing but what
+ * the values of the metrics allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublishAllocationBenchmark {
+
+    @Param({"1000"})
+    private int metricCount;
+
+    private final List<Metric> metrics = new ArrayList<>();
+
+    private AzureMetricsPublisher publisher;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < metricCount; i++) {
+            final String name = "Metric" + i;
+            final double value = i;
+            metrics.add(new Metric() {
+                @Override
+                public String getName() {
+                    return name;
+                }
+
+                @Override
+                public double getValue() {
+                    return value;
+                }
+            });
+        }
+        publisher = new AzureMetricsPublisher(metrics, "cloud", "cloud", new TelemetryClient() {
+            @Override
+            public void trackMetric(final String name, final double value, final int sampleCount, final double min,
+                                    final double max, final Map<String, String> properties) {
+                // discarded
+            }
+        });
+    }
+
+    @Benchmark
+    public void publish() {
+        publisher.publish();
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PublishAllocationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
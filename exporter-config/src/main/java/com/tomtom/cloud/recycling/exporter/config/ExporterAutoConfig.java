@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling.exporter.config;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.OneTagMetricMap;
+import com.tomtom.cloud.recycling.StripedOneTagMetricMap;
+import com.tomtom.cloud.recycling.exporter.MetricsExporter;
+
+/**
+ * Configuration class for serving the metrics to a scraping collector, instead of or next to pushing them.
+ * <p>
+ * Every {@link Metric} bean is served, and every {@link OneTagMetricMap} and {@link StripedOneTagMetricMap} bean is
+ * served as a counter named after the bean.
+ */
+@ConditionalOnProperty(name = "active_recycling_exporter_enabled", havingValue = "true")
+@Configuration
+@EnableConfigurationProperties(ExporterProperties.class)
+public class ExporterAutoConfig {
+
+    @Bean
+    public MetricsExporter metricsExporter(final ExporterProperties properties,
+                                           final ObjectProvider<List<Metric>> metrics,
+                                           final ObjectProvider<Map<String, OneTagMetricMap<?>>> counts,
+                                           final ObjectProvider<Map<String, StripedOneTagMetricMap<?>>> stripedCounts) {
+        final List<Metric> served = metrics.getIfAvailable();
+        final MetricsExporter exporter = new MetricsExporter(
+                served == null ? Collections.<Metric>emptyList() : served, properties.getPort(), properties.getPath());
+        final Map<String, OneTagMetricMap<?>> countBeans = counts.getIfAvailable();
+        if (countBeans != null) {
+            countBeans.forEach((name, map) -> exporter.addCounts(name, () -> map.getCounts()));
+        }
+        final Map<String, StripedOneTagMetricMap<?>> stripedCountBeans = stripedCounts.getIfAvailable();
+        if (stripedCountBeans != null) {
+            stripedCountBeans.forEach((name, map) -> exporter.addCounts(name, () -> map.getCounts()));
+        }
+        return exporter;
+    }
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling.exporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.tomtom.cloud.recycling.AggregatingMetric;
+import com.tomtom.cloud.recycling.DimensionSet;
+import com.tomtom.cloud.recycling.DistributionMetric;
+import com.tomtom.cloud.recycling.HistogramMetric;
+import com.tomtom.cloud.recycling.HistogramSnapshot;
+import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricStatistics;
+import com.tomtom.cloud.recycling.StatisticsMetric;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Serves the metrics over HTTP, so that a collector can scrape them rather than every node pushing them, as an
+ * alternative to a {@link com.tomtom.cloud.recycling.MetricsUpdater}.
+ * <p>
+ * The endpoint runs on the HTTP server of the JDK, whose connections are multiplexed by a selector, and renders
+ * the metrics on a single thread in the Prometheus text exposition format:
+ * <ul>
+ * <li>a plain metric is a gauge holding its current value;</li>
+ * <li>an {@link AggregatingMetric} is a summary with the count and sum of every value recorded since start;</li>
+ * <li>a {@link HistogramMetric} is a summary with the same totals, plus its percentiles over the values recorded
+ * since the previous scrape;</li>
+ * <li>counts, e.g. the failed requests of a publisher or a {@link com.tomtom.cloud.recycling.OneTagMetricMap}, are
+ * counters labelled with their tags.</li>
+ * </ul>
+ * Metric names are sanitized, e.g. 'latency.p99' becomes 'latency_p99', and the dimensions of a metric are labels
+ * of its samples. Metrics sharing a name are rendered together as the series of one metric family. Aggregating and
+ * histogram metrics are drained by every scrape, so they should not be published by a push publisher at the same
+ * time.
+ */
+@ManagedResource("Healer:component=worker,sub=metricsExporter")
+public class MetricsExporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsExporter.class);
+
+    /**
+     * Metrics by sanitized name, in the order their names were first registered.
+     */
+    private final Map<String, List<Metric>> families = new LinkedHashMap<>();
+
+    private final int metricCount;
+
+    private final int port;
+
+    private final String path;
+
+    private final Map<String, Supplier<? extends Map<Map<String, String>, ? extends Number>>> counts =
+            new LinkedHashMap<>();
+
+    /**
+     * Totals of the aggregating and histogram metrics since start, guarded by the exporter.
+     */
+    private final Map<Metric, Totals> totals = new IdentityHashMap<>();
+
+    private final AtomicLong scrapes = new AtomicLong();
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    /**
+     * Constructor that should be used during system initialization, preferably in a configuration bean.
+     *
+     * @param metrics metrics to serve
+     * @param port    port to listen on, 0 for any free port
+     * @param path    path of the endpoint, e.g. '/metrics'
+     */
+    public MetricsExporter(final List<Metric> metrics, final int port, final String path) {
+        if (port < 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("port must be between 0 and 65535: " + port);
+        }
+        for (final Metric metric : metrics) {
+            families.computeIfAbsent(TextExposition.sanitize(metric.getName()), name -> new ArrayList<>()).add(metric);
+        }
+        this.metricCount = metrics.size();
+        this.port = port;
+        this.path = path;
+    }
+
+    /**
+     * Serves counts as a counter, with one sample per key.
+     *
+     * @param name   counter name
+     * @param counts supplies the counts by tags, e.g. {@code OneTagMetricMap::getCounts}
+     */
+    public synchronized void addCounts(final String name,
+                                       final Supplier<? extends Map<Map<String, String>, ? extends Number>> counts) {
+        this.counts.put(TextExposition.sanitize(name), counts);
+    }
+
+    /**
+     * Start serving after object creation.
+     *
+     * @throws IOException if the port cannot be bound
+     */
+    @ManagedOperation
+    @PostConstruct
+    public synchronized void start() throws IOException {
+        if (server == null) {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "Metrics exporter thread");
+                thread.setDaemon(true);
+                return thread;
+            });
+            server.setExecutor(executor);
+            server.createContext(path, this::handle);
+            server.start();
+            LOG.info("Serving metrics on port {} at {}", getPort(), path);
+        }
+    }
+
+    /**
+     * Stop serving when the shutdown hook is invoked.
+     */
+    @ManagedOperation
+    @PreDestroy
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    @ManagedAttribute
+    public synchronized boolean isRunning() {
+        return server != null;
+    }
+
+    /**
+     * Returns the port the endpoint listens on, which is chosen when started on port 0.
+     *
+     * @return the port
+     */
+    @ManagedAttribute
+    public synchronized int getPort() {
+        return server == null ? port : server.getAddress().getPort();
+    }
+
+    @ManagedAttribute
+    public String getPath() {
+        return path;
+    }
+
+    @ManagedAttribute
+    public long getScrapes() {
+        return scrapes.get();
+    }
+
+    /**
+     * Renders every metric and count.
+     *
+     * @return the exposition
+     */
+    synchronized String scrape() {
+        scrapes.incrementAndGet();
+        final StringBuilder out = new StringBuilder(64 * (metricCount + counts.size()));
+        for (final Map.Entry<String, List<Metric>> family : families.entrySet()) {
+            // a family has a single TYPE line, a second one makes the collector reject the whole scrape
+            boolean typed = false;
+            for (final Metric metric : family.getValue()) {
+                try {
+                    write(out, family.getKey(), metric, !typed);
+                    typed = true;
+                } catch (Exception e) {
+                    LOG.warn("Could not read metric {} because of: {}", metric.getName(), e.getMessage());
+                }
+            }
+        }
+        for (final Map.Entry<String, Supplier<? extends Map<Map<String, String>, ? extends Number>>> counter
+                : counts.entrySet()) {
+            TextExposition.type(out, counter.getKey(), "counter");
+            for (final Map.Entry<Map<String, String>, ? extends Number> count : counter.getValue().get().entrySet()) {
+                TextExposition.sample(out, counter.getKey(), count.getKey(), count.getValue().doubleValue());
+            }
+        }
+        return out.toString();
+    }
+
+    private void write(final StringBuilder out, final String name, final Metric metric, final boolean withType) {
+        final Map<String, String> labels = DimensionSet.of(metric).asMap();
+        if (metric instanceof StatisticsMetric) {
+            final Totals metricTotals = totals(metric).add(((StatisticsMetric) metric).drain());
+            type(out, name, "summary", withType);
+            metricTotals.write(out, name, labels);
+        } else if (metric instanceof DistributionMetric) {
+            final DistributionMetric histogram = (DistributionMetric) metric;
+            final HistogramSnapshot snapshot = histogram.snapshotAndReset();
+            final Totals metricTotals = totals(metric).add(snapshot.toStatistics());
+            type(out, name, "summary", withType);
+            for (int i = 0; i < histogram.getPercentileCount(); i++) {
+                final double percentile = histogram.getPercentile(i);
+                TextExposition.sample(out, name, labels, "quantile",
+                        BigDecimal.valueOf(percentile).movePointLeft(2).stripTrailingZeros().toPlainString(),
+                        snapshot.isEmpty() ? Double.NaN : snapshot.getValueAtPercentile(percentile));
+            }
+            metricTotals.write(out, name, labels);
+        } else {
+            final double value = metric.getValue();
+            type(out, name, "gauge", withType);
+            TextExposition.sample(out, name, labels, value);
+        }
+    }
+
+    private static void type(final StringBuilder out, final String name, final String type,
+                             final boolean withType) {
+        if (withType) {
+            TextExposition.type(out, name, type);
+        }
+    }
+
+    private Totals totals(final Metric metric) {
+        Totals metricTotals = totals.get(metric);
+        if (metricTotals == null) {
+            metricTotals = new Totals();
+            totals.put(metric, metricTotals);
+        }
+        return metricTotals;
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            final byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", TextExposition.CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Count and sum of the values recorded since start.
+     */
+    private static final class Totals {
+
+        private long count;
+
+        private double sum;
+
+        Totals add(final MetricStatistics statistics) {
+            count += statistics.getSampleCount();
+            sum += statistics.getSum();
+            return this;
+        }
+
+        void write(final StringBuilder out, final String name, final Map<String, String> labels) {
+            TextExposition.sample(out, name + "_sum", labels, sum);
+            TextExposition.sample(out, name + "_count", labels, count);
+        }
+    }
+}
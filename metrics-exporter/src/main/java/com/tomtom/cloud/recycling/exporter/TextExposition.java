@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling.exporter;
+
+import java.util.Map;
+
+/**
+ * Writes samples in the Prometheus text exposition format, version 0.0.4, understood by most scraping collectors.
+ */
+final class TextExposition {
+
+    /**
+     * Content type of the format.
+     */
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private TextExposition() {
+    }
+
+    /**
+     * Turns a metric name into a valid sample name, replacing every invalid character with an underscore, e.g.
+     * 'latency.p99' into 'latency_p99'.
+     *
+     * @param name metric name
+     * @return sample name
+     */
+    static String sanitize(final String name) {
+        final StringBuilder sanitized = new StringBuilder(name.length() + 1);
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            final boolean letter = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c == ':';
+            final boolean digit = c >= '0' && c <= '9';
+            if (i == 0 && digit) {
+                sanitized.append('_');
+            }
+            sanitized.append(letter || digit ? c : '_');
+        }
+        return sanitized.toString();
+    }
+
+    static void type(final StringBuilder out, final String name, final String type) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static void sample(final StringBuilder out, final String name, final Map<String, String> labels,
+                       final double value) {
+        sample(out, name, labels, null, null, value);
+    }
+
+    /**
+     * Writes a sample with its labels, followed by an extra label such as the quantile of a summary.
+     *
+     * @param out        the exposition
+     * @param name       sample name
+     * @param labels     label values by name
+     * @param labelName  name of the extra label, null for none
+     * @param labelValue value of the extra label
+     * @param value      sample value
+     */
+    static void sample(final StringBuilder out, final String name, final Map<String, String> labels,
+                       final String labelName, final String labelValue, final double value) {
+        out.append(name);
+        if (!labels.isEmpty() || labelName != null) {
+            out.append('{');
+            boolean first = true;
+            for (final Map.Entry<String, String> label : labels.entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                label(out, sanitize(label.getKey()), label.getValue());
+            }
+            if (labelName != null) {
+                if (!first) {
+                    out.append(',');
+                }
+                label(out, labelName, labelValue);
+            }
+            out.append('}');
+        }
+        out.append(' ');
+        value(out, value);
+        out.append('\n');
+    }
+
+    private static void label(final StringBuilder out, final String labelName, final String labelValue) {
+        out.append(labelName).append("=\"");
+        escape(out, labelValue);
+        out.append('"');
+    }
+
+    private static void value(final StringBuilder out, final double value) {
+        if (Double.isNaN(value)) {
+            out.append("NaN");
+        } else if (Double.isInfinite(value)) {
+            out.append(value > 0 ? "+Inf" : "-Inf");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+    }
+
+    private static void escape(final StringBuilder out, final String labelValue) {
+        for (int i = 0; i < labelValue.length(); i++) {
+            final char c = labelValue.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+}
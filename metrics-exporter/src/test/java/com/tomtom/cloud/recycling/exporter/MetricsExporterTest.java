@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import com.tomtom.cloud.recycling.AggregatingMetric;
+import com.tomtom.cloud.recycling.DimensionSet;
+import com.tomtom.cloud.recycling.HistogramMetric;
+import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricUnit;
+import com.tomtom.cloud.recycling.OneTagMetricMap;
+import org.junit.After;
+import org.junit.Test;
+
+public class MetricsExporterTest {
+
+    private MetricsExporter exporter;
+
+    @After
+    public void tearDown() throws Exception {
+        if (exporter != null) {
+            exporter.stop();
+        }
+    }
+
+    @Test
+    public void shouldServeGaugesAndCounts() throws Exception {
+        final Metric metric = mock(Metric.class);
+        doReturn("queue.size").when(metric).getName();
+        doReturn(12d).when(metric).getValue();
+        final OneTagMetricMap<String> failures = new OneTagMetricMap<>("metricName");
+        failures.increment("flow");
+        exporter = new MetricsExporter(Collections.singletonList(metric), 0, "/metrics");
+        exporter.addCounts("failedPublishingRequests", failures::getCounts);
+        exporter.start();
+
+        final HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http://localhost:" + exporter.getPort() + "/metrics").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+        final String body = read(connection.getInputStream());
+        assertTrue(body, body.contains("# TYPE queue_size gauge\nqueue_size 12\n"));
+        assertTrue(body, body.contains("# TYPE failedPublishingRequests counter\n"
+                + "failedPublishingRequests{metricName=\"flow\"} 1\n"));
+        assertEquals(1, exporter.getScrapes());
+    }
+
+    @Test
+    public void shouldKeepTotalsOfInMemoryMetricsAcrossScrapes() throws Exception {
+        final AggregatingMetric requests = new AggregatingMetric("requests");
+        final HistogramMetric latency = new HistogramMetric("latency", 50, 99.9);
+        exporter = new MetricsExporter(Arrays.<Metric>asList(requests, latency), 0, "/metrics");
+        requests.record(2);
+        latency.record(10);
+        exporter.scrape();
+        requests.record(3);
+
+        final String body = exporter.scrape();
+        assertTrue(body, body.contains("# TYPE requests summary\nrequests_sum 5\nrequests_count 2\n"));
+        assertTrue(body, body.contains("latency{quantile=\"0.999\"} NaN\n"));
+        assertTrue(body, body.contains("latency_sum 10\nlatency_count 1\n"));
+    }
+
+    @Test
+    public void shouldRenderSeriesSharingANameAsOneFamily() throws Exception {
+        final Metric traffic = mock(Metric.class);
+        doReturn("queue.size").when(traffic).getName();
+        doReturn(1d).when(traffic).getValue();
+        doReturn(DimensionSet.of(Collections.singletonMap("feed", "traffic"))).when(traffic).getDimensions();
+        final Metric maps = mock(Metric.class);
+        doReturn("queue.size").when(maps).getName();
+        doReturn(2d).when(maps).getValue();
+        doReturn(DimensionSet.of(Collections.singletonMap("feed", "maps"))).when(maps).getDimensions();
+        final HistogramMetric latency = new HistogramMetric("latency", MetricUnit.MILLISECONDS, false,
+                DimensionSet.of(Collections.singletonMap("feed", "traffic")), 99);
+        latency.record(4);
+        exporter = new MetricsExporter(Arrays.asList(traffic, latency, maps), 0, "/metrics");
+
+        assertEquals("# TYPE queue_size gauge\n"
+                + "queue_size{feed=\"traffic\"} 1\n"
+                + "queue_size{feed=\"maps\"} 2\n"
+                + "# TYPE latency summary\n"
+                + "latency{feed=\"traffic\",quantile=\"0.99\"} 4\n"
+                + "latency_sum{feed=\"traffic\"} 4\n"
+                + "latency_count{feed=\"traffic\"} 1\n", exporter.scrape());
+    }
+
+    @Test
+    public void shouldSanitizeNamesAndEscapeLabels() throws Exception {
+        assertEquals("_5xx_rate_p99", TextExposition.sanitize("5xx-rate.p99"));
+        final StringBuilder out = new StringBuilder();
+        TextExposition.sample(out, "errors", Collections.singletonMap("path", "a\"b\\c"), 1.5);
+        assertEquals("errors{path=\"a\\\"b\\\\c\"} 1.5\n", out.toString());
+    }
+
+    @Test
+    public void shouldRejectOtherMethodsThanGet() throws Exception {
+        exporter = new MetricsExporter(Collections.<Metric>emptyList(), 0, "/metrics");
+        exporter.start();
+        final HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http://localhost:" + exporter.getPort() + "/metrics").openConnection();
+        connection.setRequestMethod("DELETE");
+        assertEquals(405, connection.getResponseCode());
+    }
+
+    private static String read(final InputStream in) throws Exception {
+        try (InputStream stream = in) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = stream.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent map of counters using single-tag keys, leaving the type of counter to the subclasses.
+ *
+ * @param <T> data type of metric tag.
+ * @param <C> type of counter.
+ * @see OneTagMetricMap
+ */
+abstract class AbstractOneTagMetricMap<T, C extends Number> {
+
+    private static final int NO_MAX_TAG_COUNT = -1;
+
+    private final ConcurrentMap<Map<String, String>, C> counts = new ConcurrentHashMap<>();
+
+    /**
+     * The same counters as in {@link #counts}, looked up by the tag value of their key, so that tags without value
+     * equality or sharing a name map to a single entry, and the index never outgrows {@link #counts}.
+     */
+    private final ConcurrentMap<String, C> countsByTag = new ConcurrentHashMap<>();
+
+    private final String tagName;
+
+    private final int maxTagCount;
+
+    private final AtomicInteger tagCount = new AtomicInteger();
+
+    AbstractOneTagMetricMap(final String tagName) {
+        this(tagName, NO_MAX_TAG_COUNT);
+    }
+
+    AbstractOneTagMetricMap(final String tagName, final int maxTagCount) {
+        this.tagName = tagName;
+        this.maxTagCount = maxTagCount;
+    }
+
+    AbstractOneTagMetricMap(final String tagName, final Map<T, ? extends Number> initialValues) {
+        this(tagName);
+        for (Map.Entry<T, ? extends Number> entry : initialValues.entrySet()) {
+            C count = newCounter(entry.getValue().longValue());
+            final String tagValue = entry.getKey().toString();
+            counts.put(Collections.singletonMap(tagName, tagValue), count);
+            countsByTag.put(tagValue, count);
+        }
+    }
+
+    /**
+     * Creates a counter.
+     *
+     * @param value initial value
+     * @return the counter
+     */
+    abstract C newCounter(long value);
+
+    abstract void incrementCounter(C count);
+
+    abstract void addToCounter(C count, long value);
+
+    abstract void setCounter(C count, long value);
+
+    public void increment(final T tag) {
+        final String tagValue = tag.toString();
+        C count = countsByTag.get(tagValue);
+        if (count == null) {
+            count = create(tagValue, 1);
+        }
+        if (count != null) {
+            incrementCounter(count);
+        }
+    }
+
+    public void add(final T tag, final long value) {
+        final String tagValue = tag.toString();
+        C count = countsByTag.get(tagValue);
+        if (count == null) {
+            count = create(tagValue, value);
+        }
+        if (count != null) {
+            addToCounter(count, value);
+        }
+    }
+
+    public void set(final T tag, final long value) {
+        final String tagValue = tag.toString();
+        C count = countsByTag.get(tagValue);
+        if (count == null) {
+            count = create(tagValue, value);
+        }
+        if (count != null) {
+            setCounter(count, value);
+        }
+    }
+
+    public ConcurrentMap<Map<String, String>, ? extends Number> getCounts() {
+        return counts;
+    }
+
+    /**
+     * Registers the counter of a tag that is not indexed yet.
+     *
+     * @param tagValue the tag value, as in the key of the counter
+     * @param value    initial value of a new counter
+     * @return the existing counter the value still has to be applied to, or null if a new counter was created
+     * with the value or the maximum number of tags was reached
+     */
+    private C create(final String tagValue, final long value) {
+        Map<String, String> key = Collections.singletonMap(tagName, tagValue);
+        C count = counts.get(key);
+        if (count == null) {
+            if (maxTagCount != NO_MAX_TAG_COUNT && tagCount.get() >= maxTagCount) {
+                return null;
+            }
+            C created = newCounter(value);
+            count = counts.putIfAbsent(key, created);
+            if (count == null) {
+                // only the thread inserting the counter indexes it
+                tagCount.incrementAndGet();
+                countsByTag.put(tagValue, created);
+                return null;
+            }
+        }
+        return count;
+    }
+}
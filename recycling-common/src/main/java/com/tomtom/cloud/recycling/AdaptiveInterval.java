@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishing interval that adapts to what is going on, between configured bounds.
+ * <p/>
+ * Before every publishing, the urgency signals are evaluated. If any of them is raised, for instance because metric
+ * values change fast ({@link MetricChangeSignal}) or the instance is being recycled
+ * ({@link WorkerRecycler#isRecycleInProgress()}), the interval drops to the minimum at once. Otherwise it doubles,
+ * up to the maximum, so a quiet system backs off to the cheap rate in a few steps while an incident is reported at
+ * the high rate from its start.
+ */
+public class AdaptiveInterval {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveInterval.class);
+
+    private final long minMillis;
+
+    private final long maxMillis;
+
+    private final List<BooleanSupplier> urgencySignals;
+
+    private volatile long currentMillis;
+
+    /**
+     * Creates an interval starting at the minimum.
+     *
+     * @param minSeconds     interval while any signal is raised
+     * @param maxSeconds     interval the quiet system backs off to
+     * @param urgencySignals signals asking for the minimum interval
+     */
+    public AdaptiveInterval(final int minSeconds, final int maxSeconds, final BooleanSupplier... urgencySignals) {
+        if (minSeconds < 1 || maxSeconds < minSeconds) {
+            throw new IllegalArgumentException("Invalid bounds: " + minSeconds + ", " + maxSeconds);
+        }
+        this.minMillis = TimeUnit.SECONDS.toMillis(minSeconds);
+        this.maxMillis = TimeUnit.SECONDS.toMillis(maxSeconds);
+        this.urgencySignals = Arrays.asList(urgencySignals);
+        this.currentMillis = minMillis;
+    }
+
+    /**
+     * Evaluates the signals and returns the interval until the next publishing.
+     *
+     * @return interval in milliseconds
+     */
+    public synchronized long nextIntervalMillis() {
+        currentMillis = isUrgent() ? minMillis : Math.min(maxMillis, currentMillis * 2);
+        return currentMillis;
+    }
+
+    /**
+     * Returns the interval last returned by {@link #nextIntervalMillis()}.
+     *
+     * @return interval in milliseconds
+     */
+    public long getCurrentIntervalMillis() {
+        return currentMillis;
+    }
+
+    public long getMinIntervalMillis() {
+        return minMillis;
+    }
+
+    public long getMaxIntervalMillis() {
+        return maxMillis;
+    }
+
+    private boolean isUrgent() {
+        boolean urgent = false;
+        // every signal is evaluated, since some of them keep state between evaluations
+        for (final BooleanSupplier signal : urgencySignals) {
+            try {
+                urgent |= signal.getAsBoolean();
+            } catch (RuntimeException e) {
+                LOG.warn("Could not evaluate publishing interval signal: {}", e.getMessage(), e);
+            }
+        }
+        return urgent;
+    }
+}
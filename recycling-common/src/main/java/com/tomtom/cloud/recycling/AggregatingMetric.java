@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metric that aggregates every recorded value between two publishing intervals instead of
+ * sampling a single value at publishing time, so that spikes in between are not lost.
+ * <p/>
+ * Recording is lock-free and backed by striped adders, making it cheap enough for hot code paths.
+ * Publishers call {@link #drain()} once per interval to obtain the minimum, maximum, sum and count of
+ * the values recorded since the previous call.
+ * <p/>
+ * Each interval aggregates into its own bucket, which a drain swaps for an empty one. A value recorded
+ * concurrently with a drain is therefore accounted, with its count and value alike, in exactly one interval.
+ */
+public class AggregatingMetric implements StatisticsMetric {
+
+    private final String name;
+
+    private final MetricUnit unit;
+
+    private final boolean highResolution;
+
+    private final DimensionSet dimensions;
+
+    private final AtomicReference<Bucket> current = new AtomicReference<>(new Bucket());
+
+    /**
+     * Creates a new metric without any recorded value.
+     *
+     * @param name metric name
+     */
+    public AggregatingMetric(final String name) {
+        this(name, MetricUnit.NONE, false);
+    }
+
+    /**
+     * Creates a new metric without any recorded value.
+     *
+     * @param name           metric name
+     * @param unit           unit of the recorded values
+     * @param highResolution whether the statistics should be stored at a resolution of one second
+     */
+    public AggregatingMetric(final String name, final MetricUnit unit, final boolean highResolution) {
+        this(name, unit, highResolution, DimensionSet.EMPTY);
+    }
+
+    /**
+     * Creates a new metric without any recorded value, for one series of a metric sliced by dimensions.
+     *
+     * @param name           metric name
+     * @param unit           unit of the recorded values
+     * @param highResolution whether the statistics should be stored at a resolution of one second
+     * @param dimensions     dimensions of the series
+     */
+    public AggregatingMetric(final String name, final MetricUnit unit, final boolean highResolution,
+                             final DimensionSet dimensions) {
+        this.name = name;
+        this.unit = unit;
+        this.highResolution = highResolution;
+        this.dimensions = dimensions;
+    }
+
+    /**
+     * Records a single value.
+     *
+     * @param value value to record
+     */
+    public void record(final double value) {
+        Bucket bucket = current.get();
+        bucket.writers.increment();
+        while (bucket != current.get()) {
+            // drained meanwhile, record into the bucket of the next interval instead
+            bucket.writers.decrement();
+            bucket = current.get();
+            bucket.writers.increment();
+        }
+        try {
+            bucket.record(value);
+        } finally {
+            bucket.writers.decrement();
+        }
+    }
+
+    @Override
+    public MetricStatistics drain() {
+        final Bucket drained = current.getAndSet(new Bucket());
+        // writers that entered the drained bucket before the swap are about to finish
+        while (drained.writers.sum() != 0) {
+            Thread.yield();
+        }
+        final long drainedCount = drained.count.sum();
+        if (drainedCount == 0) {
+            return MetricStatistics.EMPTY;
+        }
+        return new MetricStatistics(drainedCount, drained.sum.sum(), drained.minimum.get(), drained.maximum.get());
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public DimensionSet getDimensions() {
+        return dimensions;
+    }
+
+    @Override
+    public MetricUnit getUnit() {
+        return unit;
+    }
+
+    @Override
+    public boolean isHighResolution() {
+        return highResolution;
+    }
+
+    /**
+     * Returns the average of the values recorded in the current interval, without starting a new one.
+     *
+     * @return average value, 0 when nothing was recorded
+     */
+    @Override
+    public double getValue() {
+        final Bucket bucket = current.get();
+        final long currentCount = bucket.count.sum();
+        return currentCount == 0 ? 0 : bucket.sum.sum() / currentCount;
+    }
+
+    /**
+     * Aggregates of the values recorded in one interval, along with the number of writers still recording into it.
+     */
+    private static final class Bucket {
+
+        private final LongAdder writers = new LongAdder();
+
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private final LongAdder count = new LongAdder();
+
+        private final DoubleAccumulator minimum = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+
+        private final DoubleAccumulator maximum = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+
+        private void record(final double value) {
+            minimum.accumulate(value);
+            maximum.accumulate(value);
+            sum.add(value);
+            count.increment();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calling a backend that keeps failing, so that an outage costs neither CPU nor log volume.
+ * <p/>
+ * The breaker starts {@link State#CLOSED}: calls are allowed and consecutive failures are counted. After
+ * {@code failureThreshold} consecutive failures it opens and rejects every call for {@code openMillis}. Then it lets
+ * a single trial call through ({@link State#HALF_OPEN}): a success closes the breaker again, a failure opens it for
+ * another period.
+ * <p/>
+ * Callers ask {@link #allowRequest()} before every call and report its outcome with {@link #recordSuccess()} or
+ * {@link #recordFailure()}.
+ */
+public class CircuitBreaker {
+
+    /**
+     * State of a circuit breaker.
+     */
+    public enum State {
+        /**
+         * Calls are allowed.
+         */
+        CLOSED,
+        /**
+         * Calls are rejected.
+         */
+        OPEN,
+        /**
+         * A single trial call is allowed.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Default number of consecutive failures that open the breaker.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * Default time the breaker stays open, in milliseconds.
+     */
+    public static final long DEFAULT_OPEN_MILLIS = 60_000L;
+
+    private final int failureThreshold;
+
+    private final long openNanos;
+
+    private final LongSupplier nanoClock;
+
+    private State state = State.CLOSED;
+
+    private int consecutiveFailures;
+
+    private long openedAt;
+
+    private boolean trialInProgress;
+
+    private long rejectedCalls;
+
+    /**
+     * Creates a breaker with the default threshold and open period.
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * Creates a breaker.
+     *
+     * @param failureThreshold number of consecutive failures that open the breaker
+     * @param openMillis       time the breaker stays open before a trial call, in milliseconds
+     */
+    public CircuitBreaker(final int failureThreshold, final long openMillis) {
+        this(failureThreshold, openMillis, System::nanoTime);
+    }
+
+    CircuitBreaker(final int failureThreshold, final long openMillis, final LongSupplier nanoClock) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be positive: " + failureThreshold);
+        }
+        if (openMillis < 0) {
+            throw new IllegalArgumentException("openMillis must not be negative: " + openMillis);
+        }
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Tells whether a call may be made now. A rejected call is counted in {@link #getRejectedCalls()}.
+     *
+     * @return false while the breaker is open, or while the trial call of a half-open breaker is pending
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN && nanoClock.getAsLong() - openedAt >= openNanos) {
+            state = State.HALF_OPEN;
+        }
+        if (state == State.CLOSED || state == State.HALF_OPEN && !trialInProgress) {
+            trialInProgress = state == State.HALF_OPEN;
+            return true;
+        }
+        rejectedCalls++;
+        return false;
+    }
+
+    /**
+     * Reports a successful call, which closes the breaker.
+     */
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialInProgress = false;
+    }
+
+    /**
+     * Reports a failed call.
+     *
+     * @return true if this failure opened the breaker
+     */
+    public synchronized boolean recordFailure() {
+        consecutiveFailures++;
+        trialInProgress = false;
+        if (state == State.HALF_OPEN || state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = nanoClock.getAsLong();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the current state. An open breaker whose period has elapsed is reported half-open only once a call
+     * was allowed through.
+     *
+     * @return the state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Returns the number of calls rejected since the breaker was created.
+     *
+     * @return number of rejected calls
+     */
+    public synchronized long getRejectedCalls() {
+        return rejectedCalls;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+}
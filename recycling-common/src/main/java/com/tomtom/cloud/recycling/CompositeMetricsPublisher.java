@@ -0,0 +1,239 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Publishes the same metric data to several backends at once, e.g. CloudWatch and Application Insights while
+ * migrating from one to the other.
+ * <p/>
+ * The metrics are read once per publishing, on the calling thread or through a {@link MetricCollector}, and the
+ * frozen values are handed over to every backend. Each backend publishes on its own thread from its own bounded
+ * queue, so {@link #publish()} returns without waiting for any of them. A batch that does not fit in the queue of a
+ * backend is dropped for that backend, and a batch that is not published within the timeout, counted from its
+ * submission, is cancelled. Both are counted per backend in {@link #getFailedPublishingRequests()}; the backends
+ * keep accounting their own failed requests.
+ */
+@ManagedResource("Healer:component=worker,sub=compositeMetricsPublisher")
+public class CompositeMetricsPublisher implements MetricsPublisher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompositeMetricsPublisher.class);
+
+    private final List<Metric> metrics;
+
+    private final int timeoutSeconds;
+
+    private final List<Backend> backends;
+
+    /**
+     * Cancels batches that are not published within the timeout.
+     */
+    private final ScheduledExecutorService deadlines;
+
+    /**
+     * Book-keeping for the dropped and timed out batches, per backend.
+     */
+    private final OneTagMetricMap<String> failedPublishingRequests = new OneTagMetricMap<>("backend");
+
+    private volatile MetricCollector metricCollector;
+
+    /**
+     * Constructor that should be used during system initialization, preferably in a configuration bean.
+     *
+     * @param metrics        metrics to publish
+     * @param publishers     backends receiving the metric data
+     * @param queueCapacity  number of batches that may wait for a backend
+     * @param timeoutSeconds time a backend has to publish a batch, from its submission
+     */
+    public CompositeMetricsPublisher(final List<Metric> metrics,
+                                     final List<MetricsPublisher> publishers,
+                                     final int queueCapacity,
+                                     final int timeoutSeconds) {
+        if (timeoutSeconds < 1) {
+            throw new IllegalArgumentException("timeoutSeconds must be positive: " + timeoutSeconds);
+        }
+        this.metrics = metrics;
+        this.timeoutSeconds = timeoutSeconds;
+        final Set<String> names = new HashSet<>();
+        this.backends = new ArrayList<>(publishers.size());
+        for (final MetricsPublisher publisher : publishers) {
+            String name = publisher.getClass().getSimpleName();
+            if (!names.add(name)) {
+                name = name + "#" + backends.size();
+                names.add(name);
+            }
+            backends.add(new Backend(name, publisher, queueCapacity));
+        }
+        this.deadlines = Executors.newSingleThreadScheduledExecutor(daemon("Metrics publishing deadline thread"));
+    }
+
+    /**
+     * Reads the values of plain metrics in parallel, each within a deadline, rather than one after another on the
+     * publishing thread.
+     *
+     * @param metricCollector the collector, or null to read values on the publishing thread
+     */
+    public void setMetricCollector(final MetricCollector metricCollector) {
+        this.metricCollector = metricCollector;
+    }
+
+    @Override
+    public void publish() {
+        publish(metrics, true);
+    }
+
+    /**
+     * Reads the given metrics once and hands them over to every backend, without waiting for them. The backends
+     * publish their own counts if requested.
+     */
+    @Override
+    public void publish(final List<Metric> metricsToPublish, final boolean withCounts) {
+        final MetricCollector collector = metricCollector;
+        final List<Metric> frozen = FrozenMetrics.freeze(
+                collector == null ? metricsToPublish : collector.collect(metricsToPublish));
+        for (final Backend backend : backends) {
+            backend.submit(frozen, withCounts);
+        }
+    }
+
+    /**
+     * Stops the backend threads, cancelling the pending batches.
+     */
+    @PreDestroy
+    public void shutdown() {
+        for (final Backend backend : backends) {
+            backend.executor.shutdownNow();
+        }
+        deadlines.shutdownNow();
+    }
+
+    /**
+     * Returns the number of batches dropped or timed out, per backend.
+     */
+    @ManagedMetric
+    @Override
+    public Map<Map<String, String>, ? extends Number> getFailedPublishingRequests() {
+        return failedPublishingRequests.getCounts();
+    }
+
+    /**
+     * Returns the namespaces of the backends, separated by commas.
+     */
+    @ManagedAttribute
+    @Override
+    public String getNamespace() {
+        return backends.stream().map(backend -> backend.publisher.getNamespace()).collect(Collectors.joining(","));
+    }
+
+    @ManagedAttribute
+    @Override
+    public int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    /**
+     * Returns the number of batches waiting or being published, summed over the backends.
+     */
+    @ManagedAttribute
+    public int getPendingBatches() {
+        int pending = 0;
+        for (final Backend backend : backends) {
+            pending += backend.executor.getQueue().size() + backend.executor.getActiveCount();
+        }
+        return pending;
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A backend with its own thread and queue.
+     */
+    private final class Backend {
+
+        private final String name;
+
+        private final MetricsPublisher publisher;
+
+        private final ThreadPoolExecutor executor;
+
+        Backend(final String name, final MetricsPublisher publisher, final int queueCapacity) {
+            this.name = name;
+            this.publisher = publisher;
+            this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), daemon("Metrics publisher thread " + name));
+        }
+
+        void submit(final List<Metric> frozen, final boolean withCounts) {
+            final Future<?> batch;
+            try {
+                batch = executor.submit(() -> publish(frozen, withCounts));
+            } catch (RejectedExecutionException e) {
+                failedPublishingRequests.increment(name);
+                LOG.warn("Dropped metrics batch for {}: {} batches already waiting", name,
+                        executor.getQueue().size());
+                return;
+            }
+            try {
+                deadlines.schedule(() -> expire(batch), timeoutSeconds, TimeUnit.SECONDS);
+            } catch (RejectedExecutionException e) {
+                // shut down in the meantime
+            }
+        }
+
+        private void publish(final List<Metric> frozen, final boolean withCounts) {
+            try {
+                publisher.publish(frozen, withCounts);
+            } catch (Exception e) {
+                LOG.error("Could not publish metrics to {}: {}", name, e.getMessage(), e);
+            }
+        }
+
+        private void expire(final Future<?> batch) {
+            if (batch.cancel(true)) {
+                failedPublishingRequests.increment(name);
+                LOG.warn("Cancelled metrics batch for {}: not published within {} seconds", name, timeoutSeconds);
+            }
+        }
+    }
+}
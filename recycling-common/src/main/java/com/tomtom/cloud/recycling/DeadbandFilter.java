@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Change detection in front of a publisher, suppressing the values of gauges that did not move enough since they
+ * were last sent.
+ * <p/>
+ * A value is sent when it is the first one of its metric, when it moved by more than the absolute threshold or by
+ * more than the relative threshold (a fraction of the last value sent), or when nothing was sent for the metric
+ * during the last {@code heartbeatIntervals - 1} intervals. The heartbeat keeps a flat series from looking like a
+ * dead one. Thresholds can be set per metric, the others use the defaults given to the constructor.
+ * <p/>
+ * A filter keeps the last value sent per series, a metric name and its dimensions. Thresholds set for a metric name
+ * apply to all of its series. It is meant to be used by a single publisher: share one filter between publishers and
+ * each of them sees only part of the values.
+ */
+public class DeadbandFilter {
+
+    private final Threshold defaultThreshold;
+
+    private final int heartbeatIntervals;
+
+    private final Map<String, Threshold> thresholds = new ConcurrentHashMap<>();
+
+    /**
+     * Last values sent, by metric name and dimensions, so that looking up a series builds no key.
+     */
+    private final Map<String, Map<DimensionSet, LastSent>> lastSent = new ConcurrentHashMap<>();
+
+    private final AtomicLong suppressedValues = new AtomicLong();
+
+    /**
+     * Creates a filter.
+     *
+     * @param absoluteThreshold  default change a value must exceed to be sent, 0 to check the relative one only
+     * @param relativeThreshold  default change a value must exceed to be sent, as a fraction of the last value
+     *                           sent, 0 to check the absolute one only. With both at 0, any change is sent.
+     * @param heartbeatIntervals a value is sent at least once in this many intervals, 1 to send every value
+     */
+    public DeadbandFilter(final double absoluteThreshold, final double relativeThreshold,
+                          final int heartbeatIntervals) {
+        if (heartbeatIntervals < 1) {
+            throw new IllegalArgumentException("heartbeatIntervals must be positive: " + heartbeatIntervals);
+        }
+        this.defaultThreshold = new Threshold(absoluteThreshold, relativeThreshold);
+        this.heartbeatIntervals = heartbeatIntervals;
+    }
+
+    /**
+     * Overrides the default thresholds of a metric.
+     *
+     * @param metricName        name of the metric
+     * @param absoluteThreshold change a value must exceed to be sent, 0 to check the relative one only
+     * @param relativeThreshold change a value must exceed to be sent, as a fraction of the last value sent,
+     *                          0 to check the absolute one only. With both at 0, any change is sent.
+     * @return this filter
+     */
+    public DeadbandFilter withThreshold(final String metricName, final double absoluteThreshold,
+                                       final double relativeThreshold) {
+        thresholds.put(metricName, new Threshold(absoluteThreshold, relativeThreshold));
+        return this;
+    }
+
+    /**
+     * Tells whether the current value of a metric should be sent, and if so remembers it as the last value sent.
+     * Must be called once per metric and interval, since the heartbeat counts the calls.
+     *
+     * @param metricName name of the metric
+     * @param value      current value
+     * @return false if the value should be suppressed
+     */
+    public boolean shouldPublish(final String metricName, final double value) {
+        return shouldPublish(metricName, DimensionSet.EMPTY, value);
+    }
+
+    /**
+     * Tells whether the current value of one series of a metric should be sent, and if so remembers it as the last
+     * value sent. Must be called once per series and interval, since the heartbeat counts the calls.
+     *
+     * @param metricName name of the metric
+     * @param dimensions dimensions of the series
+     * @param value      current value
+     * @return false if the value should be suppressed
+     */
+    public boolean shouldPublish(final String metricName, final DimensionSet dimensions, final double value) {
+        Map<DimensionSet, LastSent> series = lastSent.get(metricName);
+        if (series == null) {
+            series = new ConcurrentHashMap<>();
+            lastSent.put(metricName, series);
+        }
+        final LastSent last = series.get(dimensions);
+        if (last == null) {
+            series.put(dimensions, new LastSent(value));
+            return true;
+        }
+        if (++last.skippedIntervals >= heartbeatIntervals
+                || thresholds.getOrDefault(metricName, defaultThreshold).isExceeded(last.value, value)) {
+            last.value = value;
+            last.skippedIntervals = 0;
+            return true;
+        }
+        suppressedValues.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Returns the number of values suppressed since the filter was created.
+     *
+     * @return number of suppressed values
+     */
+    public long getSuppressedValues() {
+        return suppressedValues.get();
+    }
+
+    public int getHeartbeatIntervals() {
+        return heartbeatIntervals;
+    }
+
+    private static final class Threshold {
+
+        private final double absolute;
+
+        private final double relative;
+
+        Threshold(final double absolute, final double relative) {
+            if (!(absolute >= 0) || !(relative >= 0)) {
+                throw new IllegalArgumentException("Thresholds must not be negative: " + absolute + ", " + relative);
+            }
+            this.absolute = absolute;
+            this.relative = relative;
+        }
+
+        boolean isExceeded(final double last, final double value) {
+            final double change = Math.abs(value - last);
+            // a change from or to NaN is a change, and must not be swallowed by the comparisons below
+            if (Double.isNaN(change)) {
+                return Double.isNaN(value) != Double.isNaN(last);
+            }
+            if (absolute == 0 && relative == 0) {
+                return change > 0;
+            }
+            return absolute > 0 && change > absolute || relative > 0 && change > relative * Math.abs(last);
+        }
+    }
+
+    private static final class LastSent {
+
+        private double value;
+
+        private int skippedIntervals;
+
+        LastSent(final double value) {
+            this.value = value;
+        }
+    }
+}
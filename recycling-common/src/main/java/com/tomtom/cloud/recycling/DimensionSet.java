@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable set of dimensions of a metric, e.g. the instance, the auto scaling group or the feed, which lets a
+ * backend slice a metric without baking the dimensions into its name.
+ * <p/>
+ * Dimension sets are interned: {@link #of(Map)} returns the same instance for every map holding the same
+ * dimensions, so that publishers can key their per-series state on it and reuse what they derived from it, e.g.
+ * CloudWatch dimension lists, across data points and publishings. At most {@link #MAX_INTERNED} sets are interned;
+ * beyond that, equal sets are still equal but no longer the same instance.
+ */
+public final class DimensionSet {
+
+    /**
+     * The set without any dimension.
+     */
+    public static final DimensionSet EMPTY = new DimensionSet(Collections.<String, String>emptyMap());
+
+    /**
+     * The maximum number of interned sets, which bounds the memory taken by sets built from unbounded tag values.
+     */
+    public static final int MAX_INTERNED = 10000;
+
+    private static final ConcurrentMap<Map<String, String>, DimensionSet> INTERNED = new ConcurrentHashMap<>();
+
+    private final Map<String, String> dimensions;
+
+    private final int hash;
+
+    private final String string;
+
+    private DimensionSet(final Map<String, String> dimensions) {
+        this.dimensions = dimensions;
+        this.hash = dimensions.hashCode();
+        this.string = dimensions.toString();
+    }
+
+    /**
+     * Returns the interned set holding the given dimensions.
+     *
+     * @param dimensions dimension values by name, e.g. the keys of {@link OneTagMetricMap#getCounts()}
+     * @return the set, {@link #EMPTY} for a null or empty map
+     */
+    public static DimensionSet of(final Map<String, String> dimensions) {
+        if (dimensions == null || dimensions.isEmpty()) {
+            return EMPTY;
+        }
+        final DimensionSet interned = INTERNED.get(dimensions);
+        if (interned != null) {
+            return interned;
+        }
+        final DimensionSet created = new DimensionSet(Collections.unmodifiableMap(new TreeMap<>(dimensions)));
+        if (INTERNED.size() >= MAX_INTERNED) {
+            return created;
+        }
+        final DimensionSet raced = INTERNED.putIfAbsent(created.dimensions, created);
+        return raced == null ? created : raced;
+    }
+
+    /**
+     * Returns the dimensions of a metric.
+     *
+     * @param metric the metric
+     * @return its dimensions, {@link #EMPTY} when it describes none
+     */
+    public static DimensionSet of(final Metric metric) {
+        final DimensionSet dimensions = metric.getDimensions();
+        return dimensions == null ? EMPTY : dimensions;
+    }
+
+    /**
+     * Returns the interned set holding these dimensions and the given ones, which take precedence.
+     *
+     * @param other dimensions to add
+     * @return the combined set
+     */
+    public DimensionSet with(final DimensionSet other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        final Map<String, String> combined = new TreeMap<>(dimensions);
+        combined.putAll(other.dimensions);
+        return of(combined);
+    }
+
+    /**
+     * Returns the dimensions, sorted by name.
+     *
+     * @return unmodifiable map of dimension values by name
+     */
+    public Map<String, String> asMap() {
+        return dimensions;
+    }
+
+    public boolean isEmpty() {
+        return dimensions.isEmpty();
+    }
+
+    public int size() {
+        return dimensions.size();
+    }
+
+    static int getInternedCount() {
+        return INTERNED.size();
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        return this == other
+                || other instanceof DimensionSet && hash == ((DimensionSet) other).hash
+                && dimensions.equals(((DimensionSet) other).dimensions);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return string;
+    }
+}
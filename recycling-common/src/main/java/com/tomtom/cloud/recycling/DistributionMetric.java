@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+/**
+ * Metric read as the distribution of the values recorded during an interval, published as statistics and
+ * percentiles.
+ * <p/>
+ * Publishers dispatch on this interface, so that a {@link HistogramMetric} and its frozen copies are read alike.
+ */
+public interface DistributionMetric extends Metric {
+    /**
+     * Returns the distribution of the values recorded since the previous call and starts a new interval.
+     *
+     * @return the snapshot
+     */
+    HistogramSnapshot snapshotAndReset();
+
+    /**
+     * Returns the percentiles to publish.
+     *
+     * @return percentiles between 0 and 100
+     */
+    double[] getPercentiles();
+
+    /**
+     * Returns the number of percentiles to publish.
+     *
+     * @return number of percentiles
+     */
+    int getPercentileCount();
+
+    /**
+     * Returns a percentile to publish, without copying the percentiles.
+     *
+     * @param index index of the percentile in {@link #getPercentiles()}
+     * @return percentile between 0 and 100
+     */
+    double getPercentile(int index);
+
+    /**
+     * Returns the name of the series of a published percentile, e.g. 'latency.p99' for the 99th percentile.
+     *
+     * @param index index of the percentile in {@link #getPercentiles()}
+     * @return series name
+     */
+    String getPercentileName(int index);
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copies of metrics frozen at a point in time, which can be read by several publishers and all see the same data.
+ * <p/>
+ * Reading an {@link AggregatingMetric} or a {@link HistogramMetric} starts a new interval, so only the first of
+ * several publishers would see the recorded values. Their frozen copies are read once, and return the same
+ * statistics or snapshot to every publisher.
+ * <p/>
+ * The copies implement {@link StatisticsMetric} and {@link DistributionMetric} without extending the metrics they
+ * were read from, so freezing allocates no striped adders or histogram buckets. Percentile names and the rest of
+ * the description are read from the original metric.
+ */
+final class FrozenMetrics {
+
+    private FrozenMetrics() {
+    }
+
+    /**
+     * Reads the metrics once.
+     *
+     * @param metrics metrics to read
+     * @return frozen copies, in the same order
+     */
+    static List<Metric> freeze(final List<Metric> metrics) {
+        final List<Metric> frozen = new ArrayList<>(metrics.size());
+        for (final Metric metric : metrics) {
+            frozen.add(freeze(metric));
+        }
+        return frozen;
+    }
+
+    /**
+     * Reads a metric once. Frozen metrics are returned as they are.
+     *
+     * @param metric metric to read
+     * @return frozen copy
+     */
+    static Metric freeze(final Metric metric) {
+        if (metric instanceof FrozenValue || metric instanceof FrozenAggregatingMetric
+                || metric instanceof FrozenHistogramMetric) {
+            return metric;
+        }
+        if (metric instanceof StatisticsMetric) {
+            return new FrozenAggregatingMetric((StatisticsMetric) metric, ((StatisticsMetric) metric).drain());
+        }
+        if (metric instanceof DistributionMetric) {
+            final DistributionMetric histogram = (DistributionMetric) metric;
+            return new FrozenHistogramMetric(histogram, histogram.snapshotAndReset());
+        }
+        return value(metric, metric.getValue());
+    }
+
+    /**
+     * Creates a metric holding a value read before, with the name, dimensions, unit and resolution of the metric it
+     * was read from.
+     *
+     * @param metric metric the value was read from
+     * @param value  the value
+     * @return the metric
+     */
+    static Metric value(final Metric metric, final double value) {
+        return new FrozenValue(metric.getName(), value, DimensionSet.of(metric), metric.getUnit(),
+                metric.isHighResolution(), metric.getTimestamp());
+    }
+
+    private static final class FrozenValue implements Metric {
+
+        private final String name;
+
+        private final double value;
+
+        private final DimensionSet dimensions;
+
+        private final MetricUnit unit;
+
+        private final boolean highResolution;
+
+        private final long timestamp;
+
+        FrozenValue(final String name, final double value, final DimensionSet dimensions, final MetricUnit unit,
+                    final boolean highResolution, final long timestamp) {
+            this.name = name;
+            this.value = value;
+            this.dimensions = dimensions;
+            this.unit = unit;
+            this.highResolution = highResolution;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public double getValue() {
+            return value;
+        }
+
+        @Override
+        public DimensionSet getDimensions() {
+            return dimensions;
+        }
+
+        @Override
+        public MetricUnit getUnit() {
+            return unit;
+        }
+
+        @Override
+        public boolean isHighResolution() {
+            return highResolution;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    private static final class FrozenAggregatingMetric implements StatisticsMetric {
+
+        private final StatisticsMetric metric;
+
+        private final DimensionSet dimensions;
+
+        private final MetricStatistics statistics;
+
+        FrozenAggregatingMetric(final StatisticsMetric metric, final MetricStatistics statistics) {
+            this.metric = metric;
+            this.dimensions = DimensionSet.of(metric);
+            this.statistics = statistics;
+        }
+
+        @Override
+        public MetricStatistics drain() {
+            return statistics;
+        }
+
+        @Override
+        public String getName() {
+            return metric.getName();
+        }
+
+        @Override
+        public double getValue() {
+            return statistics.getAverage();
+        }
+
+        @Override
+        public DimensionSet getDimensions() {
+            return dimensions;
+        }
+
+        @Override
+        public MetricUnit getUnit() {
+            return metric.getUnit();
+        }
+
+        @Override
+        public boolean isHighResolution() {
+            return metric.isHighResolution();
+        }
+    }
+
+    private static final class FrozenHistogramMetric implements DistributionMetric {
+
+        private final DistributionMetric histogram;
+
+        private final DimensionSet dimensions;
+
+        private final HistogramSnapshot snapshot;
+
+        FrozenHistogramMetric(final DistributionMetric histogram, final HistogramSnapshot snapshot) {
+            this.histogram = histogram;
+            this.dimensions = DimensionSet.of(histogram);
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public HistogramSnapshot snapshotAndReset() {
+            return snapshot;
+        }
+
+        @Override
+        public double[] getPercentiles() {
+            return histogram.getPercentiles();
+        }
+
+        @Override
+        public int getPercentileCount() {
+            return histogram.getPercentileCount();
+        }
+
+        @Override
+        public double getPercentile(final int index) {
+            return histogram.getPercentile(index);
+        }
+
+        @Override
+        public String getPercentileName(final int index) {
+            return histogram.getPercentileName(index);
+        }
+
+        @Override
+        public String getName() {
+            return histogram.getName();
+        }
+
+        @Override
+        public double getValue() {
+            return snapshot.toStatistics().getAverage();
+        }
+
+        @Override
+        public DimensionSet getDimensions() {
+            return dimensions;
+        }
+
+        @Override
+        public MetricUnit getUnit() {
+            return histogram.getUnit();
+        }
+
+        @Override
+        public boolean isHighResolution() {
+            return histogram.isHighResolution();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Metric recording the distribution of values, typically latencies, so that publishers can report percentiles
+ * such as p50, p99 and p99.9 for every interval.
+ * <p/>
+ * Values are counted in a fixed set of log-linear buckets: every power of two between 2^-10 (about 0.001) and
+ * 2^30 (about 10^9) is split into 32 buckets, which bounds the relative error of a percentile to about 3% and the
+ * memory to about 10 KB per histogram. Smaller values are counted in the first bucket and greater values in the
+ * last, while the exact minimum and maximum are tracked separately.
+ * <p/>
+ * Recording is lock-free. Publishers call {@link #snapshotAndReset()} once per interval; values recorded
+ * concurrently with it may be accounted in the next interval.
+ */
+public class HistogramMetric implements DistributionMetric {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int MANTISSA_SHIFT = 52 - SUB_BUCKET_BITS;
+
+    private static final int MIN_EXPONENT = -10;
+
+    private static final int MAX_EXPONENT = 30;
+
+    private static final long FIRST_BUCKET_BITS = Double.doubleToRawLongBits(Math.scalb(1d, MIN_EXPONENT))
+            >>> MANTISSA_SHIFT;
+
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - MIN_EXPONENT) << SUB_BUCKET_BITS;
+
+    private static final double[] DEFAULT_PERCENTILES = {50, 99, 99.9};
+
+    private final String name;
+
+    private final MetricUnit unit;
+
+    private final boolean highResolution;
+
+    private final DimensionSet dimensions;
+
+    private final double[] percentiles;
+
+    private final String[] percentileNames;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final DoubleAdder sum = new DoubleAdder();
+
+    private final DoubleAccumulator minimum = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+
+    private final DoubleAccumulator maximum = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+
+    /**
+     * Creates a new histogram publishing the 50th, 99th and 99.9th percentiles.
+     *
+     * @param name metric name
+     */
+    public HistogramMetric(final String name) {
+        this(name, DEFAULT_PERCENTILES);
+    }
+
+    /**
+     * Creates a new histogram publishing the given percentiles.
+     *
+     * @param name        metric name
+     * @param percentiles percentiles to publish, between 0 and 100
+     */
+    public HistogramMetric(final String name, final double... percentiles) {
+        this(name, MetricUnit.NONE, false, percentiles);
+    }
+
+    /**
+     * Creates a new histogram publishing the given percentiles, in the unit of the recorded values.
+     *
+     * @param name           metric name
+     * @param unit           unit of the recorded values
+     * @param highResolution whether the statistics and percentiles should be stored at a resolution of one second
+     * @param percentiles    percentiles to publish, between 0 and 100
+     */
+    public HistogramMetric(final String name, final MetricUnit unit, final boolean highResolution,
+                           final double... percentiles) {
+        this(name, unit, highResolution, DimensionSet.EMPTY, percentiles);
+    }
+
+    /**
+     * Creates a new histogram publishing the given percentiles, for one series of a metric sliced by dimensions.
+     *
+     * @param name           metric name
+     * @param unit           unit of the recorded values
+     * @param highResolution whether the statistics and percentiles should be stored at a resolution of one second
+     * @param dimensions     dimensions of the series, shared by its percentiles
+     * @param percentiles    percentiles to publish, between 0 and 100
+     */
+    public HistogramMetric(final String name, final MetricUnit unit, final boolean highResolution,
+                           final DimensionSet dimensions, final double... percentiles) {
+        this.name = name;
+        this.unit = unit;
+        this.highResolution = highResolution;
+        this.dimensions = dimensions;
+        this.percentiles = percentiles.clone();
+        this.percentileNames = new String[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            if (percentiles[i] < 0 || percentiles[i] > 100) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentiles[i]);
+            }
+            percentileNames[i] = name + "." + percentileSuffix(percentiles[i]);
+        }
+    }
+
+    /**
+     * Records a single value.
+     *
+     * @param value value to record
+     */
+    public void record(final double value) {
+        minimum.accumulate(value);
+        maximum.accumulate(value);
+        sum.add(value);
+        buckets.incrementAndGet(bucketIndex(value));
+    }
+
+    @Override
+    public HistogramSnapshot snapshotAndReset() {
+        final long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.getAndSet(i, 0);
+            count += counts[i];
+        }
+        return new HistogramSnapshot(counts, count, sum.sumThenReset(), minimum.getThenReset(),
+                maximum.getThenReset());
+    }
+
+    @Override
+    public double[] getPercentiles() {
+        return percentiles.clone();
+    }
+
+    @Override
+    public int getPercentileCount() {
+        return percentiles.length;
+    }
+
+    @Override
+    public double getPercentile(final int index) {
+        return percentiles[index];
+    }
+
+    @Override
+    public String getPercentileName(final int index) {
+        return percentileNames[index];
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public DimensionSet getDimensions() {
+        return dimensions;
+    }
+
+    @Override
+    public MetricUnit getUnit() {
+        return unit;
+    }
+
+    @Override
+    public boolean isHighResolution() {
+        return highResolution;
+    }
+
+    /**
+     * Returns the average of the values recorded in the current interval, without starting a new one.
+     *
+     * @return average value, 0 when nothing was recorded
+     */
+    @Override
+    public double getValue() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += buckets.get(i);
+        }
+        return count == 0 ? 0 : sum.sum() / count;
+    }
+
+    static int bucketIndex(final double value) {
+        if (!(value > 0)) {
+            return 0;
+        }
+        final long index = (Double.doubleToRawLongBits(value) >>> MANTISSA_SHIFT) - FIRST_BUCKET_BITS;
+        return (int) Math.max(0, Math.min(BUCKET_COUNT - 1, index));
+    }
+
+    /**
+     * Returns the smallest value counted in a bucket.
+     *
+     * @param index bucket index
+     * @return lower bound of the bucket
+     */
+    static double bucketLowerBound(final int index) {
+        return Double.longBitsToDouble((index + FIRST_BUCKET_BITS) << MANTISSA_SHIFT);
+    }
+
+    private static String percentileSuffix(final double percentile) {
+        return "p" + BigDecimal.valueOf(percentile).stripTrailingZeros().toPlainString().replace(".", "");
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+/**
+ * Immutable distribution of the values recorded by a {@link HistogramMetric} during one interval.
+ */
+public final class HistogramSnapshot {
+
+    private final long[] counts;
+
+    private final long sampleCount;
+
+    private final double sum;
+
+    private final double minimum;
+
+    private final double maximum;
+
+    HistogramSnapshot(final long[] counts, final long sampleCount, final double sum,
+                      final double minimum, final double maximum) {
+        this.counts = counts;
+        this.sampleCount = sampleCount;
+        this.sum = sum;
+        this.minimum = minimum;
+        this.maximum = maximum;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public boolean isEmpty() {
+        return sampleCount == 0;
+    }
+
+    /**
+     * Returns an estimate of the value below which the given percentage of the recorded values fall.
+     * <p/>
+     * The estimate is the middle of the bucket holding that value, kept within the recorded minimum and maximum.
+     * The 0th and 100th percentiles are the exact minimum and maximum.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return the estimated value, 0 when nothing was recorded
+     */
+    public double getValueAtPercentile(final double percentile) {
+        if (sampleCount == 0) {
+            return 0;
+        }
+        if (percentile <= 0) {
+            return getMinimum();
+        }
+        if (percentile >= 100) {
+            return getMaximum();
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * sampleCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                final double middle =
+                        (HistogramMetric.bucketLowerBound(i) + HistogramMetric.bucketLowerBound(i + 1)) / 2;
+                return Math.max(getMinimum(), Math.min(getMaximum(), middle));
+            }
+        }
+        return getMaximum();
+    }
+
+    /**
+     * Returns the minimum, maximum, sum and count of the recorded values.
+     *
+     * @return the statistics, empty when nothing was recorded
+     */
+    public MetricStatistics toStatistics() {
+        return sampleCount == 0 ? MetricStatistics.EMPTY
+                : new MetricStatistics(sampleCount, sum, getMinimum(), getMaximum());
+    }
+
+    private double getMinimum() {
+        // extremes of values recorded concurrently with the snapshot may have gone to another interval
+        return minimum <= maximum ? minimum : sum / sampleCount;
+    }
+
+    private double getMaximum() {
+        return minimum <= maximum ? maximum : sum / sampleCount;
+    }
+}
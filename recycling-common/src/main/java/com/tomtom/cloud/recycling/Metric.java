@@ -17,6 +17,9 @@ package com.tomtom.cloud.recycling;
 
 /**
  * Interface for metric classes.
+ * <p/>
+ * Besides its name and value, a metric may describe its dimensions, its unit, the time its value was read and whether
+ * it should be stored at high resolution. Publishers pass on what their backend supports and ignore the rest.
  */
 public interface Metric {
     /**
@@ -32,4 +35,42 @@ public interface Metric {
      * @return Metric value.
      */
     double getValue();
+
+    /**
+     * Returns the dimensions of the metric, e.g. the feed it measures. Metrics sharing a name but not their
+     * dimensions are distinct series.
+     *
+     * @return the dimensions, {@link DimensionSet#EMPTY} by default
+     */
+    default DimensionSet getDimensions() {
+        return DimensionSet.EMPTY;
+    }
+
+    /**
+     * Returns the unit of the values.
+     *
+     * @return unit, {@link MetricUnit#NONE} by default
+     */
+    default MetricUnit getUnit() {
+        return MetricUnit.NONE;
+    }
+
+    /**
+     * Returns whether the values should be stored at a resolution of one second instead of one minute, e.g. for
+     * signals sampled every second that feed recycling decisions.
+     *
+     * @return true for high resolution, false by default
+     */
+    default boolean isHighResolution() {
+        return false;
+    }
+
+    /**
+     * Returns the time the current value was read, for metrics whose values are read ahead of publishing.
+     *
+     * @return milliseconds since the epoch, or 0 when the value is read by {@link #getValue()}, by default
+     */
+    default long getTimestamp() {
+        return 0;
+    }
 }
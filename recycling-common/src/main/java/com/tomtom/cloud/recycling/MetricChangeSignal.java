@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Signal raised when any metric moved by more than a fraction of its previous value since the signal was last
+ * evaluated, for use with an {@link AdaptiveInterval}.
+ * <p/>
+ * The values are read through {@link Metric#getValue()}, which does not reset aggregating or histogram metrics.
+ */
+public class MetricChangeSignal implements BooleanSupplier {
+
+    private final List<Metric> metrics;
+
+    private final double relativeThreshold;
+
+    private final double[] previousValues;
+
+    private boolean initialized;
+
+    /**
+     * Creates a signal.
+     *
+     * @param metrics           metrics to watch
+     * @param relativeThreshold change, as a fraction of the previous value, that raises the signal
+     */
+    public MetricChangeSignal(final List<Metric> metrics, final double relativeThreshold) {
+        if (!(relativeThreshold >= 0)) {
+            throw new IllegalArgumentException("relativeThreshold must not be negative: " + relativeThreshold);
+        }
+        this.metrics = metrics;
+        this.relativeThreshold = relativeThreshold;
+        this.previousValues = new double[metrics.size()];
+    }
+
+    @Override
+    public synchronized boolean getAsBoolean() {
+        boolean changed = false;
+        for (int i = 0; i < previousValues.length; i++) {
+            final double value = metrics.get(i).getValue();
+            final double previous = previousValues[i];
+            changed |= initialized && Math.abs(value - previous) > relativeThreshold * Math.abs(previous);
+            previousValues[i] = value;
+        }
+        initialized = true;
+        return changed;
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Reads the values of metrics in parallel, so that a slow {@link Metric#getValue()} cannot stall a publishing cycle.
+ * <p/>
+ * Values are read on a bounded pool. Each value must be available within the deadline, counted from the start of
+ * the collection: a value that misses it is skipped for this cycle and counted in {@link #getMissedValues()}.
+ * A metric whose previous read is still running is skipped as well, so a getter that hangs occupies one thread at
+ * most. {@link AggregatingMetric}s, {@link HistogramMetric}s and the metrics of a {@link MetricSnapshotService} are
+ * in-memory, they are passed through as they are and read by the publisher.
+ */
+@ManagedResource("Healer:component=worker,sub=metricCollector")
+public class MetricCollector {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricCollector.class);
+
+    private final ThreadPoolExecutor executor;
+
+    private final long deadlineMillis;
+
+    /**
+     * Metrics being read at the moment.
+     */
+    private final Set<Metric> reading = ConcurrentHashMap.newKeySet();
+
+    private final OneTagMetricMap<String> missedValues = new OneTagMetricMap<>("metricName");
+
+    /**
+     * Creates a collector.
+     *
+     * @param threads        number of threads reading values
+     * @param queueCapacity  number of reads that may wait for a thread
+     * @param deadlineMillis time within which every value must be read, in milliseconds
+     */
+    public MetricCollector(final int threads, final int queueCapacity, final long deadlineMillis) {
+        if (deadlineMillis < 1) {
+            throw new IllegalArgumentException("deadlineMillis must be positive: " + deadlineMillis);
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    final Thread thread = new Thread(runnable,
+                            "Metric collector thread " + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Reads the current values of the metrics.
+     *
+     * @param metrics metrics to read
+     * @return the metrics holding the values read in time, in the original order, leaving out the metrics that
+     * missed the deadline
+     */
+    public List<Metric> collect(final List<Metric> metrics) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        final List<Future<Double>> values = new ArrayList<>(metrics.size());
+        for (final Metric metric : metrics) {
+            values.add(isInMemory(metric) ? null : submit(metric));
+        }
+        final List<Metric> collected = new ArrayList<>(metrics.size());
+        for (int i = 0; i < metrics.size(); i++) {
+            final Metric metric = metrics.get(i);
+            if (isInMemory(metric)) {
+                collected.add(metric);
+                continue;
+            }
+            final Future<Double> value = values.get(i);
+            if (value == null) {
+                missedValues.increment(metric.getName());
+                continue;
+            }
+            try {
+                collected.add(FrozenMetrics.value(metric,
+                        value.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)));
+            } catch (TimeoutException e) {
+                cancel(value);
+                missedValues.increment(metric.getName());
+                LOG.warn("Skipped metric {}: its value was not read within {} ms", metric.getName(), deadlineMillis);
+            } catch (ExecutionException e) {
+                missedValues.increment(metric.getName());
+                LOG.error("Could not read metric {} because of: {}", metric.getName(),
+                        e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return collected;
+            }
+        }
+        return collected;
+    }
+
+    /**
+     * Stops the threads reading values.
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @ManagedMetric
+    public Map<Map<String, String>, ? extends Number> getMissedValues() {
+        return missedValues.getCounts();
+    }
+
+    @ManagedAttribute
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    @ManagedAttribute
+    public int getActiveReads() {
+        return executor.getActiveCount();
+    }
+
+    private Future<Double> submit(final Metric metric) {
+        if (!reading.add(metric)) {
+            LOG.warn("Skipped metric {}: its previous value is still being read", metric.getName());
+            return null;
+        }
+        final AtomicBoolean started = new AtomicBoolean();
+        final FutureTask<Double> read = new FutureTask<Double>(() -> {
+            started.set(true);
+            try {
+                return metric.getValue();
+            } finally {
+                reading.remove(metric);
+            }
+        }) {
+            @Override
+            protected void done() {
+                // a read cancelled before it started never runs the block clearing its metric
+                if (!started.get()) {
+                    reading.remove(metric);
+                }
+            }
+        };
+        try {
+            executor.execute(read);
+            return read;
+        } catch (RejectedExecutionException e) {
+            reading.remove(metric);
+            LOG.warn("Skipped metric {}: too many values being read", metric.getName());
+            return null;
+        }
+    }
+
+    /**
+     * Cancels a read. A read still waiting for a thread is removed from the queue and clears its metric from the
+     * reads in progress once cancelled, even when a thread took it from the queue without running it yet. A running
+     * read is interrupted and clears it when it completes.
+     */
+    private void cancel(final Future<Double> value) {
+        // the executor queues the futures it is given
+        executor.remove((Runnable) value);
+        value.cancel(true);
+    }
+
+    private static boolean isInMemory(final Metric metric) {
+        return metric instanceof StatisticsMetric || metric instanceof DistributionMetric
+                || metric instanceof MetricSnapshotService.SnapshotMetric;
+    }
+}
@@ -0,0 +1,295 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Reads every registered metric once per interval, so that expensive gauges are not computed again by every
+ * publisher, JMX client and recycling trigger.
+ * <p/>
+ * The values are read on a single thread into new arrays, which then replace the previous snapshot. The metrics
+ * returned by {@link #getMetrics()} read their values from the current snapshot and should be given to the consumers
+ * instead of the registered metrics. The first snapshot is taken by {@link #start()} on the calling thread, so that
+ * consumers started next never see a metric without value; before, they return {@link Double#NaN}, which the
+ * publishers skip. A metric whose value cannot be read keeps its previous value together with the time that value
+ * was read, so that consumers see how old it is, and the failure is counted.
+ * <p/>
+ * {@link AggregatingMetric} and {@link HistogramMetric} instances are returned as they are: their values are kept in
+ * memory, and publishing them starts a new interval.
+ */
+@ManagedResource("Healer:component=worker,sub=metricSnapshotService")
+public class MetricSnapshotService {
+
+    private final int intervalSeconds;
+
+    private final Metric[] sources;
+
+    /**
+     * Series names of the sources, telling apart the series of a metric name.
+     */
+    private final String[] names;
+
+    private final List<Metric> views;
+
+    private volatile Snapshot snapshot;
+
+    private volatile long snapshotMillis;
+
+    private final OneTagMetricMap<String> failedReads = new OneTagMetricMap<>("metricName");
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Constructor that should be used during system initialization, preferably in a configuration bean.
+     *
+     * @param metrics         registered metrics
+     * @param intervalSeconds interval between snapshots
+     */
+    public MetricSnapshotService(final List<Metric> metrics, final int intervalSeconds) {
+        if (intervalSeconds < 1) {
+            throw new IllegalArgumentException("intervalSeconds must be positive: " + intervalSeconds);
+        }
+        this.intervalSeconds = intervalSeconds;
+        final List<Metric> plain = new ArrayList<>(metrics.size());
+        this.views = new ArrayList<>(metrics.size());
+        for (final Metric metric : metrics) {
+            if (metric instanceof StatisticsMetric || metric instanceof DistributionMetric) {
+                views.add(metric);
+            } else {
+                views.add(new SnapshotMetric(this, metric, plain.size()));
+                plain.add(metric);
+            }
+        }
+        this.sources = plain.toArray(new Metric[plain.size()]);
+        this.names = new String[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            final DimensionSet dimensions = DimensionSet.of(sources[i]);
+            names[i] = dimensions.isEmpty() ? sources[i].getName() : sources[i].getName() + dimensions;
+        }
+        final double[] initial = new double[sources.length];
+        Arrays.fill(initial, Double.NaN);
+        this.snapshot = new Snapshot(initial, new long[sources.length]);
+    }
+
+    /**
+     * Returns the metrics to give to the consumers, in the order they were registered.
+     *
+     * @return metrics reading from the snapshot
+     */
+    public List<Metric> getMetrics() {
+        return views;
+    }
+
+    /**
+     * Take the first snapshot, then take snapshots at every interval after object creation.
+     */
+    @ManagedOperation
+    @PostConstruct
+    public synchronized void start() {
+        if (executor == null) {
+            refresh();
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "Metric snapshot thread");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleAtFixedRate(this::refresh, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stop taking snapshots when the shutdown hook is invoked.
+     */
+    @ManagedOperation
+    @PreDestroy
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Reads every metric once and replaces the snapshot.
+     */
+    void refresh() {
+        final Snapshot previous = snapshot;
+        final double[] values = new double[sources.length];
+        final long[] readMillis = new long[sources.length];
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < sources.length; i++) {
+            try {
+                values[i] = sources[i].getValue();
+                readMillis[i] = now;
+            } catch (Exception e) {
+                values[i] = previous.values[i];
+                readMillis[i] = previous.readMillis[i];
+                failedReads.increment(names[i]);
+            }
+        }
+        snapshot = new Snapshot(values, readMillis);
+        snapshotMillis = now;
+    }
+
+    double valueAt(final int index) {
+        return snapshot.values[index];
+    }
+
+    long readMillisAt(final int index) {
+        return snapshot.readMillis[index];
+    }
+
+    /**
+     * Returns the values of the last snapshot, by series: the metric name, followed by the dimensions of a metric
+     * sliced by dimensions, e.g. 'queue.size{feed=traffic}'.
+     *
+     * @return values
+     */
+    @ManagedAttribute
+    public Map<String, Double> getValues() {
+        final double[] values = snapshot.values;
+        final Map<String, Double> result = new LinkedHashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            result.put(names[i], values[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the age of the last snapshot.
+     *
+     * @return age in milliseconds, or -1 when no snapshot was taken
+     */
+    @ManagedAttribute
+    public long getSnapshotAgeMillis() {
+        final long taken = snapshotMillis;
+        return taken == 0 ? -1 : System.currentTimeMillis() - taken;
+    }
+
+    @ManagedAttribute
+    public int getIntervalSeconds() {
+        return intervalSeconds;
+    }
+
+    @ManagedAttribute
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    /**
+     * Returns the number of values that could not be read, per series.
+     *
+     * @return failed reads
+     */
+    @ManagedMetric
+    public Map<Map<String, String>, ? extends Number> getFailedReads() {
+        return failedReads.getCounts();
+    }
+
+    /**
+     * A metric reading its value from the current snapshot.
+     */
+    static final class SnapshotMetric implements Metric {
+
+        private final MetricSnapshotService service;
+
+        private final String name;
+
+        private final DimensionSet dimensions;
+
+        private final MetricUnit unit;
+
+        private final boolean highResolution;
+
+        private final int index;
+
+        SnapshotMetric(final MetricSnapshotService service, final Metric metric, final int index) {
+            this.service = service;
+            this.name = metric.getName();
+            this.dimensions = DimensionSet.of(metric);
+            this.unit = metric.getUnit();
+            this.highResolution = metric.isHighResolution();
+            this.index = index;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public double getValue() {
+            return service.valueAt(index);
+        }
+
+        @Override
+        public DimensionSet getDimensions() {
+            return dimensions;
+        }
+
+        @Override
+        public MetricUnit getUnit() {
+            return unit;
+        }
+
+        @Override
+        public boolean isHighResolution() {
+            return highResolution;
+        }
+
+        /**
+         * Returns the time the value was read, which is older than the snapshot holding it when the last reads
+         * failed.
+         *
+         * @return milliseconds since the epoch, 0 before the value was first read
+         */
+        @Override
+        public long getTimestamp() {
+            return service.readMillisAt(index);
+        }
+    }
+
+    /**
+     * Values read together, and the time each of them was read.
+     */
+    private static final class Snapshot {
+
+        private final double[] values;
+
+        private final long[] readMillis;
+
+        Snapshot(final double[] values, final long[] readMillis) {
+            this.values = values;
+            this.readMillis = readMillis;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local, size-capped spool of the data points that could not be published, so that they can be replayed once the
+ * backend is reachable again instead of being lost.
+ * <p/>
+ * Data points are appended to a memory-mapped file and read back in the order they were appended. The read and
+ * write positions are kept in the file header, so the spool survives a restart of the JVM: the operating system
+ * writes the mapped pages back even if the JVM dies, and {@link #close()} forces them to the disk.
+ * When the spool is full, new data points are dropped and counted in {@link #getDroppedDatums()}.
+ * <p/>
+ * File layout: a header holding a magic number, the read and the write position, followed by the records.
+ * Each record holds its length, the timestamp, the sample count, sum, minimum and maximum, and the UTF-8 name,
+ * followed by the number of dimensions and their UTF-8 names and values when the data point has dimensions or a
+ * unit, followed by the UTF-8 name of the unit when it has one. Records without dimensions and unit keep the layout
+ * of earlier versions.
+ * The space of replayed records is reclaimed when the spool is drained, or by moving the pending records to the
+ * start of the file when an append would not fit otherwise.
+ */
+public class MetricSpool implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricSpool.class);
+
+    private static final int MAGIC = 0x53504f4c;
+
+    private static final int MAGIC_OFFSET = 0;
+
+    private static final int READ_POSITION_OFFSET = 8;
+
+    private static final int WRITE_POSITION_OFFSET = 16;
+
+    private static final int HEADER_SIZE = 32;
+
+    /**
+     * Length prefix, timestamp, sample count, sum, minimum, maximum and name length.
+     */
+    private static final int RECORD_OVERHEAD = 4 + 8 + 8 + 8 + 8 + 8 + 2;
+
+    private final Path file;
+
+    private final int capacityBytes;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    private final AtomicLong droppedDatums = new AtomicLong();
+
+    private int readPosition;
+
+    private int writePosition;
+
+    private int size;
+
+    /**
+     * Opens the spool stored in a file, creating it if it does not exist.
+     *
+     * @param file          the spool file
+     * @param capacityBytes maximum number of bytes occupied by spooled records
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public MetricSpool(final Path file, final int capacityBytes) throws IOException {
+        if (capacityBytes < RECORD_OVERHEAD) {
+            throw new IllegalArgumentException("capacityBytes is too small: " + capacityBytes);
+        }
+        this.file = file;
+        this.capacityBytes = capacityBytes;
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) HEADER_SIZE + capacityBytes);
+        recover();
+    }
+
+    /**
+     * Appends a data point.
+     *
+     * @param datum the data point
+     * @return false if the spool is full and the data point was dropped
+     */
+    public synchronized boolean append(final SpooledDatum datum) {
+        final byte[] name = datum.getName().getBytes(StandardCharsets.UTF_8);
+        final Map<String, String> dimensions = datum.getDimensions().asMap();
+        final byte[][] dimensionBytes = new byte[dimensions.size() * 2][];
+        int length = RECORD_OVERHEAD + name.length + (dimensions.isEmpty() ? 0 : 2);
+        int i = 0;
+        for (final Map.Entry<String, String> dimension : dimensions.entrySet()) {
+            dimensionBytes[i++] = dimension.getKey().getBytes(StandardCharsets.UTF_8);
+            dimensionBytes[i++] = dimension.getValue().getBytes(StandardCharsets.UTF_8);
+        }
+        final byte[] unit = datum.getUnit() == MetricUnit.NONE
+                ? null : datum.getUnit().toString().getBytes(StandardCharsets.UTF_8);
+        if (unit != null) {
+            length += (dimensions.isEmpty() ? 2 : 0) + 2 + unit.length;
+        }
+        boolean tooLong = name.length > Short.MAX_VALUE;
+        for (final byte[] bytes : dimensionBytes) {
+            length += 2 + bytes.length;
+            tooLong |= bytes.length > Short.MAX_VALUE;
+        }
+        if (tooLong || !makeRoom(length)) {
+            droppedDatums.incrementAndGet();
+            return false;
+        }
+        final MetricStatistics statistics = datum.getStatistics();
+        final ByteBuffer record = data(writePosition, length);
+        record.putInt(length - 4)
+                .putLong(datum.getTimestamp())
+                .putLong(statistics.getSampleCount())
+                .putDouble(statistics.getSum())
+                .putDouble(statistics.getMinimum())
+                .putDouble(statistics.getMaximum())
+                .putShort((short) name.length)
+                .put(name);
+        if (!dimensions.isEmpty() || unit != null) {
+            record.putShort((short) dimensions.size());
+            for (final byte[] bytes : dimensionBytes) {
+                record.putShort((short) bytes.length).put(bytes);
+            }
+        }
+        if (unit != null) {
+            record.putShort((short) unit.length).put(unit);
+        }
+        // the record is complete before the header makes it visible
+        setPositions(readPosition, writePosition + length);
+        size++;
+        return true;
+    }
+
+    /**
+     * Returns the oldest data points without removing them.
+     *
+     * @param maxDatums maximum number of data points to return
+     * @return up to {@code maxDatums} data points, oldest first
+     */
+    public synchronized List<SpooledDatum> peek(final int maxDatums) {
+        if (readPosition == writePosition) {
+            return Collections.emptyList();
+        }
+        final List<SpooledDatum> datums = new ArrayList<>(Math.min(maxDatums, size));
+        int position = readPosition;
+        while (datums.size() < maxDatums && position < writePosition) {
+            final ByteBuffer record = data(position, writePosition - position);
+            datums.add(read(record));
+            position += record.position();
+        }
+        return datums;
+    }
+
+    /**
+     * Removes the oldest data points, typically those returned by {@link #peek(int)} once they were replayed.
+     *
+     * @param count number of data points to remove
+     */
+    public synchronized void remove(final int count) {
+        int position = readPosition;
+        for (int i = 0; i < count && position < writePosition; i++) {
+            position += 4 + data(position, 4).getInt();
+            size--;
+        }
+        if (position >= writePosition) {
+            setPositions(0, 0);
+            size = 0;
+        } else {
+            setPositions(position, writePosition);
+        }
+    }
+
+    /**
+     * Removes and returns the oldest data points.
+     *
+     * @param maxDatums maximum number of data points to return
+     * @return up to {@code maxDatums} data points, oldest first
+     */
+    public synchronized List<SpooledDatum> poll(final int maxDatums) {
+        final List<SpooledDatum> datums = peek(maxDatums);
+        remove(datums.size());
+        return datums;
+    }
+
+    /**
+     * Returns the number of spooled data points.
+     *
+     * @return number of data points waiting to be replayed
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the number of data points dropped because the spool was full.
+     *
+     * @return number of dropped data points
+     */
+    public long getDroppedDatums() {
+        return droppedDatums.get();
+    }
+
+    public int getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    /**
+     * Forces the spooled data points to the disk and closes the file.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Makes sure a record of the given length fits after the write position.
+     */
+    private boolean makeRoom(final int length) {
+        if (writePosition + length <= capacityBytes) {
+            return true;
+        }
+        final int pending = writePosition - readPosition;
+        if (pending + length > capacityBytes) {
+            return false;
+        }
+        final ByteBuffer source = data(readPosition, pending);
+        data(0, pending).put(source);
+        setPositions(0, pending);
+        return true;
+    }
+
+    private SpooledDatum read(final ByteBuffer record) {
+        final int length = record.getInt();
+        if (length < RECORD_OVERHEAD - 4 || length > record.remaining()) {
+            throw new IllegalStateException("Corrupt record of length " + length);
+        }
+        final int end = record.position() + length;
+        final long timestamp = record.getLong();
+        final long sampleCount = record.getLong();
+        final double sum = record.getDouble();
+        final double minimum = record.getDouble();
+        final double maximum = record.getDouble();
+        final String name = readString(record);
+        DimensionSet dimensions = DimensionSet.EMPTY;
+        if (record.position() < end) {
+            final int count = record.getShort();
+            final Map<String, String> values = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                values.put(readString(record), readString(record));
+            }
+            dimensions = DimensionSet.of(values);
+        }
+        final MetricUnit unit = record.position() < end ? MetricUnit.fromString(readString(record)) : MetricUnit.NONE;
+        if (record.position() != end) {
+            throw new IllegalStateException("Corrupt record of length " + length);
+        }
+        return new SpooledDatum(name, dimensions, unit, timestamp,
+                new MetricStatistics(sampleCount, sum, minimum, maximum));
+    }
+
+    private static String readString(final ByteBuffer record) {
+        final byte[] bytes = new byte[record.getShort()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Restores the positions stored in the header, starting over if the file is new or not a valid spool.
+     */
+    private void recover() {
+        final int magic = buffer.getInt(MAGIC_OFFSET);
+        final long read = buffer.getLong(READ_POSITION_OFFSET);
+        final long write = buffer.getLong(WRITE_POSITION_OFFSET);
+        if (magic != MAGIC || read < 0 || read > write || write > capacityBytes) {
+            if (magic == MAGIC) {
+                LOG.warn("Discarding metric spool {} with invalid positions {} and {}", file, read, write);
+            }
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            setPositions(0, 0);
+            return;
+        }
+        readPosition = (int) read;
+        writePosition = (int) write;
+        try {
+            for (int position = readPosition; position < writePosition; size++) {
+                final ByteBuffer record = data(position, writePosition - position);
+                read(record);
+                position += record.position();
+            }
+        } catch (IllegalStateException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            LOG.warn("Discarding corrupt metric spool {}: {}", file, e.getMessage());
+            setPositions(0, 0);
+            size = 0;
+        }
+        if (size > 0) {
+            LOG.info("Recovered {} unpublished data point(s) from metric spool {}", size, file);
+        }
+    }
+
+    private void setPositions(final int read, final int write) {
+        buffer.putLong(READ_POSITION_OFFSET, read);
+        buffer.putLong(WRITE_POSITION_OFFSET, write);
+        readPosition = read;
+        writePosition = write;
+    }
+
+    /**
+     * Returns a view on the data region, starting at the given position.
+     */
+    private ByteBuffer data(final int position, final int length) {
+        final ByteBuffer view = buffer.duplicate();
+        view.position(HEADER_SIZE + position);
+        view.limit(HEADER_SIZE + position + length);
+        return view.slice();
+    }
+}
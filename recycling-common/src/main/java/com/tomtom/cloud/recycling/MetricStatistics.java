@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+/**
+ * Immutable minimum, maximum, sum and count of the values recorded during one interval.
+ */
+public final class MetricStatistics {
+
+    /**
+     * Statistics of an interval without any recorded value.
+     */
+    public static final MetricStatistics EMPTY = new MetricStatistics(0, 0, 0, 0);
+
+    private final long sampleCount;
+
+    private final double sum;
+
+    private final double minimum;
+
+    private final double maximum;
+
+    public MetricStatistics(final long sampleCount, final double sum, final double minimum, final double maximum) {
+        this.sampleCount = sampleCount;
+        this.sum = sum;
+        this.minimum = minimum;
+        this.maximum = maximum;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getMinimum() {
+        return minimum;
+    }
+
+    public double getMaximum() {
+        return maximum;
+    }
+
+    /**
+     * Returns the average of the recorded values.
+     *
+     * @return average value, 0 when nothing was recorded
+     */
+    public double getAverage() {
+        return sampleCount == 0 ? 0 : sum / sampleCount;
+    }
+
+    public boolean isEmpty() {
+        return sampleCount == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "{sampleCount=" + sampleCount + ", sum=" + sum + ", minimum=" + minimum + ", maximum=" + maximum + "}";
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+/**
+ * Unit of the values of a metric.
+ * <p/>
+ * The names are the ones CloudWatch uses, which the Embedded Metric Format uses as well, so that publishers can
+ * pass them on as they are.
+ */
+public enum MetricUnit {
+
+    NONE("None"),
+    COUNT("Count"),
+    PERCENT("Percent"),
+    SECONDS("Seconds"),
+    MILLISECONDS("Milliseconds"),
+    MICROSECONDS("Microseconds"),
+    BYTES("Bytes"),
+    KILOBYTES("Kilobytes"),
+    MEGABYTES("Megabytes"),
+    GIGABYTES("Gigabytes"),
+    BITS("Bits"),
+    COUNT_PER_SECOND("Count/Second"),
+    BYTES_PER_SECOND("Bytes/Second"),
+    BITS_PER_SECOND("Bits/Second");
+
+    private final String value;
+
+    MetricUnit(final String value) {
+        this.value = value;
+    }
+
+    /**
+     * Returns the unit with the given name.
+     *
+     * @param value name of the unit, e.g. 'Count/Second'
+     * @return the unit, {@link #NONE} for null or an unknown name
+     */
+    public static MetricUnit fromString(final String value) {
+        for (final MetricUnit unit : values()) {
+            if (unit.value.equals(value)) {
+                return unit;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Returns the name of the unit, e.g. 'Count/Second'.
+     *
+     * @return name
+     */
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.tomtom.cloud.recycling;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -27,6 +28,30 @@ public interface MetricsPublisher {
      */
     void publish();
 
+    /**
+     * Publish the given metrics instead of the configured ones, for schedulers that decide which metrics are due.
+     * Counts kept by the publisher are not published.
+     *
+     * @param metrics metrics to publish
+     */
+    default void publish(final List<Metric> metrics) {
+        publish(metrics, false);
+    }
+
+    /**
+     * Publish the given metrics instead of the configured ones, along with the counts kept by the publisher if
+     * requested. Counts are cumulative, so a scheduler publishing groups of metrics requests them with one group only.
+     * <p/>
+     * The default implementation is meant for publishers that can only publish their configured metrics, and
+     * publishes them through {@link #publish()}.
+     *
+     * @param metrics    metrics to publish
+     * @param withCounts true to publish the counts as well
+     */
+    default void publish(final List<Metric> metrics, final boolean withCounts) {
+        publish();
+    }
+
     /**
      * Return failed publishing requests.
      *
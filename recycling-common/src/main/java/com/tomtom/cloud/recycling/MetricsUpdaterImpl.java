@@ -24,24 +24,58 @@ import org.springframework.jmx.export.annotation.ManagedResource;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Uses a metric publisher to publish metrics at defined intervals.
  * The publishing can be enabled and disabled and is disabled by default.
+ * <p/>
+ * The interval is either fixed, or adapts between bounds to what is going on, see {@link AdaptiveInterval}.
+ * When a publishing takes longer than the interval, the {@link OverrunPolicy} decides when the next one starts;
+ * by default the missed publishing are coalesced into one. The duration of the publishing and the overruns are
+ * exposed through JMX.
+ * <p/>
+ * Nodes deployed together would all publish in the same second. Given an instance id, every node publishes at a
+ * phase of the interval derived from it, so that the publishing of a fleet spreads over the interval; an optional
+ * random jitter delays every publishing a little more.
  */
 @ManagedResource("Healer:component=worker,sub=cloudWatchMetricsUpdater")
 public class MetricsUpdaterImpl implements MetricsUpdater {
 
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsUpdaterImpl.class);
+
     private final MetricsPublisher publisher;
 
     private final int sleepIntervalSeconds;
 
+    /**
+     * Adapts the interval between publishing, null for a fixed interval.
+     */
+    private final AdaptiveInterval adaptiveInterval;
+
     private volatile boolean enabled;
 
-    private ScheduledExecutorService executor;
+    private volatile OverrunPolicy overrunPolicy = OverrunPolicy.COALESCE;
+
+    private volatile String instanceId;
+
+    private volatile long jitterMillis;
 
+    private volatile long phaseOffsetMillis;
+
+    private volatile long lastPublishNanos;
+
+    private volatile long maxPublishNanos;
+
+    private final AtomicLong overruns = new AtomicLong();
+
+    private final PublishingStatistics statistics = new PublishingStatistics("MetricsUpdater");
+
+    private ScheduledExecutorService executor;
 
     /**
      * Constructor that should be used during system initialization, preferably in a configuration bean.
@@ -53,8 +87,34 @@ public class MetricsUpdaterImpl implements MetricsUpdater {
     public MetricsUpdaterImpl(final MetricsPublisher publisher,
                               final int sleepIntervalSeconds,
                               final boolean enabled) {
+        if (sleepIntervalSeconds < 1) {
+            throw new IllegalArgumentException("sleepIntervalSeconds must be positive: " + sleepIntervalSeconds);
+        }
         this.publisher = publisher;
         this.sleepIntervalSeconds = sleepIntervalSeconds;
+        this.adaptiveInterval = null;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Constructor for an adaptive interval, that should be used during system initialization, preferably in a
+     * configuration bean.
+     *
+     * @param publisher        metrics published
+     * @param adaptiveInterval decides the interval before every publishing
+     * @param enabled          true to enable it
+     */
+    public MetricsUpdaterImpl(final MetricsPublisher publisher,
+                              final AdaptiveInterval adaptiveInterval,
+                              final boolean enabled) {
+        final long maxIntervalMillis = adaptiveInterval.getMaxIntervalMillis();
+        if (maxIntervalMillis < TimeUnit.SECONDS.toMillis(1)) {
+            throw new IllegalArgumentException("maximum interval must be at least one second: " + maxIntervalMillis
+                    + " ms");
+        }
+        this.publisher = publisher;
+        this.sleepIntervalSeconds = (int) TimeUnit.MILLISECONDS.toSeconds(maxIntervalMillis);
+        this.adaptiveInterval = adaptiveInterval;
         this.enabled = enabled;
     }
 
@@ -67,10 +127,86 @@ public class MetricsUpdaterImpl implements MetricsUpdater {
     public synchronized void start() {
         if (executor == null) {
             executor = Executors.newSingleThreadScheduledExecutor();
-            executor.scheduleAtFixedRate(
-                    new MetricsUpdaterThread(this, publisher),
-                    0, sleepIntervalSeconds, TimeUnit.SECONDS);
+            final ScheduledExecutorService scheduler = executor;
+            final Runnable publishing = new MetricsUpdaterThread(this, publisher);
+            final long intervalMillis = getEffectiveIntervalMillis();
+            final long delay;
+            if (instanceId == null) {
+                phaseOffsetMillis = 0;
+                delay = 0;
+            } else {
+                phaseOffsetMillis = phaseOffsetMillis(instanceId, intervalMillis);
+                delay = Math.floorMod(phaseOffsetMillis - System.currentTimeMillis(), intervalMillis);
+            }
+            final long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            final long jitter = jitterNanos(TimeUnit.MILLISECONDS.toNanos(intervalMillis));
+            scheduler.schedule(() -> publishAndReschedule(scheduler, publishing, due, jitter),
+                    due + jitter - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Publishes, then schedules the next publishing according to the interval and the overrun policy.
+     *
+     * @param due    when this publishing was due, in nanoseconds
+     * @param jitter how long after it was due this publishing was delayed on purpose, in nanoseconds
+     */
+    private void publishAndReschedule(final ScheduledExecutorService scheduler, final Runnable publishing,
+                                      final long due, final long jitter) {
+        final long start = System.nanoTime();
+        publishing.run();
+        final long end = System.nanoTime();
+        final long duration = end - start;
+        lastPublishNanos = duration;
+        maxPublishNanos = Math.max(maxPublishNanos, duration);
+        statistics.recordCycle(duration);
+        final long interval = TimeUnit.MILLISECONDS.toNanos(adaptiveInterval == null
+                ? TimeUnit.SECONDS.toMillis(sleepIntervalSeconds) : adaptiveInterval.nextIntervalMillis());
+        if (end - due - jitter > interval) {
+            overruns.incrementAndGet();
+            LOG.warn("Publishing metrics took {} ms, longer than the interval of {} ms",
+                    TimeUnit.NANOSECONDS.toMillis(duration), TimeUnit.NANOSECONDS.toMillis(interval));
         }
+        // the jitter is not carried over to when the next publishing is due, so that the phase does not drift
+        final long next = overrunPolicy.nextDue(due, end, interval);
+        final long nextJitter = jitterNanos(interval);
+        try {
+            scheduler.schedule(() -> publishAndReschedule(scheduler, publishing, next, nextJitter),
+                    next + nextJitter - end, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped in the meantime
+        }
+    }
+
+    /**
+     * Draws the random delay of a publishing, at most half the interval so that publishing keep their order.
+     *
+     * @param interval the interval, in nanoseconds
+     * @return the delay in nanoseconds, 0 without jitter
+     */
+    private long jitterNanos(final long interval) {
+        final long bound = Math.min(TimeUnit.MILLISECONDS.toNanos(jitterMillis), interval / 2);
+        return bound > 0 ? ThreadLocalRandom.current().nextLong(bound) : 0;
+    }
+
+    /**
+     * Derives the phase of the publishing of an instance from its id. Ids of instances started together tend to
+     * share most of their characters, so their hash is mixed before it is reduced to the interval.
+     *
+     * @param instanceId     id of the instance
+     * @param intervalMillis interval between publishing in milliseconds
+     * @return offset from the start of the interval in milliseconds, in [0, intervalMillis)
+     */
+    static long phaseOffsetMillis(final String instanceId, final long intervalMillis) {
+        // FNV-1a, then the finalizer of MurmurHash3 to spread every bit over the whole hash
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < instanceId.length(); i++) {
+            hash = (hash ^ instanceId.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return Math.floorMod(hash, intervalMillis);
     }
 
     /**
@@ -104,11 +240,124 @@ public class MetricsUpdaterImpl implements MetricsUpdater {
         return executor != null;
     }
 
+    /**
+     * Returns the configured interval, or the maximum interval when it is adaptive.
+     *
+     * @return interval in seconds
+     */
     @ManagedAttribute
     @Override
     public int getSleepIntervalSeconds() {
         return sleepIntervalSeconds;
     }
+
+    /**
+     * Returns the interval currently applied, which differs from {@link #getSleepIntervalSeconds()} when it is
+     * adaptive.
+     *
+     * @return interval in milliseconds
+     */
+    @ManagedAttribute
+    public long getEffectiveIntervalMillis() {
+        return adaptiveInterval == null
+                ? TimeUnit.SECONDS.toMillis(sleepIntervalSeconds) : adaptiveInterval.getCurrentIntervalMillis();
+    }
+
+    @ManagedAttribute
+    public boolean isAdaptive() {
+        return adaptiveInterval != null;
+    }
+
+    /**
+     * Sets what happens when a publishing takes longer than the interval.
+     *
+     * @param overrunPolicy the policy
+     */
+    public void setOverrunPolicy(final OverrunPolicy overrunPolicy) {
+        this.overrunPolicy = overrunPolicy;
+    }
+
+    @ManagedAttribute
+    public String getOverrunPolicy() {
+        return overrunPolicy.name();
+    }
+
+    /**
+     * Sets the id of the instance, from which the phase of the publishing in the interval is derived. Without it,
+     * the first publishing starts right away. Takes effect at the next start.
+     *
+     * @param instanceId id of the instance, e.g. the one of the cloud VM
+     */
+    public void setInstanceId(final String instanceId) {
+        this.instanceId = instanceId;
+    }
+
+    @ManagedAttribute
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * Sets the maximum random delay of every publishing, which is further bounded by half the interval.
+     *
+     * @param jitterMillis maximum delay in milliseconds, 0 for none
+     */
+    public void setJitterMillis(final long jitterMillis) {
+        if (jitterMillis < 0) {
+            throw new IllegalArgumentException("jitterMillis must not be negative: " + jitterMillis);
+        }
+        this.jitterMillis = jitterMillis;
+    }
+
+    @ManagedAttribute
+    public long getJitterMillis() {
+        return jitterMillis;
+    }
+
+    /**
+     * Returns the offset from the start of the interval, in wall-clock time, at which this instance publishes.
+     *
+     * @return offset in milliseconds, 0 without instance id
+     */
+    @ManagedAttribute
+    public long getPhaseOffsetMillis() {
+        return phaseOffsetMillis;
+    }
+
+    @ManagedAttribute
+    public long getLastPublishDurationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastPublishNanos);
+    }
+
+    @ManagedAttribute
+    public long getMaxPublishDurationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxPublishNanos);
+    }
+
+    @ManagedAttribute
+    public long getPublishCount() {
+        return statistics.getCycles();
+    }
+
+    /**
+     * Returns the distribution of the publishing durations, whose metrics can be published in a namespace of their
+     * own.
+     *
+     * @return the statistics
+     */
+    public PublishingStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Returns the number of publishing that ended later than the start of the next one was due.
+     *
+     * @return number of overruns
+     */
+    @ManagedAttribute
+    public long getOverrunCount() {
+        return overruns.get();
+    }
 }
 
 /**
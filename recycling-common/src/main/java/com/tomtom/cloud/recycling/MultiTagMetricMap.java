@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent map of atomic counters, using keys made of several tags.
+ * <p/>
+ * It replaces parallel {@link OneTagMetricMap}s that slice the same events along different tags: a single map with
+ * the tags 'feed', 'region' and 'status' counts every combination once, like so:
+ * <p/>
+ * {
+ *   {feed=FIN, region=eu, status=ok}=108,
+ *   {feed=FIN, region=eu, status=stale}=3,
+ *   {feed=CZE, region=eu, status=ok}=51,
+ *   ..
+ * }
+ * <p/>
+ * Tag values are passed in the order of the tag names given at construction. Keys are compact and pre-hashed,
+ * and a counter is looked up through a per-thread probe key, so updating a known combination of tags allocates
+ * no key. {@link #getCounts()} exposes the same map of numbers per tags as {@link OneTagMetricMap}.
+ * <p/>
+ * Optionally restricts the number of unique tag combinations stored to a specified maximum.
+ */
+public class MultiTagMetricMap {
+
+    private static final int NO_MAX_KEY_COUNT = -1;
+
+    private final ConcurrentMap<Map<String, String>, AtomicLong> counts = new ConcurrentHashMap<>();
+
+    private final String[] tagNames;
+
+    private final int maxKeyCount;
+
+    private final AtomicInteger keyCount = new AtomicInteger();
+
+    private final ThreadLocal<TagKey> probes;
+
+    /**
+     * Creates a new, empty map.
+     *
+     * @param tagNames names of the tags
+     */
+    public MultiTagMetricMap(final String... tagNames) {
+        this(NO_MAX_KEY_COUNT, tagNames);
+    }
+
+    /**
+     * Creates a new, empty map, limiting the number of stored tag combinations to the specified maximum.
+     *
+     * @param maxKeyCount maximum number of tag combinations to track
+     * @param tagNames    names of the tags
+     */
+    public MultiTagMetricMap(final int maxKeyCount, final String... tagNames) {
+        if (tagNames.length == 0) {
+            throw new IllegalArgumentException("At least one tag name is required");
+        }
+        this.tagNames = tagNames.clone();
+        this.maxKeyCount = maxKeyCount;
+        this.probes = ThreadLocal.withInitial(() -> new TagKey(this.tagNames));
+    }
+
+    public void increment(final Object... tagValues) {
+        AtomicLong count = counts.get(probes.get().reset(tagValues));
+        if (count == null) {
+            count = create(1);
+        }
+        if (count != null) {
+            count.incrementAndGet();
+        }
+    }
+
+    public void add(final long value, final Object... tagValues) {
+        AtomicLong count = counts.get(probes.get().reset(tagValues));
+        if (count == null) {
+            count = create(value);
+        }
+        if (count != null) {
+            count.addAndGet(value);
+        }
+    }
+
+    public void set(final long value, final Object... tagValues) {
+        AtomicLong count = counts.get(probes.get().reset(tagValues));
+        if (count == null) {
+            count = create(value);
+        }
+        if (count != null) {
+            count.set(value);
+        }
+    }
+
+    public ConcurrentMap<Map<String, String>, ? extends Number> getCounts() {
+        return counts;
+    }
+
+    /**
+     * Registers the counter of the tags held by the current probe.
+     *
+     * @param value initial value of a new counter
+     * @return the existing counter the value still has to be applied to, or null if a new counter was created
+     * with the value or the maximum number of tag combinations was reached
+     */
+    private AtomicLong create(final long value) {
+        if (maxKeyCount != NO_MAX_KEY_COUNT && keyCount.get() >= maxKeyCount) {
+            return null;
+        }
+        final AtomicLong count = counts.putIfAbsent(probes.get().copy(), new AtomicLong(value));
+        if (count == null) {
+            keyCount.incrementAndGet();
+        }
+        return count;
+    }
+}
@@ -15,11 +15,7 @@
  */
 package com.tomtom.cloud.recycling;
 
-import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -45,20 +41,15 @@ import java.util.concurrent.atomic.AtomicLong;
  * 'feed' tag, where the value of the 'feed' tag identifies which feed the value corresponds to.
  * The OpenTSDB backend is also then capable of aggregating all of the 'feed' values to give a
  * combined traffic freshness metric, e.g. average or max, across all feeds.
+ * <p/>
+ * Counters are also indexed by the value of their tag, so updating the counter of a known tag neither builds nor
+ * hashes a key map, and allocates nothing for tags whose {@code toString()} does not, such as strings or enums.
+ * <p/>
+ * When many threads update the same tags, prefer {@link StripedOneTagMetricMap}.
  *
  * @param <T> data type of metric tag.
  */
-public class OneTagMetricMap<T> {
-
-    private static final int NO_MAX_TAG_COUNT = -1;
-
-    private final ConcurrentMap<Map<String, String>, AtomicLong> counts = new ConcurrentHashMap<>();
-
-    private final String tagName;
-
-    private final int maxTagCount;
-
-    private final AtomicInteger tagCount = new AtomicInteger();
+public class OneTagMetricMap<T> extends AbstractOneTagMetricMap<T, AtomicLong> {
 
     /**
      * Creates a new, empty map.
@@ -66,7 +57,7 @@ public class OneTagMetricMap<T> {
      * @param tagName name of the first tag
      */
     public OneTagMetricMap(final String tagName) {
-        this(tagName, NO_MAX_TAG_COUNT);
+        super(tagName);
     }
 
     /**
@@ -76,8 +67,7 @@ public class OneTagMetricMap<T> {
      * @param maxTagCount maximum number of tags to track
      */
     public OneTagMetricMap(final String tagName, final int maxTagCount) {
-        this.tagName = tagName;
-        this.maxTagCount = maxTagCount;
+        super(tagName, maxTagCount);
     }
 
     /**
@@ -87,61 +77,26 @@ public class OneTagMetricMap<T> {
      * @param initialValues initial values to fill the map.
      */
     public OneTagMetricMap(final String tagName, final Map<T, ? extends Number> initialValues) {
-        this(tagName);
-        for (Map.Entry<T, ? extends Number> entry : initialValues.entrySet()) {
-            Map<String, String> key = getKey(entry.getKey());
-            counts.put(key, new AtomicLong(entry.getValue().longValue()));
-        }
-    }
-
-    public void increment(final T tag) {
-        Map<String, String> key = getKey(tag);
-        AtomicLong count = counts.get(key);
-        if (count != null) {
-            count.incrementAndGet();
-        } else {
-            create(key, 1);
-        }
-    }
-
-    public void add(final T tag, final long value) {
-        Map<String, String> key = getKey(tag);
-        AtomicLong count = counts.get(key);
-        if (count != null) {
-            count.addAndGet(value);
-        } else {
-            create(key, value);
-        }
+        super(tagName, initialValues);
     }
 
-    public void set(final T tag, final long value) {
-        Map<String, String> key = getKey(tag);
-        AtomicLong count = counts.get(key);
-        if (count != null) {
-            count.set(value);
-        } else {
-            create(key, value);
-        }
+    @Override
+    AtomicLong newCounter(final long value) {
+        return new AtomicLong(value);
     }
 
-    private void create(final Map<String, String> key, final long value) {
-        if (maxTagCount == NO_MAX_TAG_COUNT || tagCount.get() < maxTagCount) {
-            AtomicLong count = counts.putIfAbsent(key, new AtomicLong(value));
-            if (count != null) {
-                count.addAndGet(value);
-            } else {
-                tagCount.incrementAndGet();
-            }
-        }
+    @Override
+    void incrementCounter(final AtomicLong count) {
+        count.incrementAndGet();
     }
 
-    public ConcurrentMap<Map<String, String>, ? extends Number> getCounts() {
-        return counts;
+    @Override
+    void addToCounter(final AtomicLong count, final long value) {
+        count.addAndGet(value);
     }
 
-    private Map<String, String> getKey(final Object tag) {
-        HashMap<String, String> key = new HashMap<>(1);
-        key.put(tagName, tag.toString());
-        return key;
+    @Override
+    void setCounter(final AtomicLong count, final long value) {
+        count.set(value);
     }
 }
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+/**
+ * What a periodic publisher does when a publishing takes longer than the interval, i.e. overruns.
+ */
+public enum OverrunPolicy {
+
+    /**
+     * Drops the ticks missed during the overrun and publishes on the next tick of the original cadence.
+     */
+    SKIP,
+
+    /**
+     * Publishes once right away for all the ticks missed during the overrun, then keeps the interval from there.
+     */
+    COALESCE,
+
+    /**
+     * Always waits for the interval between the end of a publishing and the start of the next one, so there is no
+     * cadence to overrun.
+     */
+    FIXED_DELAY;
+
+    /**
+     * Computes when the next publishing is due.
+     *
+     * @param due      when the publishing that just ended was due, in nanoseconds
+     * @param end      when it ended, in nanoseconds
+     * @param interval the interval, in nanoseconds
+     * @return when the next publishing is due, in nanoseconds
+     */
+    long nextDue(final long due, final long end, final long interval) {
+        switch (this) {
+            case SKIP:
+                final long next = due + interval;
+                return next - end > 0 ? next : next + ((end - next) / interval + 1) * interval;
+            case COALESCE:
+                return Math.max(due + interval - end, 0) + end;
+            default:
+                return end + interval;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how expensive publishing is: the latency of publishing cycles and of single requests, the number of
+ * datums per request, the outcome of the requests and the time spent reading metric values.
+ * <p/>
+ * Publishers record into their own instance and expose the totals over JMX. The distributions are kept in metrics
+ * named after a prefix, e.g. 'CloudWatchPublisher.RequestLatency', which can be published like any other metric,
+ * preferably by a separate publisher in its own namespace so that they do not mix with the application metrics:
+ * <pre>
+ * new AwsMetricsPublisher(cloudWatchPublisher.getStatistics().getMetrics(), "Healer/Publishing", 10, client);
+ * </pre>
+ * Latencies are recorded in milliseconds.
+ */
+public class PublishingStatistics {
+
+    private final HistogramMetric cycleLatency;
+
+    private final HistogramMetric requestLatency;
+
+    private final HistogramMetric datumsPerRequest;
+
+    private final AggregatingMetric valueReadLatency;
+
+    private final AggregatingMetric succeededRequests;
+
+    private final AggregatingMetric failedRequests;
+
+    private final List<Metric> metrics;
+
+    private final AtomicLong lastCycleNanos = new AtomicLong();
+
+    private final LongAdder cycles = new LongAdder();
+
+    private final LongAdder succeeded = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder datums = new LongAdder();
+
+    private final LongAdder valueReadNanos = new LongAdder();
+
+    /**
+     * Creates the statistics of a publisher.
+     *
+     * @param prefix prefix of the metric names, e.g. the publisher name
+     */
+    public PublishingStatistics(final String prefix) {
+        this.cycleLatency = new HistogramMetric(prefix + ".CycleLatency");
+        this.requestLatency = new HistogramMetric(prefix + ".RequestLatency");
+        this.datumsPerRequest = new HistogramMetric(prefix + ".DatumsPerRequest");
+        this.valueReadLatency = new AggregatingMetric(prefix + ".ValueReadLatency");
+        this.succeededRequests = new AggregatingMetric(prefix + ".SucceededRequests");
+        this.failedRequests = new AggregatingMetric(prefix + ".FailedRequests");
+        this.metrics = Collections.unmodifiableList(Arrays.<Metric>asList(cycleLatency, requestLatency,
+                datumsPerRequest, valueReadLatency, succeededRequests, failedRequests));
+    }
+
+    /**
+     * Records a publishing cycle, from reading the first value to sending the last request.
+     *
+     * @param nanos duration in nanoseconds
+     */
+    public void recordCycle(final long nanos) {
+        cycleLatency.record(toMillis(nanos));
+        lastCycleNanos.set(nanos);
+        cycles.increment();
+    }
+
+    /**
+     * Records a request sent to the monitoring service, including its retries.
+     *
+     * @param nanos      duration in nanoseconds
+     * @param datumCount number of datums carried by the request
+     * @param success    false if the request failed
+     */
+    public void recordRequest(final long nanos, final int datumCount, final boolean success) {
+        requestLatency.record(toMillis(nanos));
+        datumsPerRequest.record(datumCount);
+        datums.add(datumCount);
+        if (success) {
+            succeededRequests.record(1);
+            succeeded.increment();
+        } else {
+            failedRequests.record(1);
+            failed.increment();
+        }
+    }
+
+    /**
+     * Records the time spent in {@link Metric#getValue()} for one value.
+     *
+     * @param nanos duration in nanoseconds
+     */
+    public void recordValueRead(final long nanos) {
+        valueReadLatency.record(toMillis(nanos));
+        valueReadNanos.add(nanos);
+    }
+
+    /**
+     * Returns the metrics holding the distributions of the current interval. Publishing them starts a new interval.
+     *
+     * @return the metrics
+     */
+    public List<Metric> getMetrics() {
+        return metrics;
+    }
+
+    public long getCycles() {
+        return cycles.sum();
+    }
+
+    public long getLastCycleMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastCycleNanos.get());
+    }
+
+    public long getSucceededRequests() {
+        return succeeded.sum();
+    }
+
+    public long getFailedRequests() {
+        return failed.sum();
+    }
+
+    public long getPublishedDatums() {
+        return datums.sum();
+    }
+
+    /**
+     * Returns the total time spent in {@link Metric#getValue()}.
+     *
+     * @return time in milliseconds
+     */
+    public long getValueReadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(valueReadNanos.sum());
+    }
+
+    private static double toMillis(final long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * Retries a failing call a bounded number of times, backing off exponentially between attempts.
+ * <p/>
+ * The delay before retry {@code n} is drawn uniformly between half and all of
+ * {@code min(maxDelayMillis, baseDelayMillis * 2^(n-1))}. The jitter keeps the instances of a fleet from
+ * retrying in lock step after a common outage, while the lower half keeps a minimal back-off.
+ * <p/>
+ * Only failures that may go away are retried: by default I/O errors, while callers knowing the errors of their
+ * backend pass a predicate also accepting e.g. throttling and server errors. Retrying a rejected request would only
+ * delay a certain failure.
+ */
+public class RetryPolicy {
+
+    /**
+     * Calls once, without retrying.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    private final int maxAttempts;
+
+    private final long baseDelayMillis;
+
+    private final long maxDelayMillis;
+
+    private final ThreadContext threadContext;
+
+    /**
+     * Creates a policy.
+     *
+     * @param maxAttempts     maximum number of attempts, including the first one
+     * @param baseDelayMillis delay before the first retry, before jitter, in milliseconds
+     * @param maxDelayMillis  upper bound of any delay, in milliseconds
+     */
+    public RetryPolicy(final int maxAttempts, final long baseDelayMillis, final long maxDelayMillis) {
+        this(maxAttempts, baseDelayMillis, maxDelayMillis, ThreadContext.SYSTEM);
+    }
+
+    /**
+     * Creates a policy sleeping through the given thread context.
+     *
+     * @param maxAttempts     maximum number of attempts, including the first one
+     * @param baseDelayMillis delay before the first retry, before jitter, in milliseconds
+     * @param maxDelayMillis  upper bound of any delay, in milliseconds
+     * @param threadContext   used to sleep between attempts
+     */
+    public RetryPolicy(final int maxAttempts, final long baseDelayMillis, final long maxDelayMillis,
+                       final ThreadContext threadContext) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+        }
+        if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("Invalid delays: " + baseDelayMillis + ", " + maxDelayMillis);
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.threadContext = threadContext;
+    }
+
+    /**
+     * Calls until the call succeeds, fails with other than an I/O error, or the attempts are exhausted.
+     *
+     * @param call the call
+     * @param <T>  type of the result
+     * @return the result of the first successful attempt
+     * @throws Exception the failure of the last attempt, also when the thread is interrupted while backing off
+     */
+    public <T> T execute(final Callable<T> call) throws Exception {
+        return execute(call, RetryPolicy::isTransient);
+    }
+
+    /**
+     * Calls until the call succeeds, fails with an error that is not retryable, or the attempts are exhausted.
+     *
+     * @param call      the call
+     * @param retryable tells whether a failure may go away when the call is made again
+     * @param <T>       type of the result
+     * @return the result of the first successful attempt
+     * @throws Exception the failure of the last attempt, also when the thread is interrupted while backing off
+     */
+    public <T> T execute(final Callable<T> call, final Predicate<? super Exception> retryable) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.call();
+            } catch (Exception e) {
+                if (attempt >= maxAttempts || e instanceof InterruptedException || !retryable.test(e)) {
+                    throw e;
+                }
+                try {
+                    threadContext.sleep(delayMillis(attempt));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells whether a failure is caused by an I/O error, which the default retryable predicate accepts.
+     *
+     * @param e the failure
+     * @return true when an {@link IOException} is the failure or one of its causes
+     */
+    public static boolean isTransient(final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the jittered delay before the retry following the given attempt.
+     *
+     * @param attempt number of the failed attempt, starting at 1
+     * @return delay in milliseconds
+     */
+    long delayMillis(final int attempt) {
+        final int shift = Math.min(attempt - 1, 30);
+        final long ceiling = baseDelayMillis > maxDelayMillis >> shift ? maxDelayMillis : baseDelayMillis << shift;
+        final long floor = ceiling / 2;
+        return floor + ThreadLocalRandom.current().nextLong(ceiling - floor + 1);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Uses a metric publisher to publish groups of metrics at their own intervals, e.g. critical metrics every 5 seconds
+ * and capacity metrics every 5 minutes, from a single thread.
+ * <p/>
+ * A {@link TimingWheel} is advanced every tick, and the metrics due on that tick are published together in one
+ * batch through {@link MetricsPublisher#publish(List, boolean)}. Intervals are rounded up to a whole number of ticks,
+ * and every metric is first published on the first tick. The counts kept by the publisher are cumulative, so they
+ * are only published with the group of the shortest interval. The publishing can be enabled and disabled.
+ */
+@ManagedResource("Healer:component=worker,sub=scheduledMetricsUpdater")
+public class ScheduledMetricsUpdater implements MetricsUpdater {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScheduledMetricsUpdater.class);
+
+    private final MetricsPublisher publisher;
+
+    private final int tickSeconds;
+
+    /**
+     * Only accessed by the thread ticking.
+     */
+    private final TimingWheel<Metric> wheel;
+
+    private final int scheduledMetrics;
+
+    private final int countsIntervalTicks;
+
+    /**
+     * Number of ticks so far, only accessed by the thread ticking.
+     */
+    private long ticks;
+
+    private volatile boolean enabled;
+
+    private volatile int lastBatchSize;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Constructor that should be used during system initialization, preferably in a configuration bean.
+     *
+     * @param publisher                publisher of the due metrics
+     * @param tickSeconds              resolution of the intervals
+     * @param metricsByIntervalSeconds groups of metrics, by their publishing interval in seconds
+     * @param enabled                  true to enable it
+     */
+    public ScheduledMetricsUpdater(final MetricsPublisher publisher,
+                                   final int tickSeconds,
+                                   final Map<Integer, List<Metric>> metricsByIntervalSeconds,
+                                   final boolean enabled) {
+        if (tickSeconds < 1) {
+            throw new IllegalArgumentException("tickSeconds must be positive: " + tickSeconds);
+        }
+        this.publisher = publisher;
+        this.tickSeconds = tickSeconds;
+        this.enabled = enabled;
+        int maxTicks = 1;
+        int minTicks = Integer.MAX_VALUE;
+        for (final Integer intervalSeconds : metricsByIntervalSeconds.keySet()) {
+            maxTicks = Math.max(maxTicks, toTicks(intervalSeconds));
+            minTicks = Math.min(minTicks, toTicks(intervalSeconds));
+        }
+        this.countsIntervalTicks = Math.min(minTicks, maxTicks);
+        // with one slot per tick of the longest interval, no metric waits for more than one rotation
+        this.wheel = new TimingWheel<>(maxTicks);
+        int count = 0;
+        for (final Map.Entry<Integer, List<Metric>> group : metricsByIntervalSeconds.entrySet()) {
+            final int intervalTicks = toTicks(group.getKey());
+            for (final Metric metric : group.getValue()) {
+                wheel.schedule(metric, intervalTicks);
+                count++;
+            }
+        }
+        this.scheduledMetrics = count;
+    }
+
+    /**
+     * Start ticking after object creation.
+     */
+    @ManagedOperation
+    @PostConstruct
+    @Override
+    public synchronized void start() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor();
+            executor.scheduleAtFixedRate(this::tick, 0, tickSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stop ticking when the shutdown hook is invoked.
+     */
+    @ManagedOperation
+    @PreDestroy
+    @Override
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    @ManagedAttribute
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute
+    @Override
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @ManagedAttribute
+    @Override
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    /**
+     * Returns the tick, the resolution of the intervals.
+     *
+     * @return tick in seconds
+     */
+    @ManagedAttribute
+    @Override
+    public int getSleepIntervalSeconds() {
+        return tickSeconds;
+    }
+
+    @ManagedAttribute
+    public int getScheduledMetrics() {
+        return scheduledMetrics;
+    }
+
+    /**
+     * Returns the number of metrics published on the last tick.
+     *
+     * @return batch size
+     */
+    @ManagedAttribute
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    /**
+     * Advances the wheel and publishes the due metrics, along with the counts on the ticks of the shortest interval.
+     * Metrics due while publishing is disabled are skipped.
+     */
+    void tick() {
+        try {
+            final List<Metric> due = wheel.advance();
+            final boolean withCounts = ticks++ % countsIntervalTicks == 0;
+            lastBatchSize = due.size();
+            if (enabled && (withCounts || !due.isEmpty())) {
+                publisher.publish(due, withCounts);
+            }
+        } catch (Exception e) {
+            LOG.error("Could not publish metrics: {}", e.getMessage(), e);
+        }
+    }
+
+    private int toTicks(final int intervalSeconds) {
+        if (intervalSeconds < 1) {
+            throw new IllegalArgumentException("intervalSeconds must be positive: " + intervalSeconds);
+        }
+        return (intervalSeconds + tickSeconds - 1) / tickSeconds;
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+/**
+ * A data point that could not be published, kept in a {@link MetricSpool} until it can be replayed.
+ * <p/>
+ * The value of a plain metric is kept as statistics of a single sample.
+ */
+public final class SpooledDatum {
+
+    private final String name;
+
+    private final long timestamp;
+
+    private final MetricStatistics statistics;
+
+    private final DimensionSet dimensions;
+
+    private final MetricUnit unit;
+
+    /**
+     * Creates a data point.
+     *
+     * @param name       metric name
+     * @param timestamp  time the data point was taken, in milliseconds since the epoch
+     * @param statistics the value or statistics of the data point
+     */
+    public SpooledDatum(final String name, final long timestamp, final MetricStatistics statistics) {
+        this(name, DimensionSet.EMPTY, timestamp, statistics);
+    }
+
+    /**
+     * Creates a data point of a metric sliced by dimensions.
+     *
+     * @param name       metric name
+     * @param dimensions dimensions of the metric
+     * @param timestamp  time the data point was taken, in milliseconds since the epoch
+     * @param statistics the value or statistics of the data point
+     */
+    public SpooledDatum(final String name, final DimensionSet dimensions, final long timestamp,
+                        final MetricStatistics statistics) {
+        this(name, dimensions, MetricUnit.NONE, timestamp, statistics);
+    }
+
+    /**
+     * Creates a data point of a metric sliced by dimensions, whose values have a unit.
+     *
+     * @param name       metric name
+     * @param dimensions dimensions of the metric
+     * @param unit       unit of the values
+     * @param timestamp  time the data point was taken, in milliseconds since the epoch
+     * @param statistics the value or statistics of the data point
+     */
+    public SpooledDatum(final String name, final DimensionSet dimensions, final MetricUnit unit, final long timestamp,
+                        final MetricStatistics statistics) {
+        this.name = name;
+        this.dimensions = dimensions;
+        this.unit = unit;
+        this.timestamp = timestamp;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Creates a data point holding a single value.
+     *
+     * @param name      metric name
+     * @param timestamp time the data point was taken, in milliseconds since the epoch
+     * @param value     the value
+     */
+    public SpooledDatum(final String name, final long timestamp, final double value) {
+        this(name, timestamp, new MetricStatistics(1, value, value, value));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public DimensionSet getDimensions() {
+        return dimensions;
+    }
+
+    public MetricUnit getUnit() {
+        return unit;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public MetricStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Tells whether the data point is a single value rather than statistics of several samples.
+     *
+     * @return true for a single value
+     */
+    public boolean isSingleValue() {
+        return statistics.getSampleCount() == 1;
+    }
+
+    @Override
+    public String toString() {
+        return name + (dimensions.isEmpty() ? "" : dimensions.toString()) + "@" + timestamp + statistics;
+    }
+}
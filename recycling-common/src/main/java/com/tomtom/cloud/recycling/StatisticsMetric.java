@@ -0,0 +1,30 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+/**
+ * Metric read as statistics of the values recorded during an interval rather than as a single value.
+ * <p/>
+ * Publishers dispatch on this interface, so that an {@link AggregatingMetric} and its frozen copies are read alike.
+ */
+public interface StatisticsMetric extends Metric {
+    /**
+     * Returns the statistics of the values recorded since the previous call and starts a new interval.
+     *
+     * @return the statistics, empty when nothing was recorded
+     */
+    MetricStatistics drain();
+}
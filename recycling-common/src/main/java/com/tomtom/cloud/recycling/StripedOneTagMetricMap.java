@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Variant of {@link OneTagMetricMap} for tags that are updated by many threads at the same time.
+ * <p/>
+ * Each tag is counted by a {@link LongAdder}, which spreads contended updates over several cells instead of
+ * retrying a compare-and-set on a single value. Updates scale with the number of threads, at the price of more
+ * memory per tag and of reads that sum the cells. {@link #getCounts()} returns the same view of numbers per
+ * single-tag key as {@link OneTagMetricMap}.
+ * <p/>
+ * {@link #set(Object, long)} is not atomic with respect to concurrent updates of the same tag, which may be
+ * lost. It is meant for gauges written by a single thread.
+ *
+ * @param <T> data type of metric tag.
+ */
+public class StripedOneTagMetricMap<T> extends AbstractOneTagMetricMap<T, LongAdder> {
+
+    /**
+     * Creates a new, empty map.
+     *
+     * @param tagName name of the first tag
+     */
+    public StripedOneTagMetricMap(final String tagName) {
+        super(tagName);
+    }
+
+    /**
+     * Creates a new, empty map, limiting the number of stored tags to the specified maximum.
+     *
+     * @param tagName name of the first tag
+     * @param maxTagCount maximum number of tags to track
+     */
+    public StripedOneTagMetricMap(final String tagName, final int maxTagCount) {
+        super(tagName, maxTagCount);
+    }
+
+    /**
+     * Creates a new map filled with initial values.
+     *
+     * @param tagName       name of the first tag
+     * @param initialValues initial values to fill the map.
+     */
+    public StripedOneTagMetricMap(final String tagName, final Map<T, ? extends Number> initialValues) {
+        super(tagName, initialValues);
+    }
+
+    @Override
+    LongAdder newCounter(final long value) {
+        LongAdder count = new LongAdder();
+        count.add(value);
+        return count;
+    }
+
+    @Override
+    void incrementCounter(final LongAdder count) {
+        count.increment();
+    }
+
+    @Override
+    void addToCounter(final LongAdder count, final long value) {
+        count.add(value);
+    }
+
+    @Override
+    void setCounter(final LongAdder count, final long value) {
+        count.reset();
+        count.add(value);
+    }
+}
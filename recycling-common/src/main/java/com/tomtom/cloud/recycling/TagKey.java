@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact, read-only key of a tagged metric: tag names shared by every key of a map, the tag values of this key,
+ * and a pre-computed hash code.
+ * <p/>
+ * It honours the {@link Map} contract, so it is equal to, and hashes like, any other map holding the same tags.
+ * A key may also be used as a mutable probe, so that looking a counter up does not allocate a new key.
+ */
+final class TagKey extends AbstractMap<String, String> {
+
+    private final String[] names;
+
+    private final String[] values;
+
+    private int hash;
+
+    /**
+     * Creates a probe, whose values are set through {@link #reset(Object[])}.
+     *
+     * @param names tag names
+     */
+    TagKey(final String[] names) {
+        this(names, new String[names.length], 0);
+    }
+
+    private TagKey(final String[] names, final String[] values, final int hash) {
+        this.names = names;
+        this.values = values;
+        this.hash = hash;
+    }
+
+    /**
+     * Replaces the tag values of this probe.
+     *
+     * @param tagValues tag values, in the order of the tag names
+     * @return this probe
+     */
+    TagKey reset(final Object[] tagValues) {
+        if (tagValues.length != names.length) {
+            throw new IllegalArgumentException("Expected " + names.length + " tag values but got " + tagValues.length);
+        }
+        int h = 0;
+        for (int i = 0; i < names.length; i++) {
+            values[i] = tagValues[i].toString();
+            h += names[i].hashCode() ^ values[i].hashCode();
+        }
+        hash = h;
+        return this;
+    }
+
+    /**
+     * Returns an immutable copy of this probe, to be stored in a map.
+     *
+     * @return the copy
+     */
+    TagKey copy() {
+        return new TagKey(names, values.clone(), hash);
+    }
+
+    @Override
+    public String get(final Object key) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(key)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return names.length;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<Entry<String, String>>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < names.length;
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        if (next >= names.length) {
+                            throw new NoSuchElementException();
+                        }
+                        final Entry<String, String> entry = new SimpleImmutableEntry<>(names[next], values[next]);
+                        next++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return names.length;
+            }
+        };
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (other instanceof TagKey) {
+            final TagKey key = (TagKey) other;
+            return hash == key.hash && Arrays.equals(values, key.values) && Arrays.equals(names, key.names);
+        }
+        return super.equals(other);
+    }
+}
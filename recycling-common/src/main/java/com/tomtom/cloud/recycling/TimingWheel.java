@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timing wheel of periodic items, advanced one tick at a time by a single thread.
+ * <p/>
+ * Items live in the slot of their next due tick modulo the wheel size, with the number of full rotations left before
+ * they are due. Advancing visits a single slot, so the cost of a tick depends on the items of that slot only, not on
+ * all items scheduled. Items due on the same tick are returned together.
+ *
+ * @param <T> type of the items
+ */
+final class TimingWheel<T> {
+
+    private final List<List<Entry<T>>> slots;
+
+    private long tick;
+
+    private int scheduled;
+
+    /**
+     * Creates a wheel.
+     *
+     * @param wheelSize number of slots, best at least the longest interval in ticks
+     */
+    TimingWheel(final int wheelSize) {
+        if (wheelSize < 1) {
+            throw new IllegalArgumentException("wheelSize must be positive: " + wheelSize);
+        }
+        slots = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            slots.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Schedules an item that is due on the next tick and every {@code intervalTicks} ticks after.
+     *
+     * @param item          the item
+     * @param intervalTicks period in ticks
+     */
+    void schedule(final T item, final int intervalTicks) {
+        if (intervalTicks < 1) {
+            throw new IllegalArgumentException("intervalTicks must be positive: " + intervalTicks);
+        }
+        insert(new Entry<>(item, intervalTicks, scheduled++), 0);
+    }
+
+    /**
+     * Moves to the next tick.
+     *
+     * @return the items due on this tick, in the order they were scheduled
+     */
+    List<T> advance() {
+        final List<Entry<T>> slot = slots.get((int) (tick % slots.size()));
+        final List<Entry<T>> due = new ArrayList<>();
+        for (final Iterator<Entry<T>> entries = slot.iterator(); entries.hasNext(); ) {
+            final Entry<T> entry = entries.next();
+            if (entry.rounds > 0) {
+                entry.rounds--;
+            } else {
+                entries.remove();
+                due.add(entry);
+            }
+        }
+        due.sort(Comparator.comparingInt(entry -> entry.sequence));
+        final List<T> items = new ArrayList<>(due.size());
+        for (final Entry<T> entry : due) {
+            items.add(entry.item);
+            insert(entry, entry.intervalTicks);
+        }
+        tick++;
+        return items;
+    }
+
+    /**
+     * Returns the number of ticks advanced so far.
+     *
+     * @return number of ticks
+     */
+    long getTick() {
+        return tick;
+    }
+
+    private void insert(final Entry<T> entry, final int delayTicks) {
+        // the slot of the due tick is visited (delay - 1) / size times before the due tick itself
+        entry.rounds = delayTicks == 0 ? 0 : (delayTicks - 1) / slots.size();
+        slots.get((int) ((tick + delayTicks) % slots.size())).add(entry);
+    }
+
+    private static final class Entry<T> {
+
+        private final T item;
+
+        private final int intervalTicks;
+
+        /**
+         * Order in which the item was scheduled.
+         */
+        private final int sequence;
+
+        private int rounds;
+
+        Entry(final T item, final int intervalTicks, final int sequence) {
+            this.item = item;
+            this.intervalTicks = intervalTicks;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -56,6 +56,16 @@ public class WorkerRecycler {
     public String instanceId() {
         return cloudAdapter.getInstanceId();
     }
+
+    /**
+     * Tells whether recycling of this instance was triggered. Once triggered, it lasts until the instance is
+     * terminated.
+     *
+     * @return true if recycling is in progress
+     */
+    public boolean isRecycleInProgress() {
+        return instanceRecycleCalled;
+    }
 }
 
 /**
@@ -0,0 +1,475 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling.opentsdb;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import com.tomtom.cloud.recycling.DimensionSet;
+import com.tomtom.cloud.recycling.DistributionMetric;
+import com.tomtom.cloud.recycling.HistogramSnapshot;
+import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricStatistics;
+import com.tomtom.cloud.recycling.MetricsPublisher;
+import com.tomtom.cloud.recycling.OneTagMetricMap;
+import com.tomtom.cloud.recycling.StatisticsMetric;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Class used for publishing metric data to OpenTSDB, or to Gallium which speaks the same protocol, with telnet-style
+ * 'put' lines.
+ * <p/>
+ * The lines of a publishing are pipelined over one persistent non-blocking connection: they are packed into a
+ * buffer, which is written whenever it is full and at the end of the publishing. The publishing thread never
+ * waits for the server: bytes the socket cannot take yet stay in the buffer for the next write, and lines that no
+ * longer fit in the buffer are dropped and counted. A lost connection is opened again on a later publishing, after a
+ * delay doubling from the minimum to the maximum with every failed attempt.
+ * <p/>
+ * The dimensions of metrics and the tags of counts, e.g. the 'feed' of a {@link OneTagMetricMap}, become OpenTSDB
+ * tags, next to the common tags every data point carries, e.g. 'host'. OpenTSDB requires at least one tag per data
+ * point. Aggregating and histogram metrics are sent as 'name.count', 'name.sum', 'name.min' and 'name.max', plus one
+ * series per percentile of a histogram, e.g. 'name.p99'.
+ */
+@ManagedResource("Healer:component=worker,sub=openTsdbMetricsPublisher")
+public class OpenTsdbMetricsPublisher implements MetricsPublisher {
+
+    /**
+     * Size of the buffer pipelining the lines of a publishing.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final Logger LOG = LoggerFactory.getLogger(OpenTsdbMetricsPublisher.class);
+
+    private final List<Metric> metrics;
+
+    private final String prefix;
+
+    private final InetSocketAddress server;
+
+    /**
+     * Common tags, formatted once as they are appended to every line.
+     */
+    private final String commonTags;
+
+    private final ByteBuffer buffer;
+
+    private final ByteBuffer response = ByteBuffer.allocate(1024);
+
+    private final long minReconnectMillis;
+
+    private final long maxReconnectMillis;
+
+    private final LongSupplier clock;
+
+    private final Map<String, Supplier<? extends Map<Map<String, String>, ? extends Number>>> counts =
+            new LinkedHashMap<>();
+
+    /**
+     * Book-keeping for the metrics that could not be read or were dropped.
+     */
+    private final OneTagMetricMap<String> failedPublishingRequests = new OneTagMetricMap<>("metricName");
+
+    private final AtomicLong sentBytes = new AtomicLong();
+
+    private final AtomicLong droppedDataPoints = new AtomicLong();
+
+    private final AtomicLong connections = new AtomicLong();
+
+    private SocketChannel channel;
+
+    /**
+     * Number of data points in the buffer, or partly written from it.
+     */
+    private int bufferedDataPoints;
+
+    private int failedConnections;
+
+    private long nextConnectMillis;
+
+    private long timestampSeconds;
+
+    /**
+     * Constructor that should be used during system initialization, preferably in a configuration bean.
+     *
+     * @param metrics    metrics to publish
+     * @param prefix     prefix of the metric names, e.g. the service name, or an empty string
+     * @param server     address of the OpenTSDB or Gallium server
+     * @param commonTags tags of every data point, at least one
+     */
+    public OpenTsdbMetricsPublisher(final List<Metric> metrics, final String prefix, final InetSocketAddress server,
+                                    final Map<String, String> commonTags) {
+        this(metrics, prefix, server, commonTags, DEFAULT_BUFFER_SIZE, 1000, 60000);
+    }
+
+    /**
+     * Constructor with the size of the buffer and the delays between connection attempts.
+     *
+     * @param metrics            metrics to publish
+     * @param prefix             prefix of the metric names, e.g. the service name, or an empty string
+     * @param server             address of the OpenTSDB or Gallium server
+     * @param commonTags         tags of every data point, at least one
+     * @param bufferSize         size of the buffer in bytes, which bounds the data kept while the server is slow
+     * @param minReconnectMillis delay before opening a lost connection again
+     * @param maxReconnectMillis maximum delay between attempts to open the connection
+     */
+    public OpenTsdbMetricsPublisher(final List<Metric> metrics, final String prefix, final InetSocketAddress server,
+                                    final Map<String, String> commonTags, final int bufferSize,
+                                    final long minReconnectMillis, final long maxReconnectMillis) {
+        this(metrics, prefix, server, commonTags, bufferSize, minReconnectMillis, maxReconnectMillis,
+                System::currentTimeMillis);
+    }
+
+    OpenTsdbMetricsPublisher(final List<Metric> metrics, final String prefix, final InetSocketAddress server,
+                             final Map<String, String> commonTags, final int bufferSize,
+                             final long minReconnectMillis, final long maxReconnectMillis,
+                             final LongSupplier clock) {
+        if (commonTags.isEmpty()) {
+            throw new IllegalArgumentException("OpenTSDB requires at least one tag per data point");
+        }
+        if (bufferSize < 256) {
+            throw new IllegalArgumentException("bufferSize must be at least 256: " + bufferSize);
+        }
+        if (minReconnectMillis < 0 || maxReconnectMillis < minReconnectMillis) {
+            throw new IllegalArgumentException("Invalid reconnect delays: " + minReconnectMillis + ", "
+                    + maxReconnectMillis);
+        }
+        this.metrics = metrics;
+        this.prefix = prefix.isEmpty() || prefix.endsWith(".") ? prefix : prefix + ".";
+        this.server = server;
+        final StringBuilder tags = new StringBuilder();
+        appendTags(tags, commonTags);
+        this.commonTags = tags.toString();
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.minReconnectMillis = minReconnectMillis;
+        this.maxReconnectMillis = maxReconnectMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Publishes counts, with their keys as tags.
+     *
+     * @param name   metric name
+     * @param counts supplies the counts by tags, e.g. {@code OneTagMetricMap::getCounts}
+     */
+    public synchronized void addCounts(final String name,
+                                       final Supplier<? extends Map<Map<String, String>, ? extends Number>> counts) {
+        this.counts.put(name, counts);
+    }
+
+    @Override
+    public void publish() {
+        publish(metrics, true);
+    }
+
+    @Override
+    public synchronized void publish(final List<Metric> metricsToPublish, final boolean withCounts) {
+        timestampSeconds = TimeUnit.MILLISECONDS.toSeconds(clock.getAsLong());
+        connect();
+        for (final Metric metric : metricsToPublish) {
+            try {
+                write(metric);
+            } catch (Exception e) {
+                failedPublishingRequests.increment(metric.getName());
+                LOG.error("Could not read MetricData for {} because of: {}", metric.getName(), e.getMessage(), e);
+            }
+        }
+        if (withCounts) {
+            for (final Map.Entry<String, Supplier<? extends Map<Map<String, String>, ? extends Number>>> counter
+                    : counts.entrySet()) {
+                for (final Map.Entry<Map<String, String>, ? extends Number> count
+                        : counter.getValue().get().entrySet()) {
+                    writeLine(prefix + counter.getKey(), count.getValue().doubleValue(), count.getKey());
+                }
+            }
+        }
+        flush();
+        readResponses();
+    }
+
+    /**
+     * Closes the connection when the shutdown hook is invoked.
+     */
+    @PreDestroy
+    public synchronized void close() {
+        disconnect();
+    }
+
+    @ManagedMetric
+    @Override
+    public Map<Map<String, String>, ? extends Number> getFailedPublishingRequests() {
+        return failedPublishingRequests.getCounts();
+    }
+
+    /**
+     * Returns the prefix of the metric names.
+     *
+     * @return prefix
+     */
+    @ManagedAttribute
+    @Override
+    public String getNamespace() {
+        return prefix;
+    }
+
+    /**
+     * Returns zero, as writing never waits.
+     *
+     * @return timeout
+     */
+    @ManagedAttribute
+    @Override
+    public int getTimeoutSeconds() {
+        return 0;
+    }
+
+    @ManagedAttribute
+    public synchronized boolean isConnected() {
+        return channel != null && channel.isConnected();
+    }
+
+    /**
+     * Returns the number of connections opened, including the first one.
+     *
+     * @return connections
+     */
+    @ManagedAttribute
+    public long getConnections() {
+        return connections.get();
+    }
+
+    @ManagedAttribute
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * Returns the number of data points dropped because the buffer was full or the connection lost.
+     *
+     * @return dropped data points
+     */
+    @ManagedAttribute
+    public long getDroppedDataPoints() {
+        return droppedDataPoints.get();
+    }
+
+    @ManagedAttribute
+    public int getBufferSize() {
+        return buffer.capacity();
+    }
+
+    private void write(final Metric metric) {
+        final String name = prefix + metric.getName();
+        final Map<String, String> tags = DimensionSet.of(metric).asMap();
+        if (metric instanceof StatisticsMetric) {
+            writeStatistics(name, ((StatisticsMetric) metric).drain(), tags);
+        } else if (metric instanceof DistributionMetric) {
+            final DistributionMetric histogram = (DistributionMetric) metric;
+            final HistogramSnapshot snapshot = histogram.snapshotAndReset();
+            if (!snapshot.isEmpty()) {
+                writeStatistics(name, snapshot.toStatistics(), tags);
+                for (int i = 0; i < histogram.getPercentileCount(); i++) {
+                    writeLine(prefix + histogram.getPercentileName(i),
+                            snapshot.getValueAtPercentile(histogram.getPercentile(i)), tags);
+                }
+            }
+        } else {
+            writeLine(name, metric.getValue(), tags);
+        }
+    }
+
+    private void writeStatistics(final String name, final MetricStatistics statistics,
+                                 final Map<String, String> tags) {
+        if (statistics.isEmpty()) {
+            return;
+        }
+        writeLine(name + ".count", statistics.getSampleCount(), tags);
+        writeLine(name + ".sum", statistics.getSum(), tags);
+        writeLine(name + ".min", statistics.getMinimum(), tags);
+        writeLine(name + ".max", statistics.getMaximum(), tags);
+    }
+
+    private void writeLine(final String name, final double value, final Map<String, String> tags) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+        final StringBuilder line = new StringBuilder(96).append("put ");
+        appendSanitized(line, name);
+        line.append(' ').append(timestampSeconds).append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            line.append((long) value);
+        } else {
+            line.append(BigDecimal.valueOf(value).toPlainString());
+        }
+        line.append(commonTags);
+        appendTags(line, tags);
+        line.append('\n');
+        final byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > buffer.remaining()) {
+            flush();
+        }
+        if (bytes.length > buffer.remaining()) {
+            droppedDataPoints.incrementAndGet();
+            failedPublishingRequests.increment(name);
+            return;
+        }
+        buffer.put(bytes);
+        bufferedDataPoints++;
+    }
+
+    /**
+     * Writes as much of the buffer as the socket takes without waiting, keeping the rest for the next write.
+     */
+    private void flush() {
+        if (channel == null || !finishConnect() || buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        try {
+            sentBytes.addAndGet(channel.write(buffer));
+        } catch (IOException e) {
+            LOG.warn("Lost connection to OpenTSDB server {} because of: {}", server, e.getMessage());
+            connectionFailed();
+            return;
+        }
+        buffer.compact();
+        if (buffer.position() == 0) {
+            bufferedDataPoints = 0;
+        }
+    }
+
+    /**
+     * Opens the connection if there is none and the delay after the last failed attempt has passed.
+     */
+    private void connect() {
+        if (channel != null || clock.getAsLong() < nextConnectMillis) {
+            return;
+        }
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(server);
+            connections.incrementAndGet();
+        } catch (IOException e) {
+            LOG.warn("Could not connect to OpenTSDB server {} because of: {}", server, e.getMessage());
+            connectionFailed();
+        }
+    }
+
+    /**
+     * Completes a pending connection without waiting.
+     *
+     * @return true if connected
+     */
+    private boolean finishConnect() {
+        try {
+            if (channel.isConnectionPending() && channel.finishConnect()) {
+                failedConnections = 0;
+                LOG.info("Connected to OpenTSDB server {}", server);
+            }
+            return channel.isConnected();
+        } catch (IOException e) {
+            LOG.warn("Could not connect to OpenTSDB server {} because of: {}", server, e.getMessage());
+            connectionFailed();
+            return false;
+        }
+    }
+
+    /**
+     * Logs the errors reported by the server, and notices a connection closed by the server.
+     */
+    private void readResponses() {
+        if (channel == null || !channel.isConnected()) {
+            return;
+        }
+        try {
+            int read;
+            while ((read = channel.read(response)) > 0) {
+                response.flip();
+                LOG.warn("OpenTSDB server {} reported: {}", server,
+                        StandardCharsets.UTF_8.decode(response).toString().trim());
+                response.clear();
+            }
+            if (read < 0) {
+                LOG.warn("OpenTSDB server {} closed the connection", server);
+                connectionFailed();
+            }
+        } catch (IOException e) {
+            LOG.warn("Lost connection to OpenTSDB server {} because of: {}", server, e.getMessage());
+            connectionFailed();
+        }
+    }
+
+    /**
+     * Closes the connection, drops the buffered lines, which may have been partly written, and delays the next
+     * attempt.
+     */
+    private void connectionFailed() {
+        disconnect();
+        droppedDataPoints.addAndGet(bufferedDataPoints);
+        bufferedDataPoints = 0;
+        buffer.clear();
+        final long delay = Math.min(maxReconnectMillis, minReconnectMillis << Math.min(failedConnections, 30));
+        failedConnections++;
+        nextConnectMillis = clock.getAsLong() + delay;
+    }
+
+    private void disconnect() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.debug("Could not close connection to OpenTSDB server {}", server, e);
+            }
+            channel = null;
+        }
+    }
+
+    private static void appendTags(final StringBuilder line, final Map<String, String> tags) {
+        for (final Map.Entry<String, String> tag : tags.entrySet()) {
+            line.append(' ');
+            appendSanitized(line, tag.getKey());
+            line.append('=');
+            appendSanitized(line, tag.getValue());
+        }
+    }
+
+    /**
+     * Appends a name or tag, replacing the characters OpenTSDB does not accept with underscores.
+     */
+    private static void appendSanitized(final StringBuilder line, final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            line.append(Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '.' || c == '/' ? c : '_');
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling.statsd;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import com.tomtom.cloud.recycling.AggregatingMetric;
+import com.tomtom.cloud.recycling.DimensionSet;
+import com.tomtom.cloud.recycling.DistributionMetric;
+import com.tomtom.cloud.recycling.HistogramMetric;
+import com.tomtom.cloud.recycling.HistogramSnapshot;
+import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricStatistics;
+import com.tomtom.cloud.recycling.MetricsPublisher;
+import com.tomtom.cloud.recycling.OneTagMetricMap;
+import com.tomtom.cloud.recycling.StatisticsMetric;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Class used for publishing metric data to a node-local StatsD agent, which aggregates the data of several
+ * processes before shipping it to the monitoring backend.
+ * <p/>
+ * The data is sent as StatsD lines, as many per datagram as fit in the maximum packet size, over a non-blocking
+ * channel: a datagram that the socket cannot take immediately is dropped and counted rather than waited for, so
+ * the publishing thread never blocks. Lines are named after the prefix and the metric name, e.g.
+ * 'healer.queue.size', followed by the values of the dimensions of the metric sorted by dimension name, e.g.
+ * 'healer.queue.size.traffic', so that the series of a metric name do not overwrite each other:
+ * <ul>
+ * <li>a plain metric is a gauge holding its current value;</li>
+ * <li>an {@link AggregatingMetric} is sent as 'name.count' and 'name.sum' counters and 'name.min' and 'name.max'
+ * gauges, and a {@link HistogramMetric} as the same plus a gauge per percentile, e.g. 'name.p99';</li>
+ * <li>counts, e.g. a {@link OneTagMetricMap}, are counters incremented by the change since the previous
+ * publishing, named after the tag value, e.g. 'healer.failures.flow'.</li>
+ * </ul>
+ */
+@ManagedResource("Healer:component=worker,sub=statsdMetricsPublisher")
+public class StatsdMetricsPublisher implements MetricsPublisher {
+
+    /**
+     * Size of a datagram that fits in an Ethernet frame without fragmentation, as recommended for StatsD.
+     */
+    public static final int DEFAULT_MAX_PACKET_SIZE = 1432;
+
+    private static final Logger LOG = LoggerFactory.getLogger(StatsdMetricsPublisher.class);
+
+    private final List<Metric> metrics;
+
+    private final String prefix;
+
+    private final InetSocketAddress agent;
+
+    private final DatagramChannel channel;
+
+    /**
+     * The datagram being packed, reused across publishings.
+     */
+    private final ByteBuffer packet;
+
+    private final Map<String, Supplier<? extends Map<Map<String, String>, ? extends Number>>> counts =
+            new LinkedHashMap<>();
+
+    /**
+     * Values of the counts sent by the previous publishing, by line name.
+     */
+    private final Map<String, Long> previousCounts = new HashMap<>();
+
+    /**
+     * Book-keeping for the metrics that could not be read or sent.
+     */
+    private final OneTagMetricMap<String> failedPublishingRequests = new OneTagMetricMap<>("metricName");
+
+    private final AtomicLong sentPackets = new AtomicLong();
+
+    private final AtomicLong droppedPackets = new AtomicLong();
+
+    /**
+     * Constructor that should be used during system initialization, preferably in a configuration bean.
+     *
+     * @param metrics metrics to publish
+     * @param prefix  prefix of the line names, e.g. the service name, or an empty string
+     * @param agent   address of the StatsD agent, usually on localhost
+     * @throws IOException if the channel cannot be opened
+     */
+    public StatsdMetricsPublisher(final List<Metric> metrics, final String prefix, final InetSocketAddress agent)
+            throws IOException {
+        this(metrics, prefix, agent, DEFAULT_MAX_PACKET_SIZE);
+    }
+
+    /**
+     * Constructor packing lines into datagrams of at most {@code maxPacketSize} bytes, e.g. 8932 on a loopback or
+     * jumbo-frame network.
+     *
+     * @param metrics       metrics to publish
+     * @param prefix        prefix of the line names, e.g. the service name, or an empty string
+     * @param agent         address of the StatsD agent, usually on localhost
+     * @param maxPacketSize maximum size of a datagram in bytes
+     * @throws IOException if the channel cannot be opened
+     */
+    public StatsdMetricsPublisher(final List<Metric> metrics, final String prefix, final InetSocketAddress agent,
+                                  final int maxPacketSize) throws IOException {
+        if (maxPacketSize < 64 || maxPacketSize > 65507) {
+            throw new IllegalArgumentException("maxPacketSize must be between 64 and 65507: " + maxPacketSize);
+        }
+        this.metrics = metrics;
+        this.prefix = prefix.isEmpty() || prefix.endsWith(".") ? prefix : prefix + ".";
+        this.agent = agent;
+        this.packet = ByteBuffer.allocateDirect(maxPacketSize);
+        this.channel = DatagramChannel.open();
+        this.channel.configureBlocking(false);
+    }
+
+    /**
+     * Publishes counts as counters, with one line per tag value.
+     *
+     * @param name   counter name
+     * @param counts supplies the counts by tags, e.g. {@code OneTagMetricMap::getCounts}
+     */
+    public synchronized void addCounts(final String name,
+                                       final Supplier<? extends Map<Map<String, String>, ? extends Number>> counts) {
+        this.counts.put(name, counts);
+    }
+
+    @Override
+    public void publish() {
+        publish(metrics, true);
+    }
+
+    @Override
+    public synchronized void publish(final List<Metric> metricsToPublish, final boolean withCounts) {
+        packet.clear();
+        for (final Metric metric : metricsToPublish) {
+            try {
+                write(metric);
+            } catch (Exception e) {
+                failedPublishingRequests.increment(metric.getName());
+                LOG.error("Could not read MetricData for {} because of: {}", metric.getName(), e.getMessage(), e);
+            }
+        }
+        if (withCounts) {
+            for (final Map.Entry<String, Supplier<? extends Map<Map<String, String>, ? extends Number>>> counter
+                    : counts.entrySet()) {
+                for (final Map.Entry<Map<String, String>, ? extends Number> count
+                        : counter.getValue().get().entrySet()) {
+                    writeCount(counter.getKey(), count.getKey(), count.getValue().longValue());
+                }
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Closes the channel when the shutdown hook is invoked.
+     *
+     * @throws IOException if the channel cannot be closed
+     */
+    @PreDestroy
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @ManagedMetric
+    @Override
+    public Map<Map<String, String>, ? extends Number> getFailedPublishingRequests() {
+        return failedPublishingRequests.getCounts();
+    }
+
+    /**
+     * Returns the prefix of the line names.
+     *
+     * @return prefix
+     */
+    @ManagedAttribute
+    @Override
+    public String getNamespace() {
+        return prefix;
+    }
+
+    /**
+     * Returns zero, as sending never waits.
+     *
+     * @return timeout
+     */
+    @ManagedAttribute
+    @Override
+    public int getTimeoutSeconds() {
+        return 0;
+    }
+
+    @ManagedAttribute
+    public long getSentPackets() {
+        return sentPackets.get();
+    }
+
+    /**
+     * Returns the number of datagrams dropped because the socket buffer was full or the agent unreachable.
+     *
+     * @return dropped datagrams
+     */
+    @ManagedAttribute
+    public long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+
+    @ManagedAttribute
+    public int getMaxPacketSize() {
+        return packet.capacity();
+    }
+
+    private void write(final Metric metric) {
+        final String name = lineName(metric);
+        if (metric instanceof StatisticsMetric) {
+            writeStatistics(name, ((StatisticsMetric) metric).drain());
+        } else if (metric instanceof DistributionMetric) {
+            final DistributionMetric histogram = (DistributionMetric) metric;
+            final HistogramSnapshot snapshot = histogram.snapshotAndReset();
+            if (!snapshot.isEmpty()) {
+                writeStatistics(name, snapshot.toStatistics());
+                for (int i = 0; i < histogram.getPercentileCount(); i++) {
+                    // the percentile suffix, e.g. '.p99', follows the dimensions like the statistics suffixes
+                    writeGauge(name + histogram.getPercentileName(i).substring(metric.getName().length()),
+                            snapshot.getValueAtPercentile(histogram.getPercentile(i)));
+                }
+            }
+        } else {
+            writeGauge(name, metric.getValue());
+        }
+    }
+
+    /**
+     * Returns the name of the lines of a metric: the prefix and the metric name, followed by the values of its
+     * dimensions.
+     */
+    private String lineName(final Metric metric) {
+        final DimensionSet dimensions = DimensionSet.of(metric);
+        if (dimensions.isEmpty()) {
+            return prefix + metric.getName();
+        }
+        final StringBuilder lineName = new StringBuilder(prefix).append(metric.getName());
+        for (final String value : dimensions.asMap().values()) {
+            lineName.append('.').append(value);
+        }
+        return lineName.toString();
+    }
+
+    private void writeStatistics(final String name, final MetricStatistics statistics) {
+        if (statistics.isEmpty()) {
+            return;
+        }
+        writeLine(name + ".count", statistics.getSampleCount(), "c");
+        writeLine(name + ".sum", statistics.getSum(), "c");
+        writeGauge(name + ".min", statistics.getMinimum());
+        writeGauge(name + ".max", statistics.getMaximum());
+    }
+
+    private void writeGauge(final String name, final double value) {
+        if (value < 0) {
+            // a signed gauge value is a change of the gauge, so a negative value is set from zero
+            writeLine(name, 0, "g");
+        }
+        writeLine(name, value, "g");
+    }
+
+    private void writeCount(final String name, final Map<String, String> tags, final long count) {
+        final StringBuilder lineName = new StringBuilder(prefix).append(name);
+        for (final String tag : tags.values()) {
+            lineName.append('.').append(tag);
+        }
+        final String key = lineName.toString();
+        final Long previous = previousCounts.put(key, count);
+        final long delta = previous == null ? count : count - previous;
+        if (delta != 0) {
+            writeLine(key, delta, "c");
+        }
+    }
+
+    private void writeLine(final String name, final double value, final String type) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+        final StringBuilder line = new StringBuilder(name.length() + 24);
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            // the separators of the protocol cannot appear in a name
+            line.append(c == ':' || c == '|' || c == '@' || c == '\n' || c == ' ' ? '_' : c);
+        }
+        line.append(':');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            line.append((long) value);
+        } else {
+            line.append(BigDecimal.valueOf(value).toPlainString());
+        }
+        line.append('|').append(type).append('\n');
+        final byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > packet.capacity()) {
+            failedPublishingRequests.increment(name);
+            return;
+        }
+        if (bytes.length > packet.remaining()) {
+            flush();
+        }
+        packet.put(bytes);
+    }
+
+    /**
+     * Sends the packed lines without waiting, dropping the datagram if the socket cannot take it.
+     */
+    private void flush() {
+        if (packet.position() == 0) {
+            return;
+        }
+        packet.flip();
+        try {
+            if (channel.send(packet, agent) == 0) {
+                droppedPackets.incrementAndGet();
+            } else {
+                sentPackets.incrementAndGet();
+            }
+        } catch (IOException e) {
+            droppedPackets.incrementAndGet();
+            LOG.warn("Could not send metrics datagram to StatsD agent {} because of: {}", agent, e.getMessage());
+        } finally {
+            packet.clear();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class AdaptiveIntervalTest {
+
+    private final AtomicBoolean urgent = new AtomicBoolean();
+
+    private final AdaptiveInterval interval = new AdaptiveInterval(10, 60, urgent::get);
+
+    @Test
+    public void shouldBackOffWhileQuiet() throws Exception {
+        assertEquals(10_000, interval.getCurrentIntervalMillis());
+        assertEquals(20_000, interval.nextIntervalMillis());
+        assertEquals(40_000, interval.nextIntervalMillis());
+        assertEquals(60_000, interval.nextIntervalMillis());
+        assertEquals(60_000, interval.nextIntervalMillis());
+    }
+
+    @Test
+    public void shouldDropToMinimumWhenUrgent() throws Exception {
+        interval.nextIntervalMillis();
+        interval.nextIntervalMillis();
+        urgent.set(true);
+        assertEquals(10_000, interval.nextIntervalMillis());
+        assertEquals(10_000, interval.getCurrentIntervalMillis());
+    }
+
+    @Test
+    public void shouldIgnoreFailingSignal() throws Exception {
+        final AdaptiveInterval failing = new AdaptiveInterval(1, 4, () -> {
+            throw new IllegalStateException("test");
+        });
+        assertEquals(2_000, failing.nextIntervalMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvertedBounds() {
+        new AdaptiveInterval(60, 10);
+    }
+
+    @Test
+    public void shouldSignalFastChangingMetric() throws Exception {
+        final Metric metric = mock(Metric.class);
+        final MetricChangeSignal signal = new MetricChangeSignal(Arrays.asList(metric), 0.1);
+        doReturn(100d).when(metric).getValue();
+        assertFalse(signal.getAsBoolean());
+        doReturn(105d).when(metric).getValue();
+        assertFalse(signal.getAsBoolean());
+        doReturn(120d).when(metric).getValue();
+        assertTrue(signal.getAsBoolean());
+        assertFalse(signal.getAsBoolean());
+    }
+
+    @Test
+    public void shouldSignalRecycleInProgress() throws Exception {
+        final WorkerRecycler recycler = mock(WorkerRecycler.class);
+        final AdaptiveInterval recycling = new AdaptiveInterval(1, 60, recycler::isRecycleInProgress);
+        assertEquals(2_000, recycling.nextIntervalMillis());
+
+        doReturn(true).when(recycler).isRecycleInProgress();
+        assertEquals(1_000, recycling.nextIntervalMillis());
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class AggregatingMetricTest {
+
+    private final AggregatingMetric metric = new AggregatingMetric("latency");
+
+    @Test
+    public void shouldDrainRecordedValues() throws Exception {
+        metric.record(3);
+        metric.record(1);
+        metric.record(8);
+
+        final MetricStatistics statistics = metric.drain();
+        assertEquals(3, statistics.getSampleCount());
+        assertEquals(12, statistics.getSum(), 0);
+        assertEquals(1, statistics.getMinimum(), 0);
+        assertEquals(8, statistics.getMaximum(), 0);
+        assertEquals(4, statistics.getAverage(), 0);
+    }
+
+    @Test
+    public void shouldStartNewIntervalAfterDrain() throws Exception {
+        metric.record(5);
+        metric.drain();
+
+        assertTrue(metric.drain().isEmpty());
+        metric.record(2);
+        assertEquals(2, metric.drain().getMaximum(), 0);
+    }
+
+    @Test
+    public void shouldReportAverageOfCurrentInterval() throws Exception {
+        assertEquals(0, metric.getValue(), 0);
+        metric.record(2);
+        metric.record(4);
+        assertEquals(3, metric.getValue(), 0);
+        assertEquals("latency", metric.getName());
+    }
+
+    @Test
+    public void shouldNotLoseConcurrentlyRecordedValues() throws Exception {
+        final int threads = 8;
+        final int perThread = 10000;
+        final List<Thread> recorders = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            recorders.add(new Thread(() -> {
+                for (int j = 0; j < perThread; j++) {
+                    metric.record(1);
+                }
+            }));
+        }
+        long count = 0;
+        double sum = 0;
+        recorders.forEach(Thread::start);
+        for (Thread recorder : recorders) {
+            final MetricStatistics statistics = metric.drain();
+            if (!statistics.isEmpty()) {
+                // every value is drained with its count, in the same interval
+                assertEquals(statistics.getSampleCount(), statistics.getSum(), 0);
+                assertEquals(1, statistics.getMinimum(), 0);
+                assertEquals(1, statistics.getMaximum(), 0);
+            }
+            count += statistics.getSampleCount();
+            sum += statistics.getSum();
+            recorder.join();
+        }
+        final MetricStatistics last = metric.drain();
+        count += last.getSampleCount();
+        sum += last.getSum();
+        assertEquals(threads * perThread, count);
+        assertEquals(threads * perThread, sum, 0);
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private final CircuitBreaker breaker = new CircuitBreaker(3, 1000, now::get);
+
+    @Test
+    public void shouldOpenAfterConsecutiveFailures() throws Exception {
+        assertFalse(breaker.recordFailure());
+        assertFalse(breaker.recordFailure());
+        assertTrue(breaker.recordFailure());
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertEquals(1, breaker.getRejectedCalls());
+    }
+
+    @Test
+    public void shouldCountOnlyConsecutiveFailures() throws Exception {
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void shouldAllowSingleTrialAfterOpenPeriod() throws Exception {
+        openBreaker();
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void shouldReopenWhenTrialFails() throws Exception {
+        openBreaker();
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        assertTrue(breaker.allowRequest());
+
+        assertTrue(breaker.recordFailure());
+        assertFalse(breaker.allowRequest());
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectZeroThreshold() {
+        new CircuitBreaker(0, 1000);
+    }
+
+    private void openBreaker() {
+        for (int i = 0; i < 3; i++) {
+            breaker.recordFailure();
+        }
+    }
+}
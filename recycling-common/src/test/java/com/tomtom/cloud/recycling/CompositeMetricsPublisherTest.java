@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class CompositeMetricsPublisherTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final MetricsPublisher first = mock(MetricsPublisher.class);
+
+    private final MetricsPublisher second = mock(MetricsPublisher.class);
+
+    private CompositeMetricsPublisher publisher;
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        if (publisher != null) {
+            publisher.shutdown();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldReadMetricsOnceForAllBackends() throws Exception {
+        final AtomicInteger reads = new AtomicInteger();
+        final Metric metric = new Metric() {
+            @Override
+            public String getName() {
+                return "requests";
+            }
+
+            @Override
+            public double getValue() {
+                return reads.incrementAndGet();
+            }
+        };
+        publisher = new CompositeMetricsPublisher(Collections.singletonList(metric), Arrays.asList(first, second), 1,
+                10);
+        publisher.publish();
+
+        final ArgumentCaptor<List> firstBatch = ArgumentCaptor.forClass(List.class);
+        final ArgumentCaptor<List> secondBatch = ArgumentCaptor.forClass(List.class);
+        verify(first, timeout(2000)).publish(firstBatch.capture(), eq(true));
+        verify(second, timeout(2000)).publish(secondBatch.capture(), eq(true));
+        assertEquals(1, reads.get());
+        assertEquals(1, ((Metric) firstBatch.getValue().get(0)).getValue(), 0);
+        assertEquals(1, ((Metric) secondBatch.getValue().get(0)).getValue(), 0);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldShareFrozenHistogramWithAllBackends() throws Exception {
+        final HistogramMetric histogram = new HistogramMetric("latency", 99);
+        histogram.record(10);
+        histogram.record(30);
+        publisher = new CompositeMetricsPublisher(Collections.singletonList(histogram), Arrays.asList(first, second),
+                1, 10);
+        publisher.publish();
+
+        final ArgumentCaptor<List> firstBatch = ArgumentCaptor.forClass(List.class);
+        final ArgumentCaptor<List> secondBatch = ArgumentCaptor.forClass(List.class);
+        verify(first, timeout(2000)).publish(firstBatch.capture(), eq(true));
+        verify(second, timeout(2000)).publish(secondBatch.capture(), eq(true));
+        final DistributionMetric frozen = (DistributionMetric) firstBatch.getValue().get(0);
+        assertFalse(frozen instanceof HistogramMetric);
+        assertEquals("latency.p99", frozen.getPercentileName(0));
+        assertEquals(2, frozen.snapshotAndReset().getSampleCount());
+        assertEquals(2, ((DistributionMetric) secondBatch.getValue().get(0)).snapshotAndReset().getSampleCount());
+        assertEquals(0, histogram.snapshotAndReset().getSampleCount());
+    }
+
+    @Test
+    public void shouldIsolateHangingBackend() throws Exception {
+        doAnswer(invocation -> {
+            // ignores interruption, like a client stuck on a socket
+            while (release.getCount() > 0) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // keep hanging
+                }
+            }
+            return null;
+        }).when(first).publish(anyListOf(Metric.class), anyBoolean());
+        publisher = new CompositeMetricsPublisher(new ArrayList<>(), Arrays.asList(first, second), 1, 10);
+
+        for (int i = 1; i <= 3; i++) {
+            publisher.publish();
+            verify(second, timeout(2000).times(i)).publish(anyListOf(Metric.class), anyBoolean());
+        }
+
+        verify(first, times(1)).publish(anyListOf(Metric.class), anyBoolean());
+        final Map<Map<String, String>, ? extends Number> failed = publisher.getFailedPublishingRequests();
+        assertEquals(1, failed.size());
+        assertEquals(1L, failed.values().iterator().next().longValue());
+        assertTrue(failed.keySet().iterator().next().get("backend").startsWith(first.getClass().getSimpleName()));
+    }
+
+    @Test
+    public void shouldCancelBatchNotPublishedWithinTimeout() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            Thread.sleep(10_000);
+            return null;
+        }).when(first).publish(anyListOf(Metric.class), anyBoolean());
+        publisher = new CompositeMetricsPublisher(new ArrayList<>(), Collections.singletonList(first), 1, 1);
+
+        publisher.publish();
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        final long deadline = System.currentTimeMillis() + 3000;
+        while (publisher.getFailedPublishingRequests().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1L, publisher.getFailedPublishingRequests().values().iterator().next().longValue());
+    }
+
+    @Test
+    public void shouldJoinBackendNamespaces() throws Exception {
+        doReturn("aws").when(first).getNamespace();
+        doReturn("azure").when(second).getNamespace();
+        publisher = new CompositeMetricsPublisher(new ArrayList<>(), Arrays.asList(first, second), 1, 10);
+        assertEquals("aws,azure", publisher.getNamespace());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectZeroTimeout() throws Exception {
+        new CompositeMetricsPublisher(new ArrayList<>(), Collections.singletonList(first), 1, 0);
+    }
+}
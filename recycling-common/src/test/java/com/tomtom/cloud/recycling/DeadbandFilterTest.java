@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class DeadbandFilterTest {
+
+    @Test
+    public void shouldSendFirstValueAndSuppressUnchangedOnes() throws Exception {
+        final DeadbandFilter filter = new DeadbandFilter(0, 0, 100);
+        assertTrue(filter.shouldPublish("gauge", 5));
+        assertFalse(filter.shouldPublish("gauge", 5));
+        assertTrue(filter.shouldPublish("gauge", 5.5));
+        assertEquals(1, filter.getSuppressedValues());
+    }
+
+    @Test
+    public void shouldCompareWithLastValueSent() throws Exception {
+        final DeadbandFilter filter = new DeadbandFilter(1, 0, 100);
+        assertTrue(filter.shouldPublish("gauge", 10));
+        assertFalse(filter.shouldPublish("gauge", 10.6));
+        // drifting in small steps eventually exceeds the threshold
+        assertTrue(filter.shouldPublish("gauge", 11.2));
+        assertFalse(filter.shouldPublish("gauge", 10.5));
+    }
+
+    @Test
+    public void shouldApplyRelativeThreshold() throws Exception {
+        final DeadbandFilter filter = new DeadbandFilter(0, 0.1, 100);
+        assertTrue(filter.shouldPublish("gauge", 1000));
+        assertFalse(filter.shouldPublish("gauge", 1090));
+        assertTrue(filter.shouldPublish("gauge", 1110));
+    }
+
+    @Test
+    public void shouldSendEitherThresholdExceeded() throws Exception {
+        final DeadbandFilter filter = new DeadbandFilter(5, 0.5, 100);
+        assertTrue(filter.shouldPublish("gauge", 2));
+        assertTrue(filter.shouldPublish("gauge", 3.5));
+        assertFalse(filter.shouldPublish("gauge", 4.5));
+    }
+
+    @Test
+    public void shouldSendHeartbeat() throws Exception {
+        final DeadbandFilter filter = new DeadbandFilter(0, 0, 3);
+        assertTrue(filter.shouldPublish("gauge", 1));
+        assertFalse(filter.shouldPublish("gauge", 1));
+        assertFalse(filter.shouldPublish("gauge", 1));
+        assertTrue(filter.shouldPublish("gauge", 1));
+        assertFalse(filter.shouldPublish("gauge", 1));
+    }
+
+    @Test
+    public void shouldUsePerMetricThreshold() throws Exception {
+        final DeadbandFilter filter = new DeadbandFilter(0, 0, 100).withThreshold("noisy", 10, 0);
+        filter.shouldPublish("noisy", 0);
+        filter.shouldPublish("quiet", 0);
+        assertFalse(filter.shouldPublish("noisy", 5));
+        assertTrue(filter.shouldPublish("quiet", 5));
+    }
+
+    @Test
+    public void shouldTellSeriesApartAndApplyMetricThreshold() throws Exception {
+        final DeadbandFilter filter = new DeadbandFilter(0, 0, 100).withThreshold("queue", 10, 0);
+        final DimensionSet traffic = DimensionSet.of(Collections.singletonMap("feed", "traffic"));
+        final DimensionSet flow = DimensionSet.of(Collections.singletonMap("feed", "flow"));
+        assertTrue(filter.shouldPublish("queue", traffic, 0));
+        assertTrue(filter.shouldPublish("queue", flow, 20));
+        assertFalse(filter.shouldPublish("queue", traffic, 5));
+        assertTrue(filter.shouldPublish("queue", flow, 5));
+    }
+
+    @Test
+    public void shouldTreatNaNAsChange() throws Exception {
+        final DeadbandFilter filter = new DeadbandFilter(1, 0, 100);
+        assertTrue(filter.shouldPublish("gauge", 1));
+        assertTrue(filter.shouldPublish("gauge", Double.NaN));
+        assertFalse(filter.shouldPublish("gauge", Double.NaN));
+        assertTrue(filter.shouldPublish("gauge", 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNegativeThreshold() {
+        new DeadbandFilter(-1, 0, 1);
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class DimensionSetTest {
+
+    @Test
+    public void shouldInternEqualDimensions() {
+        final Map<String, String> first = new HashMap<>();
+        first.put("InstanceId", "i-1");
+        first.put("feed", "flow");
+        final Map<String, String> second = new HashMap<>(first);
+
+        final DimensionSet dimensions = DimensionSet.of(first);
+        assertSame(dimensions, DimensionSet.of(second));
+        assertEquals("{InstanceId=i-1, feed=flow}", dimensions.toString());
+        assertEquals(first, dimensions.asMap());
+    }
+
+    @Test
+    public void shouldInternCountKeys() {
+        final OneTagMetricMap<String> failures = new OneTagMetricMap<>("feed");
+        failures.increment("flow");
+        final Map<String, String> key = failures.getCounts().keySet().iterator().next();
+        assertSame(DimensionSet.of(Collections.singletonMap("feed", "flow")), DimensionSet.of(key));
+    }
+
+    @Test
+    public void shouldCombineDimensions() {
+        final DimensionSet common = DimensionSet.of(Collections.singletonMap("InstanceId", "i-1"));
+        final DimensionSet feed = DimensionSet.of(Collections.singletonMap("feed", "flow"));
+        final Map<String, String> both = new HashMap<>();
+        both.put("InstanceId", "i-1");
+        both.put("feed", "flow");
+
+        assertSame(DimensionSet.of(both), common.with(feed));
+        assertSame(common, common.with(DimensionSet.EMPTY));
+        assertSame(feed, DimensionSet.EMPTY.with(feed));
+        assertEquals("i-2", common.with(DimensionSet.of(Collections.singletonMap("InstanceId", "i-2")))
+                .asMap().get("InstanceId"));
+    }
+
+    @Test
+    public void shouldTreatMissingDimensionsAsEmpty() {
+        assertSame(DimensionSet.EMPTY, DimensionSet.of((Map<String, String>) null));
+        assertSame(DimensionSet.EMPTY, DimensionSet.of(mock(Metric.class)));
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramMetricTest {
+
+    private final HistogramMetric metric = new HistogramMetric("latency");
+
+    @Test
+    public void shouldEstimatePercentilesWithinPrecision() throws Exception {
+        for (int i = 1; i <= 1000; i++) {
+            metric.record(i);
+        }
+        final HistogramSnapshot snapshot = metric.snapshotAndReset();
+
+        assertEquals(1000, snapshot.getSampleCount());
+        assertEquals(500, snapshot.getValueAtPercentile(50), 500 * 0.04);
+        assertEquals(990, snapshot.getValueAtPercentile(99), 990 * 0.04);
+        assertEquals(999, snapshot.getValueAtPercentile(99.9), 999 * 0.04);
+        assertEquals(1000, snapshot.getValueAtPercentile(100), 0);
+        assertEquals(1, snapshot.getValueAtPercentile(0), 0);
+    }
+
+    @Test
+    public void shouldSummarizeStatistics() throws Exception {
+        metric.record(2);
+        metric.record(10);
+        final MetricStatistics statistics = metric.snapshotAndReset().toStatistics();
+
+        assertEquals(2, statistics.getSampleCount());
+        assertEquals(12, statistics.getSum(), 0);
+        assertEquals(2, statistics.getMinimum(), 0);
+        assertEquals(10, statistics.getMaximum(), 0);
+    }
+
+    @Test
+    public void shouldStartNewIntervalAfterSnapshot() throws Exception {
+        metric.record(5);
+        metric.snapshotAndReset();
+
+        final HistogramSnapshot snapshot = metric.snapshotAndReset();
+        assertTrue(snapshot.isEmpty());
+        assertTrue(snapshot.toStatistics().isEmpty());
+        assertEquals(0, snapshot.getValueAtPercentile(99), 0);
+    }
+
+    @Test
+    public void shouldClampValuesOutsideRange() throws Exception {
+        metric.record(0);
+        metric.record(-3);
+        metric.record(1e12);
+        final HistogramSnapshot snapshot = metric.snapshotAndReset();
+
+        assertEquals(3, snapshot.getSampleCount());
+        assertEquals(-3, snapshot.getValueAtPercentile(0), 0);
+        assertEquals(1e12, snapshot.getValueAtPercentile(100), 0);
+    }
+
+    @Test
+    public void shouldNameSeriesAfterPercentiles() throws Exception {
+        final HistogramMetric custom = new HistogramMetric("latency", 50, 99.9, 99.99);
+        assertEquals("latency.p50", custom.getPercentileName(0));
+        assertEquals("latency.p999", custom.getPercentileName(1));
+        assertEquals("latency.p9999", custom.getPercentileName(2));
+        assertEquals(3, custom.getPercentileCount());
+        assertEquals(99.9, custom.getPercentile(1), 0);
+    }
+
+    @Test
+    public void shouldReportAverageOfCurrentInterval() throws Exception {
+        metric.record(1);
+        metric.record(3);
+        assertEquals(2, metric.getValue(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidPercentile() throws Exception {
+        new HistogramMetric("latency", 101);
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static com.tomtom.cloud.recycling.TestMetrics.metric;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MetricCollectorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final MetricCollector collector = new MetricCollector(2, 10, 200);
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        collector.shutdown();
+    }
+
+    @Test
+    public void shouldCollectValuesInOrder() throws Exception {
+        final List<Metric> collected = collector.collect(Arrays.asList(metric("a", 1), metric("b", 2), metric("c", 3)));
+        assertEquals(3, collected.size());
+        assertEquals("a", collected.get(0).getName());
+        assertEquals(3, collected.get(2).getValue(), 0);
+        assertTrue(collector.getMissedValues().isEmpty());
+    }
+
+    @Test
+    public void shouldSkipValueMissingDeadline() throws Exception {
+        final long start = System.nanoTime();
+        final List<Metric> collected = collector.collect(Arrays.asList(metric("fast", 1), blockingMetric("slow")));
+        assertTrue(System.nanoTime() - start < 2_000_000_000L);
+        assertEquals(1, collected.size());
+        assertEquals("fast", collected.get(0).getName());
+        assertEquals(Collections.singletonMap("metricName", "slow"),
+                collector.getMissedValues().keySet().iterator().next());
+    }
+
+    @Test
+    public void shouldNotReadMetricWhosePreviousReadIsRunning() throws Exception {
+        final Metric hanging = new Metric() {
+            @Override
+            public String getName() {
+                return "hanging";
+            }
+
+            @Override
+            public double getValue() {
+                // ignores interruption, like a getter stuck in a driver
+                while (release.getCount() > 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // keep hanging
+                    }
+                }
+                return 0;
+            }
+        };
+        collector.collect(Collections.singletonList(hanging));
+        collector.collect(Collections.singletonList(hanging));
+        assertEquals(1, collector.getActiveReads());
+        assertEquals(2L, collector.getMissedValues().values().iterator().next().longValue());
+    }
+
+    @Test
+    public void shouldReadAgainMetricWhoseReadWasCancelledBeforeStarting() throws Exception {
+        final Metric queued = metric("queued", 3);
+        // both threads are taken, so the read of the last metric waits in the queue until it is cancelled
+        collector.collect(Arrays.asList(blockingMetric("first"), blockingMetric("second"), queued));
+        release.countDown();
+
+        final List<Metric> collected = collector.collect(Collections.singletonList(queued));
+        assertEquals(1, collected.size());
+        assertEquals(3, collected.get(0).getValue(), 0);
+    }
+
+    @Test
+    public void shouldCountFailingMetric() throws Exception {
+        final Metric failing = mock(Metric.class);
+        doReturn("failing").when(failing).getName();
+        doThrow(new IllegalStateException("test")).when(failing).getValue();
+        assertTrue(collector.collect(Collections.singletonList(failing)).isEmpty());
+        assertEquals(1, collector.getMissedValues().size());
+    }
+
+    @Test
+    public void shouldPassInMemoryMetricsThrough() throws Exception {
+        final AggregatingMetric aggregating = mock(AggregatingMetric.class);
+        final List<Metric> collected = collector.collect(Collections.<Metric>singletonList(aggregating));
+        assertSame(aggregating, collected.get(0));
+        verify(aggregating, never()).getValue();
+    }
+
+    private Metric blockingMetric(final String name) {
+        return new Metric() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public double getValue() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 0;
+            }
+        };
+    }
+}
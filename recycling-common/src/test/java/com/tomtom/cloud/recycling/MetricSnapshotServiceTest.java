@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static com.tomtom.cloud.recycling.TestMetrics.metric;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MetricSnapshotServiceTest {
+
+    @Test
+    public void shouldReadEachMetricOncePerSnapshot() throws Exception {
+        final Metric gauge = metric("gauge", 42);
+        final MetricSnapshotService service = new MetricSnapshotService(Collections.singletonList(gauge), 10);
+        final Metric view = service.getMetrics().get(0);
+        assertTrue(Double.isNaN(view.getValue()));
+        assertEquals(-1, service.getSnapshotAgeMillis());
+
+        service.refresh();
+        assertEquals("gauge", view.getName());
+        assertEquals(42, view.getValue(), 0);
+        assertEquals(42, view.getValue(), 0);
+        assertEquals(42, service.getValues().get("gauge"), 0);
+        verify(gauge, times(1)).getValue();
+        assertTrue(service.getSnapshotAgeMillis() >= 0);
+    }
+
+    @Test
+    public void shouldTakeFirstSnapshotOnStart() throws Exception {
+        final Metric gauge = metric("gauge", 7);
+        final MetricSnapshotService service = new MetricSnapshotService(Collections.singletonList(gauge), 10);
+        service.start();
+        try {
+            assertEquals(7, service.getMetrics().get(0).getValue(), 0);
+            assertTrue(service.getSnapshotAgeMillis() >= 0);
+        } finally {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void shouldKeepPreviousValueOfFailingMetric() throws Exception {
+        final Metric gauge = metric("gauge", 1);
+        final MetricSnapshotService service = new MetricSnapshotService(Collections.singletonList(gauge), 10);
+        service.refresh();
+        final long readMillis = service.getMetrics().get(0).getTimestamp();
+        doThrow(new IllegalStateException("test")).when(gauge).getValue();
+        Thread.sleep(5);
+        service.refresh();
+        assertEquals(1, service.getMetrics().get(0).getValue(), 0);
+        // the kept value is as old as it was, not as recent as the snapshot
+        assertEquals(readMillis, service.getMetrics().get(0).getTimestamp());
+        assertEquals(1L, service.getFailedReads().values().iterator().next().longValue());
+    }
+
+    @Test
+    public void shouldDescribeValuesWithUnitAndSnapshotTime() throws Exception {
+        final Metric gauge = metric("gauge", 1);
+        doReturn(MetricUnit.PERCENT).when(gauge).getUnit();
+        doReturn(true).when(gauge).isHighResolution();
+        final MetricSnapshotService service = new MetricSnapshotService(Collections.singletonList(gauge), 10);
+        final Metric view = service.getMetrics().get(0);
+        assertEquals(0, view.getTimestamp());
+
+        final long before = System.currentTimeMillis();
+        service.refresh();
+        assertEquals(MetricUnit.PERCENT, view.getUnit());
+        assertTrue(view.isHighResolution());
+        assertTrue(view.getTimestamp() >= before);
+    }
+
+    @Test
+    public void shouldPassInMemoryMetricsThrough() throws Exception {
+        final AggregatingMetric aggregating = new AggregatingMetric("latency");
+        final HistogramMetric histogram = new HistogramMetric("sizes");
+        final List<Metric> views = new MetricSnapshotService(
+                Arrays.asList(aggregating, metric("gauge", 1), histogram), 10).getMetrics();
+        assertSame(aggregating, views.get(0));
+        assertEquals("gauge", views.get(1).getName());
+        assertSame(histogram, views.get(2));
+    }
+
+    @Test
+    public void shouldNotSubmitSnapshotMetricsToCollector() throws Exception {
+        final Metric gauge = metric("gauge", 3);
+        final MetricSnapshotService service = new MetricSnapshotService(Collections.singletonList(gauge), 10);
+        service.refresh();
+        final MetricCollector collector = new MetricCollector(1, 1, 100);
+        try {
+            final Metric view = service.getMetrics().get(0);
+            assertSame(view, collector.collect(Collections.singletonList(view)).get(0));
+        } finally {
+            collector.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldKeepSeriesSharingANameApart() throws Exception {
+        final Metric traffic = metric("queue.size", 1);
+        doReturn(DimensionSet.of(Collections.singletonMap("feed", "traffic"))).when(traffic).getDimensions();
+        final Metric maps = metric("queue.size", 2);
+        doReturn(DimensionSet.of(Collections.singletonMap("feed", "maps"))).when(maps).getDimensions();
+        final MetricSnapshotService service = new MetricSnapshotService(Arrays.asList(traffic, maps), 10);
+        service.refresh();
+        assertEquals(2, service.getValues().size());
+        assertEquals(1, service.getValues().get("queue.size{feed=traffic}"), 0);
+        assertEquals(2, service.getValues().get("queue.size{feed=maps}"), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectZeroInterval() throws Exception {
+        new MetricSnapshotService(Collections.emptyList(), 0);
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MetricSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = folder.getRoot().toPath().resolve("metrics.spool");
+    }
+
+    @Test
+    public void shouldReturnDatumsInAppendOrder() throws Exception {
+        try (MetricSpool spool = new MetricSpool(file, 4096)) {
+            spool.append(new SpooledDatum("first", 1000L, 1.5));
+            spool.append(new SpooledDatum("second", 2000L, new MetricStatistics(3, 9, 1, 5)));
+
+            final List<SpooledDatum> datums = spool.poll(10);
+            assertEquals(2, datums.size());
+            assertEquals("first", datums.get(0).getName());
+            assertEquals(1000L, datums.get(0).getTimestamp());
+            assertTrue(datums.get(0).isSingleValue());
+            assertEquals(1.5, datums.get(0).getStatistics().getSum(), 0);
+            assertEquals("second", datums.get(1).getName());
+            assertEquals(3, datums.get(1).getStatistics().getSampleCount());
+            assertEquals(5, datums.get(1).getStatistics().getMaximum(), 0);
+            assertTrue(spool.isEmpty());
+        }
+    }
+
+    @Test
+    public void shouldKeepDimensionsAcrossReopening() throws Exception {
+        final Map<String, String> dimensions = new HashMap<>();
+        dimensions.put("feed", "flow");
+        dimensions.put("InstanceId", "i-1");
+        try (MetricSpool spool = new MetricSpool(file, 4096)) {
+            spool.append(new SpooledDatum("plain", 1000L, 1));
+            spool.append(new SpooledDatum("sliced", DimensionSet.of(dimensions), 2000L,
+                    new MetricStatistics(2, 3, 1, 2)));
+        }
+        try (MetricSpool spool = new MetricSpool(file, 4096)) {
+            final List<SpooledDatum> datums = spool.poll(10);
+            assertEquals(2, datums.size());
+            assertSame(DimensionSet.EMPTY, datums.get(0).getDimensions());
+            assertSame(DimensionSet.of(dimensions), datums.get(1).getDimensions());
+            assertEquals(3, datums.get(1).getStatistics().getSum(), 0);
+        }
+    }
+
+    @Test
+    public void shouldKeepUnitsAcrossReopening() throws Exception {
+        final DimensionSet dimensions = DimensionSet.of(Collections.singletonMap("feed", "flow"));
+        try (MetricSpool spool = new MetricSpool(file, 4096)) {
+            spool.append(new SpooledDatum("plain", 1000L, 1));
+            spool.append(new SpooledDatum("latency", DimensionSet.EMPTY, MetricUnit.MILLISECONDS, 2000L,
+                    new MetricStatistics(1, 2, 2, 2)));
+            spool.append(new SpooledDatum("rate", dimensions, MetricUnit.COUNT_PER_SECOND, 3000L,
+                    new MetricStatistics(1, 3, 3, 3)));
+        }
+        try (MetricSpool spool = new MetricSpool(file, 4096)) {
+            final List<SpooledDatum> datums = spool.poll(10);
+            assertEquals(3, datums.size());
+            assertEquals(MetricUnit.NONE, datums.get(0).getUnit());
+            assertEquals(MetricUnit.MILLISECONDS, datums.get(1).getUnit());
+            assertSame(DimensionSet.EMPTY, datums.get(1).getDimensions());
+            assertEquals(MetricUnit.COUNT_PER_SECOND, datums.get(2).getUnit());
+            assertSame(dimensions, datums.get(2).getDimensions());
+        }
+    }
+
+    @Test
+    public void shouldKeepDatumsUntilRemoved() throws Exception {
+        try (MetricSpool spool = new MetricSpool(file, 4096)) {
+            for (int i = 0; i < 5; i++) {
+                spool.append(new SpooledDatum("metric" + i, i, i));
+            }
+            assertEquals(2, spool.peek(2).size());
+            assertEquals(5, spool.size());
+
+            spool.remove(2);
+            assertEquals(3, spool.size());
+            assertEquals("metric2", spool.peek(1).get(0).getName());
+        }
+    }
+
+    @Test
+    public void shouldSurviveReopening() throws Exception {
+        try (MetricSpool spool = new MetricSpool(file, 4096)) {
+            spool.append(new SpooledDatum("replayed", 1L, 1));
+            spool.append(new SpooledDatum("pending", 2L, 2));
+            spool.poll(1);
+        }
+        try (MetricSpool spool = new MetricSpool(file, 4096)) {
+            assertEquals(1, spool.size());
+            assertEquals("pending", spool.poll(1).get(0).getName());
+        }
+    }
+
+    @Test
+    public void shouldDropDatumsWhenFull() throws Exception {
+        try (MetricSpool spool = new MetricSpool(file, 128)) {
+            assertTrue(spool.append(new SpooledDatum("metric", 1L, 1)));
+            assertTrue(spool.append(new SpooledDatum("metric", 2L, 2)));
+            assertFalse(spool.append(new SpooledDatum("metric", 3L, 3)));
+            assertEquals(2, spool.size());
+            assertEquals(1, spool.getDroppedDatums());
+        }
+    }
+
+    @Test
+    public void shouldReclaimSpaceOfReplayedDatums() throws Exception {
+        try (MetricSpool spool = new MetricSpool(file, 128)) {
+            spool.append(new SpooledDatum("metric", 1L, 1));
+            spool.append(new SpooledDatum("metric", 2L, 2));
+            spool.poll(1);
+
+            assertTrue(spool.append(new SpooledDatum("metric", 3L, 3)));
+            final List<SpooledDatum> datums = spool.poll(10);
+            assertEquals(2, datums.size());
+            assertEquals(2L, datums.get(0).getTimestamp());
+            assertEquals(3L, datums.get(1).getTimestamp());
+        }
+    }
+
+    @Test
+    public void shouldStartOverWithCorruptFile() throws Exception {
+        try (MetricSpool spool = new MetricSpool(file, 4096)) {
+            spool.append(new SpooledDatum("metric", 1L, 1));
+        }
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.seek(16);
+            raw.writeLong(Long.MAX_VALUE);
+        }
+        try (MetricSpool spool = new MetricSpool(file, 4096)) {
+            assertTrue(spool.isEmpty());
+            assertTrue(spool.append(new SpooledDatum("metric", 2L, 2)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectTinyCapacity() throws IOException {
+        new MetricSpool(file, 8);
+    }
+}
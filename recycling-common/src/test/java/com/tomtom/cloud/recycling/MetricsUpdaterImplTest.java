@@ -22,6 +22,8 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
@@ -33,6 +35,9 @@ public class MetricsUpdaterImplTest {
     @Mock
     private MetricsPublisher metricsPublisher;
 
+    @Mock
+    private AdaptiveInterval adaptiveInterval;
+
     private MetricsUpdater metricsUpdater;
 
     @Before
@@ -84,6 +89,85 @@ public class MetricsUpdaterImplTest {
         metricsUpdater.start();
     }
 
+    @Test
+    public void shouldPublishAtAdaptiveInterval() throws Exception {
+        final MetricsUpdaterImpl adaptiveUpdater = new MetricsUpdaterImpl(metricsPublisher,
+                new AdaptiveInterval(1, 60, () -> true), true);
+        assertTrue(adaptiveUpdater.isAdaptive());
+        adaptiveUpdater.start();
+        Thread.sleep(1500);
+        verify(metricsPublisher, atLeast(2)).publish();
+        assertEquals(1000, adaptiveUpdater.getEffectiveIntervalMillis());
+        assertEquals(60, adaptiveUpdater.getSleepIntervalSeconds());
+        adaptiveUpdater.stop();
+    }
+
+    @Test
+    public void shouldDetectOverrun() throws Exception {
+        final MetricsUpdaterImpl slowUpdater = new MetricsUpdaterImpl(metricsPublisher, 1, true);
+        slowUpdater.setOverrunPolicy(OverrunPolicy.SKIP);
+        doAnswer(invocation -> {
+            Thread.sleep(1100);
+            return null;
+        }).when(metricsPublisher).publish();
+        slowUpdater.start();
+        Thread.sleep(1500);
+        slowUpdater.stop();
+        assertEquals(1, slowUpdater.getOverrunCount());
+        assertTrue(slowUpdater.getLastPublishDurationMillis() >= 1100);
+        assertTrue(slowUpdater.getMaxPublishDurationMillis() >= 1100);
+        assertEquals(1, slowUpdater.getPublishCount());
+        assertEquals("SKIP", slowUpdater.getOverrunPolicy());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectZeroInterval() throws Exception {
+        new MetricsUpdaterImpl(metricsPublisher, 0, true);
+    }
+
+    @Test
+    public void shouldDerivePhaseFromInstanceId() throws Exception {
+        final long offset = MetricsUpdaterImpl.phaseOffsetMillis("i-0123456789abcdef0", 60000);
+        assertEquals(offset, MetricsUpdaterImpl.phaseOffsetMillis("i-0123456789abcdef0", 60000));
+        assertTrue(offset >= 0 && offset < 60000);
+    }
+
+    @Test
+    public void shouldSpreadPhasesOfSimilarInstanceIds() throws Exception {
+        final int[] buckets = new int[10];
+        for (int i = 0; i < 100; i++) {
+            buckets[(int) (MetricsUpdaterImpl.phaseOffsetMillis("i-0123456789abcde" + i, 60000) / 6000)]++;
+        }
+        for (int bucket : buckets) {
+            assertTrue(bucket > 0);
+        }
+    }
+
+    @Test
+    public void shouldPublishAtPhaseWithJitter() throws Exception {
+        final MetricsUpdaterImpl phasedUpdater = new MetricsUpdaterImpl(metricsPublisher, 1, true);
+        phasedUpdater.setInstanceId("i-0123456789abcdef0");
+        phasedUpdater.setJitterMillis(200);
+        phasedUpdater.start();
+        assertEquals(MetricsUpdaterImpl.phaseOffsetMillis("i-0123456789abcdef0", 1000),
+                phasedUpdater.getPhaseOffsetMillis());
+        Thread.sleep(1800);
+        verify(metricsPublisher, atLeast(1)).publish();
+        phasedUpdater.stop();
+        assertEquals(200, phasedUpdater.getJitterMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectAdaptiveIntervalShorterThanOneSecond() throws Exception {
+        doReturn(500L).when(adaptiveInterval).getMaxIntervalMillis();
+        new MetricsUpdaterImpl(metricsPublisher, adaptiveInterval, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNegativeJitter() throws Exception {
+        new MetricsUpdaterImpl(metricsPublisher, 1, true).setJitterMillis(-1);
+    }
+
     @Test
     public void stopShouldDoNothing() throws Exception {
         metricsUpdater.stop();
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MultiTagMetricMapTest {
+
+    private final MultiTagMetricMap map = new MultiTagMetricMap("feed", "region", "status");
+
+    @Test
+    public void shouldCountPerTagCombination() throws Exception {
+        map.increment("FIN", "eu", "ok");
+        map.increment("FIN", "eu", "ok");
+        map.increment("FIN", "eu", "stale");
+        map.add(5, "CZE", "eu", "ok");
+        map.set(7, "AUT", "eu", 200);
+
+        assertEquals(4, map.getCounts().size());
+        assertEquals(2L, count("FIN", "eu", "ok"));
+        assertEquals(1L, count("FIN", "eu", "stale"));
+        assertEquals(5L, count("CZE", "eu", "ok"));
+        assertEquals(7L, count("AUT", "eu", "200"));
+    }
+
+    @Test
+    public void shouldExposeKeysAsPlainMaps() throws Exception {
+        map.increment("FIN", "eu", "ok");
+        map.increment("CZE", "us", "stale");
+
+        final Map<String, String> key = map.getCounts().keySet().stream()
+                .filter(k -> "FIN".equals(k.get("feed"))).findFirst().get();
+        assertEquals(tags("FIN", "eu", "ok"), key);
+        assertEquals(tags("FIN", "eu", "ok").hashCode(), key.hashCode());
+        assertEquals("{feed=FIN, region=eu, status=ok}", key.toString());
+    }
+
+    @Test
+    public void shouldIgnoreTagCombinationsBeyondMaximum() throws Exception {
+        final MultiTagMetricMap bounded = new MultiTagMetricMap(1, "feed", "status");
+        bounded.increment("FIN", "ok");
+        bounded.increment("FIN", "stale");
+        bounded.increment("FIN", "ok");
+
+        assertEquals(1, bounded.getCounts().size());
+        assertTrue(bounded.getCounts().containsKey(tags2("FIN", "ok")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectWrongNumberOfTagValues() throws Exception {
+        map.increment("FIN", "eu");
+    }
+
+    private long count(final String feed, final String region, final String status) {
+        return map.getCounts().get(tags(feed, region, status)).longValue();
+    }
+
+    private static Map<String, String> tags(final String feed, final String region, final String status) {
+        final Map<String, String> tags = new HashMap<>();
+        tags.put("feed", feed);
+        tags.put("region", region);
+        tags.put("status", status);
+        return tags;
+    }
+
+    private static Map<String, String> tags2(final String feed, final String status) {
+        final Map<String, String> tags = new HashMap<>();
+        tags.put("feed", feed);
+        tags.put("status", status);
+        return tags;
+    }
+}
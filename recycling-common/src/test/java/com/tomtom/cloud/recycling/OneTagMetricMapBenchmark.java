@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the steady-state cost of updating the counter of a known tag, against the former
+ * implementation that built and hashed a key map on every update.
+ * <p/>
+ * Run from the module directory, reading "gc.alloc.rate.norm" as bytes allocated per operation:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/test.classpath
+ * java -cp target/test-classes:target/classes:$(cat target/test.classpath) \
+ *     com.tomtom.cloud.recycling.OneTagMetricMapBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OneTagMetricMapBenchmark {
+
+    private static final String[] FEEDS = {"FIN", "CZE", "AUT", "NLD", "DEU", "FRA", "BEL", "LUX"};
+
+    private final OneTagMetricMap<String> map = new OneTagMetricMap<>("feed");
+
+    private final ConcurrentMap<Map<String, String>, AtomicLong> keyPerCallCounts = new ConcurrentHashMap<>();
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        for (String feed : FEEDS) {
+            map.increment(feed);
+            keyPerCallCounts.put(keyPerCall(feed), new AtomicLong());
+        }
+    }
+
+    @Benchmark
+    public void increment() {
+        map.increment(nextFeed());
+    }
+
+    @Benchmark
+    public long incrementWithKeyPerCall() {
+        return keyPerCallCounts.get(keyPerCall(nextFeed())).incrementAndGet();
+    }
+
+    private String nextFeed() {
+        next = (next + 1) & (FEEDS.length - 1);
+        return FEEDS[next];
+    }
+
+    private static Map<String, String> keyPerCall(final String feed) {
+        HashMap<String, String> key = new HashMap<>(1);
+        key.put("feed", feed);
+        return key;
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(OneTagMetricMapBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class OneTagMetricMapTest {
+
+    private final OneTagMetricMap<String> map = new OneTagMetricMap<>("feed");
+
+    @Test
+    public void shouldCountPerTag() throws Exception {
+        map.increment("FIN");
+        map.increment("FIN");
+        map.add("CZE", 5);
+        map.add("CZE", 2);
+
+        assertEquals(2L, count("FIN"));
+        assertEquals(7L, count("CZE"));
+    }
+
+    @Test
+    public void shouldOverwriteValue() throws Exception {
+        map.set("AUT", 59);
+        map.set("AUT", 51);
+        assertEquals(51L, count("AUT"));
+    }
+
+    @Test
+    public void shouldStartFromInitialValues() throws Exception {
+        final OneTagMetricMap<String> initialized =
+                new OneTagMetricMap<>("feed", Collections.singletonMap("FIN", 108));
+        initialized.set("FIN", 3);
+        initialized.increment("FIN");
+        assertEquals(4L, initialized.getCounts().get(Collections.singletonMap("feed", "FIN")).longValue());
+    }
+
+    @Test
+    public void shouldShareCounterOfTagsWithSameName() throws Exception {
+        final OneTagMetricMap<Object> mixed = new OneTagMetricMap<>("status");
+        mixed.increment(200);
+        mixed.increment("200");
+        assertEquals(1, mixed.getCounts().size());
+        assertEquals(2L, mixed.getCounts().get(Collections.singletonMap("status", "200")).longValue());
+    }
+
+    @Test
+    public void shouldShareCounterOfTagsWithoutValueEquality() throws Exception {
+        final OneTagMetricMap<StringBuilder> bounded = new OneTagMetricMap<>("feed", 1);
+        for (int i = 0; i < 3; i++) {
+            bounded.increment(new StringBuilder("FIN"));
+        }
+        assertEquals(1, bounded.getCounts().size());
+        assertEquals(3L, bounded.getCounts().get(Collections.singletonMap("feed", "FIN")).longValue());
+    }
+
+    @Test
+    public void shouldIgnoreTagsBeyondMaximum() throws Exception {
+        final OneTagMetricMap<String> bounded = new OneTagMetricMap<>("feed", 1);
+        bounded.increment("FIN");
+        bounded.increment("CZE");
+        bounded.increment("FIN");
+
+        final Map<Map<String, String>, ? extends Number> counts = bounded.getCounts();
+        assertEquals(1, counts.size());
+        assertEquals(2L, counts.get(Collections.singletonMap("feed", "FIN")).longValue());
+        assertFalse(counts.containsKey(Collections.singletonMap("feed", "CZE")));
+    }
+
+    private long count(final String feed) {
+        return map.getCounts().get(Collections.singletonMap("feed", feed)).longValue();
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class OverrunPolicyTest {
+
+    @Test
+    public void shouldKeepCadenceWithoutOverrun() throws Exception {
+        assertEquals(100, OverrunPolicy.SKIP.nextDue(0, 30, 100));
+        assertEquals(100, OverrunPolicy.COALESCE.nextDue(0, 30, 100));
+        assertEquals(130, OverrunPolicy.FIXED_DELAY.nextDue(0, 30, 100));
+    }
+
+    @Test
+    public void shouldSkipMissedTicks() throws Exception {
+        assertEquals(300, OverrunPolicy.SKIP.nextDue(0, 250, 100));
+        assertEquals(300, OverrunPolicy.SKIP.nextDue(0, 200, 100));
+    }
+
+    @Test
+    public void shouldCoalesceMissedTicksIntoOne() throws Exception {
+        assertEquals(250, OverrunPolicy.COALESCE.nextDue(0, 250, 100));
+    }
+
+    @Test
+    public void shouldWaitFullIntervalAfterOverrun() throws Exception {
+        assertEquals(350, OverrunPolicy.FIXED_DELAY.nextDue(0, 250, 100));
+    }
+
+    @Test
+    public void shouldHandleNanoTimeWrapAround() throws Exception {
+        assertEquals(Long.MIN_VALUE + 50, OverrunPolicy.SKIP.nextDue(Long.MAX_VALUE - 49, Long.MAX_VALUE, 100));
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class PublishingStatisticsTest {
+
+    private final PublishingStatistics statistics = new PublishingStatistics("Publisher");
+
+    @Test
+    public void shouldCountRequestsAndDatums() throws Exception {
+        statistics.recordRequest(2_000_000, 20, true);
+        statistics.recordRequest(4_000_000, 5, false);
+        assertEquals(1, statistics.getSucceededRequests());
+        assertEquals(1, statistics.getFailedRequests());
+        assertEquals(25, statistics.getPublishedDatums());
+    }
+
+    @Test
+    public void shouldRecordDistributionsInMilliseconds() throws Exception {
+        statistics.recordCycle(30_000_000);
+        statistics.recordValueRead(1_500_000);
+        statistics.recordValueRead(500_000);
+        final List<Metric> metrics = statistics.getMetrics();
+        assertEquals("Publisher.CycleLatency", metrics.get(0).getName());
+        assertEquals(30, ((HistogramMetric) metrics.get(0)).snapshotAndReset().toStatistics().getMaximum(), 0);
+        final MetricStatistics valueReads = ((AggregatingMetric) metrics.get(3)).drain();
+        assertEquals(2, valueReads.getSampleCount());
+        assertEquals(2, valueReads.getSum(), 1e-9);
+        assertEquals(30, statistics.getLastCycleMillis());
+        assertEquals(1, statistics.getCycles());
+        assertEquals(2, statistics.getValueReadMillis());
+    }
+
+    @Test
+    public void shouldExposeOutcomesPerInterval() throws Exception {
+        statistics.recordRequest(1_000_000, 1, true);
+        statistics.recordRequest(1_000_000, 1, true);
+        final AggregatingMetric succeeded = (AggregatingMetric) statistics.getMetrics().get(4);
+        assertEquals("Publisher.SucceededRequests", succeeded.getName());
+        assertEquals(2, succeeded.drain().getSum(), 0);
+        assertEquals(0, succeeded.drain().getSampleCount());
+        assertEquals(2, statistics.getSucceededRequests());
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RetryPolicyTest {
+
+    @Mock
+    private ThreadContext threadContext;
+
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    @Test
+    public void shouldReturnResultOfFirstSuccessfulAttempt() throws Exception {
+        final RetryPolicy policy = new RetryPolicy(3, 100, 1000, threadContext);
+        final String result = policy.execute(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IOException("test");
+            }
+            return "done";
+        });
+        assertEquals("done", result);
+        verify(threadContext, times(2)).sleep(anyLong());
+    }
+
+    @Test
+    public void shouldRethrowLastFailureWhenAttemptsAreExhausted() throws Exception {
+        final RetryPolicy policy = new RetryPolicy(2, 100, 1000, threadContext);
+        try {
+            policy.execute(() -> {
+                throw new IllegalStateException("attempt " + attempts.incrementAndGet());
+            }, e -> true);
+            fail("expected failure");
+        } catch (IllegalStateException e) {
+            assertEquals("attempt 2", e.getMessage());
+        }
+        verify(threadContext, times(1)).sleep(anyLong());
+    }
+
+    @Test
+    public void shouldNotRetryFailureThatIsNotRetryable() throws Exception {
+        final RetryPolicy policy = new RetryPolicy(3, 100, 1000, threadContext);
+        try {
+            policy.execute(() -> {
+                attempts.incrementAndGet();
+                throw new IllegalArgumentException("rejected");
+            });
+            fail("expected failure");
+        } catch (IllegalArgumentException e) {
+            assertEquals(1, attempts.get());
+        }
+        verify(threadContext, never()).sleep(anyLong());
+    }
+
+    @Test
+    public void shouldRecognizeIoErrorsAsTransient() throws Exception {
+        assertTrue(RetryPolicy.isTransient(new IllegalStateException(new IOException("reset"))));
+        assertFalse(RetryPolicy.isTransient(new IllegalStateException("test")));
+    }
+
+    @Test
+    public void shouldNotRetryWithoutRetryPolicy() throws Exception {
+        try {
+            RetryPolicy.NONE.execute(() -> {
+                attempts.incrementAndGet();
+                throw new IllegalStateException("test");
+            });
+            fail("expected failure");
+        } catch (IllegalStateException e) {
+            assertEquals(1, attempts.get());
+        }
+    }
+
+    @Test
+    public void shouldStopRetryingWhenInterrupted() throws Exception {
+        doThrow(new InterruptedException()).when(threadContext).sleep(anyLong());
+        final RetryPolicy policy = new RetryPolicy(5, 100, 1000, threadContext);
+        try {
+            policy.execute(() -> {
+                attempts.incrementAndGet();
+                throw new IOException("test");
+            });
+            fail("expected failure");
+        } catch (IOException e) {
+            assertEquals(1, attempts.get());
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    @Test
+    public void shouldBackOffExponentiallyWithJitter() throws Exception {
+        final RetryPolicy policy = new RetryPolicy(10, 100, 1000, threadContext);
+        for (int i = 0; i < 100; i++) {
+            assertBetween(50, 100, policy.delayMillis(1));
+            assertBetween(200, 400, policy.delayMillis(3));
+            assertBetween(500, 1000, policy.delayMillis(8));
+            assertBetween(500, 1000, policy.delayMillis(64));
+        }
+        verify(threadContext, never()).sleep(anyLong());
+    }
+
+    private static void assertBetween(final long min, final long max, final long actual) {
+        assertTrue(actual + " not in [" + min + ", " + max + "]", actual >= min && actual <= max);
+    }
+}
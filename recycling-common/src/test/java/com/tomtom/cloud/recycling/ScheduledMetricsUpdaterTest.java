@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ScheduledMetricsUpdaterTest {
+
+    @Mock
+    private MetricsPublisher metricsPublisher;
+
+    private final Metric critical = mock(Metric.class);
+
+    private final Metric capacity = mock(Metric.class);
+
+    private ScheduledMetricsUpdater updater;
+
+    @Before
+    public void setUp() throws Exception {
+        final Map<Integer, List<Metric>> schedule = new LinkedHashMap<>();
+        schedule.put(5, Collections.singletonList(critical));
+        schedule.put(300, Collections.singletonList(capacity));
+        updater = new ScheduledMetricsUpdater(metricsPublisher, 5, schedule, true);
+    }
+
+    @Test
+    public void shouldPublishDueMetricsInOneBatch() throws Exception {
+        updater.tick();
+        verify(metricsPublisher).publish(Arrays.asList(critical, capacity), true);
+        assertEquals(2, updater.getLastBatchSize());
+
+        for (int i = 1; i < 60; i++) {
+            updater.tick();
+        }
+        verify(metricsPublisher, times(59)).publish(Collections.singletonList(critical), true);
+
+        updater.tick();
+        verify(metricsPublisher, times(2)).publish(Arrays.asList(critical, capacity), true);
+    }
+
+    @Test
+    public void shouldPublishCountsWithShortestIntervalOnly() throws Exception {
+        final Map<Integer, List<Metric>> schedule = new LinkedHashMap<>();
+        schedule.put(10, Collections.singletonList(critical));
+        schedule.put(300, Collections.singletonList(capacity));
+        final ScheduledMetricsUpdater grouped = new ScheduledMetricsUpdater(metricsPublisher, 5, schedule, true);
+        for (int i = 0; i < 60; i++) {
+            grouped.tick();
+        }
+        verify(metricsPublisher).publish(Arrays.asList(critical, capacity), true);
+        verify(metricsPublisher, times(29)).publish(Collections.singletonList(critical), true);
+        verify(metricsPublisher, never()).publish(anyListOf(Metric.class), eq(false));
+    }
+
+    @Test
+    public void shouldRoundIntervalsUpToTicks() throws Exception {
+        final Map<Integer, List<Metric>> schedule = Collections.singletonMap(7, Collections.singletonList(critical));
+        final ScheduledMetricsUpdater rounding = new ScheduledMetricsUpdater(metricsPublisher, 5, schedule, true);
+        rounding.tick();
+        rounding.tick();
+        assertEquals(0, rounding.getLastBatchSize());
+        rounding.tick();
+        assertEquals(1, rounding.getLastBatchSize());
+    }
+
+    @Test
+    public void shouldNotPublishWhenDisabled() throws Exception {
+        updater.setEnabled(false);
+        updater.tick();
+        verify(metricsPublisher, never()).publish(anyListOf(Metric.class), anyBoolean());
+    }
+
+    @Test
+    public void shouldSurvivePublishingFailure() throws Exception {
+        doThrow(new IllegalStateException("test")).when(metricsPublisher)
+                .publish(anyListOf(Metric.class), anyBoolean());
+        updater.tick();
+        updater.tick();
+        verify(metricsPublisher, times(2)).publish(anyListOf(Metric.class), anyBoolean());
+    }
+
+    @Test
+    public void shouldTickOnceStarted() throws Exception {
+        assertFalse(updater.isRunning());
+        updater.start();
+        assertTrue(updater.isRunning());
+        verify(metricsPublisher, timeout(1000)).publish(Arrays.asList(critical, capacity), true);
+        updater.stop();
+        assertFalse(updater.isRunning());
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StripedOneTagMetricMapTest {
+
+    private final StripedOneTagMetricMap<String> map = new StripedOneTagMetricMap<>("feed");
+
+    @Test
+    public void shouldCountConcurrentUpdatesOfSameTag() throws Exception {
+        final int threads = 8;
+        final int perThread = 10000;
+        final List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            writers.add(new Thread(() -> {
+                for (int j = 0; j < perThread; j++) {
+                    map.increment("FIN");
+                    map.add("CZE", 2);
+                }
+            }));
+        }
+        writers.forEach(Thread::start);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals((long) threads * perThread, count("FIN"));
+        assertEquals(2L * threads * perThread, count("CZE"));
+    }
+
+    @Test
+    public void shouldOverwriteValue() throws Exception {
+        map.add("AUT", 59);
+        map.set("AUT", 51);
+        assertEquals(51L, count("AUT"));
+    }
+
+    @Test
+    public void shouldIgnoreTagsBeyondMaximum() throws Exception {
+        final StripedOneTagMetricMap<String> bounded = new StripedOneTagMetricMap<>("feed", 1);
+        bounded.increment("FIN");
+        bounded.increment("CZE");
+        assertEquals(1, bounded.getCounts().size());
+    }
+
+    private long count(final String feed) {
+        return map.getCounts().get(Collections.singletonMap("feed", feed)).longValue();
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Mocked metrics shared by the tests, which can stub or verify them further.
+ */
+public final class TestMetrics {
+
+    private TestMetrics() {
+    }
+
+    /**
+     * Creates a metric holding a value.
+     *
+     * @param name  metric name
+     * @param value metric value
+     * @return the mocked metric
+     */
+    public static Metric metric(final String name, final double value) {
+        final Metric metric = mock(Metric.class);
+        doReturn(name).when(metric).getName();
+        doReturn(value).when(metric).getValue();
+        return metric;
+    }
+}
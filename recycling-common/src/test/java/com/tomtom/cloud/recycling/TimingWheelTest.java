@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    @Test
+    public void shouldReturnItemsAtTheirIntervals() throws Exception {
+        final TimingWheel<String> wheel = new TimingWheel<>(6);
+        wheel.schedule("fast", 1);
+        wheel.schedule("medium", 2);
+        wheel.schedule("slow", 6);
+
+        assertEquals(Arrays.asList("fast", "medium", "slow"), wheel.advance());
+        assertEquals(Collections.singletonList("fast"), wheel.advance());
+        assertEquals(Arrays.asList("fast", "medium"), wheel.advance());
+        wheel.advance();
+        wheel.advance();
+        wheel.advance();
+        assertTrue(wheel.advance().contains("slow"));
+    }
+
+    @Test
+    public void shouldHandleIntervalsLongerThanTheWheel() throws Exception {
+        final TimingWheel<String> wheel = new TimingWheel<>(4);
+        wheel.schedule("slow", 10);
+        final List<Long> dueTicks = new ArrayList<>();
+        for (int i = 0; i < 31; i++) {
+            final long tick = wheel.getTick();
+            if (!wheel.advance().isEmpty()) {
+                dueTicks.add(tick);
+            }
+        }
+        assertEquals(Arrays.asList(0L, 10L, 20L, 30L), dueTicks);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectZeroInterval() {
+        new TimingWheel<String>(4).schedule("never", 0);
+    }
+}
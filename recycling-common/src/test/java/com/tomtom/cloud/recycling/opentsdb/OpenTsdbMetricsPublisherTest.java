@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling.opentsdb;
+
+import static com.tomtom.cloud.recycling.TestMetrics.metric;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.tomtom.cloud.recycling.AggregatingMetric;
+import com.tomtom.cloud.recycling.DimensionSet;
+import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricUnit;
+import com.tomtom.cloud.recycling.OneTagMetricMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OpenTsdbMetricsPublisherTest {
+
+    private static final long NOW = 1500000000000L;
+
+    private final AtomicLong clock = new AtomicLong(NOW);
+
+    private ServerSocket server;
+
+    private OpenTsdbMetricsPublisher publisher;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(2000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (publisher != null) {
+            publisher.close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void shouldPipelinePutLinesWithCommonTagsAndDimensions() throws Exception {
+        final AggregatingMetric latency = new AggregatingMetric("latency", MetricUnit.NONE, false,
+                DimensionSet.of(Collections.singletonMap("feed", "flow")));
+        latency.record(2);
+        latency.record(5.5);
+        final List<Metric> metrics = Arrays.asList(metric("queue size", 12), latency);
+        publisher = publisher(metrics, 1024);
+        publishUntilConnected(metrics);
+
+        try (Socket socket = server.accept()) {
+            assertEquals(Arrays.asList(
+                    "put healer.queue_size 1500000000 12 host=i-1 env=test",
+                    "put healer.latency.count 1500000000 2 host=i-1 env=test feed=flow",
+                    "put healer.latency.sum 1500000000 7.5 host=i-1 env=test feed=flow",
+                    "put healer.latency.min 1500000000 2 host=i-1 env=test feed=flow",
+                    "put healer.latency.max 1500000000 5.5 host=i-1 env=test feed=flow"), read(socket, 5));
+        }
+        assertEquals(1, publisher.getConnections());
+        assertEquals(0, publisher.getDroppedDataPoints());
+    }
+
+    @Test
+    public void shouldMapCountKeysToTags() throws Exception {
+        final OneTagMetricMap<String> failures = new OneTagMetricMap<>("feed");
+        failures.add("traffic flow", 3);
+        publisher = publisher(Collections.<Metric>emptyList(), 1024);
+        publisher.addCounts("failures", failures::getCounts);
+        publishUntilConnected(Collections.<Metric>emptyList());
+
+        try (Socket socket = server.accept()) {
+            assertEquals(Collections.singletonList(
+                    "put healer.failures 1500000000 3 host=i-1 env=test feed=traffic_flow"), read(socket, 1));
+        }
+    }
+
+    @Test
+    public void shouldDropLinesThatDoNotFitWhileDisconnected() throws Exception {
+        final InetSocketAddress address = (InetSocketAddress) server.getLocalSocketAddress();
+        server.close();
+        final List<Metric> metrics = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            metrics.add(metric("metric" + i, i));
+        }
+        publisher = new OpenTsdbMetricsPublisher(metrics, "healer", address, tags(), 256, 0, 1000, clock::get);
+        publisher.publish();
+        publisher.publish();
+
+        assertFalse(publisher.isConnected());
+        assertTrue(publisher.getDroppedDataPoints() > 0);
+        assertEquals(0, publisher.getSentBytes());
+    }
+
+    @Test
+    public void shouldReconnectAfterServerClosedConnection() throws Exception {
+        final List<Metric> metrics = Collections.singletonList(metric("ok", 1));
+        publisher = publisher(metrics, 1024);
+        publishUntilConnected(metrics);
+        server.accept().close();
+        for (int i = 0; i < 100 && publisher.isConnected(); i++) {
+            Thread.sleep(10);
+            publisher.publish(Collections.<Metric>emptyList());
+        }
+        assertFalse(publisher.isConnected());
+        publisher.publish(Collections.<Metric>emptyList());
+        assertEquals(1, publisher.getConnections());
+
+        clock.addAndGet(1000);
+        publishUntilConnected(metrics);
+        try (Socket socket = server.accept()) {
+            assertEquals(Collections.singletonList("put healer.ok 1500000001 1 host=i-1 env=test"), read(socket, 1));
+        }
+        assertEquals(2, publisher.getConnections());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRequireCommonTag() throws Exception {
+        new OpenTsdbMetricsPublisher(Collections.<Metric>emptyList(), "healer",
+                (InetSocketAddress) server.getLocalSocketAddress(), Collections.<String, String>emptyMap());
+    }
+
+    private OpenTsdbMetricsPublisher publisher(final List<Metric> metrics, final int bufferSize) {
+        return new OpenTsdbMetricsPublisher(metrics, "healer", (InetSocketAddress) server.getLocalSocketAddress(),
+                tags(), bufferSize, 1000, 60000, clock::get);
+    }
+
+    /**
+     * Publishes, with the counts, then publishes nothing else until the pending connection completes and the buffer
+     * is written.
+     */
+    private void publishUntilConnected(final List<Metric> metrics) throws Exception {
+        publisher.publish(metrics, true);
+        for (int i = 0; i < 100 && !publisher.isConnected(); i++) {
+            Thread.sleep(10);
+            publisher.publish(Collections.<Metric>emptyList());
+        }
+        assertTrue(publisher.isConnected());
+    }
+
+    private static List<String> read(final Socket socket, final int lines) throws Exception {
+        socket.setSoTimeout(2000);
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        final List<String> result = new ArrayList<>();
+        for (int i = 0; i < lines; i++) {
+            result.add(reader.readLine());
+        }
+        return result;
+    }
+
+    private static Map<String, String> tags() {
+        final Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("host", "i-1");
+        tags.put("env", "test");
+        return tags;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2017, TomTom International BV (http://www.tomtom.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tomtom.cloud.recycling.statsd;
+
+import static com.tomtom.cloud.recycling.TestMetrics.metric;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.tomtom.cloud.recycling.AggregatingMetric;
+import com.tomtom.cloud.recycling.DimensionSet;
+import com.tomtom.cloud.recycling.HistogramMetric;
+import com.tomtom.cloud.recycling.Metric;
+import com.tomtom.cloud.recycling.MetricUnit;
+import com.tomtom.cloud.recycling.OneTagMetricMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatsdMetricsPublisherTest {
+
+    private DatagramSocket agent;
+
+    private StatsdMetricsPublisher publisher;
+
+    @Before
+    public void setUp() throws Exception {
+        agent = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        agent.setSoTimeout(2000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (publisher != null) {
+            publisher.close();
+        }
+        agent.close();
+    }
+
+    @Test
+    public void shouldSendGaugesAndStatistics() throws Exception {
+        final AggregatingMetric latency = new AggregatingMetric("latency");
+        latency.record(2);
+        latency.record(5.5);
+        publisher = publisher(Arrays.asList(metric("queue.size", 12), metric("temperature", -3), latency), 1432);
+        publisher.publish();
+
+        assertEquals(Arrays.asList("healer.queue.size:12|g", "healer.temperature:0|g", "healer.temperature:-3|g",
+                "healer.latency.count:2|c", "healer.latency.sum:7.5|c", "healer.latency.min:2|g",
+                "healer.latency.max:5.5|g"), receive());
+        assertEquals(1, publisher.getSentPackets());
+    }
+
+    @Test
+    public void shouldNameSeriesAfterTheirDimensions() throws Exception {
+        final Metric traffic = metric("queue.size", 1);
+        doReturn(DimensionSet.of(Collections.singletonMap("feed", "traffic"))).when(traffic).getDimensions();
+        final Metric maps = metric("queue.size", 2);
+        doReturn(DimensionSet.of(Collections.singletonMap("feed", "maps"))).when(maps).getDimensions();
+        final HistogramMetric latency = new HistogramMetric("latency", MetricUnit.MILLISECONDS, false,
+                DimensionSet.of(Collections.singletonMap("feed", "traffic")), 99);
+        latency.record(4);
+        publisher = publisher(Arrays.asList(traffic, maps, latency), 1432);
+        publisher.publish();
+
+        assertEquals(Arrays.asList("healer.queue.size.traffic:1|g", "healer.queue.size.maps:2|g",
+                "healer.latency.traffic.count:1|c", "healer.latency.traffic.sum:4|c", "healer.latency.traffic.min:4|g",
+                "healer.latency.traffic.max:4|g", "healer.latency.traffic.p99:4|g"), receive());
+    }
+
+    @Test
+    public void shouldSplitLinesAcrossPackets() throws Exception {
+        final List<Metric> metrics = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            metrics.add(metric("metric" + i, i));
+        }
+        // every line takes 20 bytes, 3 of them fit in a packet
+        publisher = publisher(metrics, 64);
+        publisher.publish();
+
+        final List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final List<String> packet = receive();
+            assertTrue(packet.size() <= 3);
+            lines.addAll(packet);
+        }
+        assertEquals(10, lines.size());
+        assertEquals("healer.metric9:9|g", lines.get(9));
+        assertEquals(4, publisher.getSentPackets());
+    }
+
+    @Test
+    public void shouldSendChangesOfCounts() throws Exception {
+        final OneTagMetricMap<String> failures = new OneTagMetricMap<>("metricName");
+        failures.add("flow", 3);
+        publisher = publisher(Collections.<Metric>emptyList(), 1432);
+        publisher.addCounts("failures", failures::getCounts);
+        publisher.publish();
+        assertEquals(Collections.singletonList("healer.failures.flow:3|c"), receive());
+
+        failures.increment("flow");
+        publisher.publish();
+        assertEquals(Collections.singletonList("healer.failures.flow:1|c"), receive());
+    }
+
+    @Test
+    public void shouldCountUnreadableMetric() throws Exception {
+        final Metric failing = mock(Metric.class);
+        doReturn("failing").when(failing).getName();
+        doThrow(new IllegalStateException("test")).when(failing).getValue();
+        publisher = publisher(Arrays.asList(failing, metric("ok", 1)), 1432);
+        publisher.publish();
+        assertEquals(Collections.singletonList("healer.ok:1|g"), receive());
+        assertEquals(1, publisher.getFailedPublishingRequests().size());
+    }
+
+    @Test
+    public void shouldNotFailWithoutAgent() throws Exception {
+        final InetSocketAddress address = (InetSocketAddress) agent.getLocalSocketAddress();
+        agent.close();
+        publisher = new StatsdMetricsPublisher(Collections.singletonList(metric("ok", 1)), "healer", address);
+        publisher.publish();
+        publisher.publish();
+        assertEquals(2, publisher.getSentPackets() + publisher.getDroppedPackets());
+    }
+
+    private StatsdMetricsPublisher publisher(final List<Metric> metrics, final int maxPacketSize) throws Exception {
+        return new StatsdMetricsPublisher(metrics, "healer",
+                (InetSocketAddress) agent.getLocalSocketAddress(), maxPacketSize);
+    }
+
+    private List<String> receive() throws Exception {
+        final DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+        agent.receive(packet);
+        final String payload = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+        return Arrays.asList(payload.split("\n"));
+    }
+}